@@ -12,20 +12,18 @@ import org.patonki.data.IntBoundingBox;
 import org.patonki.util.BoundsCalculator2D;
 
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
+/**
+ * Adds the buildings to the blocks and removes the old buildings near them.
+ * Can be called from multiple threads. Buildings that are far enough from each other are processed at the same time
+ */
 public class BuildingReplacer implements Consumer<BlockLocations> {
     private final Blocks blocks;
 
-    private final ReentrantLock lock = new ReentrantLock();
-
     private final Block buildingBlock;
     private final Block roofBlock;
 
-    private final boolean[][] check;
-
-    private final HashSet<Coordinate> visitedCoordinates = new HashSet<>();
     private final GroundLayer groundLayer;
 
     private record Coordinate(int x, int y, int z) {}
@@ -36,7 +34,6 @@ public class BuildingReplacer implements Consumer<BlockLocations> {
 
         this.buildingBlock = buildingBlock;
         this.roofBlock = roofBlock;
-        this.check = new boolean[blocks.getWidth()][blocks.getLength()];
     }
 
     private boolean blockIsPartOfOldBuilding(Block block) {
@@ -45,18 +42,29 @@ public class BuildingReplacer implements Consumer<BlockLocations> {
 
         return block.equals(this.buildingBlock) || block.equals(this.roofBlock);
     }
-    private void removeOldBuilding(int x, int y, int z) {
+    //the neighbors of the block are read too, so they must be inside the region
+    private boolean canProcess(Blocks.RegionLock region, int x) {
+        return region.contains(Math.max(0, x - 1)) && region.contains(Math.min(blocks.getWidth() - 1, x + 1));
+    }
+    //the blocks that can not be processed inside the locked region are added to the overflow
+    private void removeOldBuilding(int x, int y, int z, HashSet<Coordinate> visitedCoordinates, XYZBlock[] neighbors,
+                                   Blocks.RegionLock region, List<Coordinate> overflow) {
         Queue<Coordinate> queue = new LinkedList<>();
         queue.add(new Coordinate(x,y,z));
 
         while (!queue.isEmpty()) {
             Coordinate coordinate = queue.poll();
             if (visitedCoordinates.contains(coordinate)) continue;
+            if (!canProcess(region, coordinate.x)) {
+                overflow.add(coordinate);
+                continue;
+            }
             visitedCoordinates.add(coordinate);
 
             blocks.remove(coordinate.x, coordinate.y, coordinate.z);
-            List<XYZBlock> neighbors = blocks.neighborsList(coordinate.x, coordinate.y, coordinate.z);
-            for (XYZBlock neighbor : neighbors) {
+            int neighborCount = blocks.neighbors(coordinate.x, coordinate.y, coordinate.z, neighbors);
+            for (int i = 0; i < neighborCount; i++) {
+                XYZBlock neighbor = neighbors[i];
                 if (blockIsPartOfOldBuilding(neighbor.block())) {
                     queue.add(new Coordinate(neighbor.x(), neighbor.y(), neighbor.z()));
                 }
@@ -71,55 +79,73 @@ public class BuildingReplacer implements Consumer<BlockLocations> {
         int minY = (int) (boundingBox.y() - blocks.getMinY());
         int minZ = (int) (boundingBox.z() - blocks.getMinZ());
 
-        this.visitedCoordinates.clear();
-        for (boolean[] booleans : this.check) {
-            Arrays.fill(booleans, false);
-        }
-        BoundsCalculator2D boundsCalc = new BoundsCalculator2D();
         int radius = 5;
+        //the area that will be checked for the old buildings.
+        //Calculated first, so that only that region has to be locked
+        BoundsCalculator2D boundsCalc = new BoundsCalculator2D();
         for (BlockLocation location : locations) {
             int x = location.x() + minX;
             int y = location.y() + minY;
-            int z = location.z() + minZ;
-            //marking the area that will be checked for the old buildings
-            //this is done for performance reasons
-            for (int xs = x - radius; xs <= x + radius; xs++) {
-                for (int ys = y - radius; ys <= y + radius; ys++) {
-                    if (xs < 0 || ys < 0 || xs >= check.length || ys >= check[0].length) {
-                        continue;
+            int fromX = Math.max(0, x - radius), toX = Math.min(blocks.getWidth() - 1, x + radius);
+            int fromY = Math.max(0, y - radius), toY = Math.min(blocks.getLength() - 1, y + radius);
+            if (fromX > toX || fromY > toY) continue;
+            boundsCalc.add(fromX, fromY);
+            boundsCalc.add(toX, toY);
+        }
+        IntBoundingBox bBox = boundsCalc.get();
+        if (bBox.minX() > bBox.maxX()) return; //the building is outside the area
+
+        boolean[][] check = new boolean[bBox.maxX() - bBox.minX() + 1][bBox.maxY() - bBox.minY() + 1];
+        HashSet<Coordinate> visitedCoordinates = new HashSet<>();
+        XYZBlock[] neighbors = new XYZBlock[6];
+        List<Coordinate> overflow = new ArrayList<>();
+
+        try (Blocks.RegionLock region = blocks.lockRegion(bBox.minX() - 1, bBox.maxX() + 1)) {
+            for (BlockLocation location : locations) {
+                int x = location.x() + minX;
+                int y = location.y() + minY;
+                int z = location.z() + minZ;
+                //marking the area that will be checked for the old buildings
+                //this is done for performance reasons
+                for (int xs = x - radius; xs <= x + radius; xs++) {
+                    for (int ys = y - radius; ys <= y + radius; ys++) {
+                        if (xs < 0 || ys < 0 || xs >= blocks.getWidth() || ys >= blocks.getLength()) {
+                            continue;
+                        }
+                        check[xs - bBox.minX()][ys - bBox.minY()] = true;
                     }
-                    boundsCalc.add(xs,ys);
-                    check[xs][ys] = true;
+                }
+                Block b = new Block(location.id(), location.data(), Classification.BUILDING);
+                Block previousBlock = blocks.get(x,y,z);
+                //do not replace ground blocks
+                if (groundLayer.inRange(x,y) && groundLayer.getHeightAt(x,y) != z
+                        && (previousBlock == null || previousBlock.classification() != Classification.GROUND)) {
+                    blocks.set(x,y,z, b);
                 }
             }
-            Block b = new Block(location.id(), location.data(), Classification.BUILDING);
-            Block previousBlock = blocks.get(x,y,z);
-            //do not replace ground blocks
-            if (groundLayer.inRange(x,y) && groundLayer.getHeightAt(x,y) != z
-                    && (previousBlock == null || previousBlock.classification() != Classification.GROUND)) {
-                blocks.set(x,y,z, b);
-            }
-        }
-        IntBoundingBox bBox = boundsCalc.get();
-        for (int x = bBox.minX(); x <= bBox.maxX(); x++) {
-            for (int y = bBox.minY(); y < bBox.maxY(); y++) {
-                if (!check[x][y]) continue;
-                for (int z = 0; z < blocks.getHeight(); z++) {
-                    Block b = blocks.get(x,y,z);
-                    if (blockIsPartOfOldBuilding(b)) {
-                        removeOldBuilding(x,y,z);
+            for (int x = bBox.minX(); x <= bBox.maxX(); x++) {
+                for (int y = bBox.minY(); y < bBox.maxY(); y++) {
+                    if (!check[x - bBox.minX()][y - bBox.minY()]) continue;
+                    for (int z = 0; z < blocks.getHeight(); z++) {
+                        Block b = blocks.get(x,y,z);
+                        if (blockIsPartOfOldBuilding(b)) {
+                            removeOldBuilding(x,y,z, visitedCoordinates, neighbors, region, overflow);
+                        }
                     }
                 }
             }
         }
+        if (overflow.isEmpty()) return;
+        //the old building continues outside the region, so the rest of it is removed while holding the whole area
+        try (Blocks.RegionLock region = blocks.lockRegion(0, blocks.getWidth() - 1)) {
+            while (!overflow.isEmpty()) {
+                Coordinate coordinate = overflow.remove(overflow.size() - 1);
+                removeOldBuilding(coordinate.x, coordinate.y, coordinate.z, visitedCoordinates, neighbors, region, overflow);
+            }
+        }
     }
     @Override
     public void accept(BlockLocations locations) {
-        lock.lock(); //only one thread allowed at once
-        try {
-            acceptLocations(locations);
-        } finally {
-            lock.unlock();
-        }
+        acceptLocations(locations);
     }
 }
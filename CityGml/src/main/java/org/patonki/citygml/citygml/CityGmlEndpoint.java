@@ -7,6 +7,9 @@ import org.patonki.citygml.features.BuildingCollection;
 import org.patonki.data.Block;
 import org.patonki.data.Classification;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class CityGmlEndpoint {
     private final GmlOptions options;
 
@@ -43,20 +46,14 @@ public class CityGmlEndpoint {
         Block placeHolderRoofBlock = new Block(27, 20, Classification.BUILDING);
         BuildingReplacer buildingReplacer = new BuildingReplacer(blocks, placeHolderBuildingBlock, placeHolderRoofBlock);
 
-        blocks.forEachSet((x, y, z, block) -> {
-            if (block == null) return null;
-            if (block.equals(buildingBlock)) return placeHolderBuildingBlock;
-            if (block.equals(roofBlock)) return placeHolderRoofBlock;
-            return block;
-        });
+        HashMap<Block, Block> placeHolders = new HashMap<>();
+        placeHolders.put(roofBlock, placeHolderRoofBlock);
+        //the roof and building blocks can be the same
+        placeHolders.put(buildingBlock, placeHolderBuildingBlock);
+        blocks.replaceAll(placeHolders);
 
         featureProcessor.process(buildings, options, buildingReplacer, texturesFolder,this.multiThread);
         //Replacing the placeholders with the old blocks
-        blocks.forEachSet((x,y,z,block) -> {
-            if (block == null) return null;
-            if (block.equals(placeHolderBuildingBlock)) return buildingBlock;
-            if (block.equals(placeHolderRoofBlock)) return roofBlock;
-            return block;
-        });
+        blocks.replaceAll(Map.of(placeHolderBuildingBlock, buildingBlock, placeHolderRoofBlock, roofBlock));
     }
 }
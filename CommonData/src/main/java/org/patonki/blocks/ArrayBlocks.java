@@ -2,24 +2,36 @@ package org.patonki.blocks;
 
 import org.jetbrains.annotations.NotNull;
 import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
 import org.patonki.data.BlockSerializer;
 import org.patonki.data.Classification;
+import org.patonki.data.IntBoundingBox3D;
 
-import java.util.HashMap;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.Predicate;
 
 /**
  * An implementation of {@link Blocks}.
  * that uses a simple array of blocks. <br>
- * Because of memory limitations, this class only supports up to 256 (byte max value) different
- * types of blocks.
+ * Because of memory limitations, this class only supports up to 255 different
+ * types of blocks. See {@link BlockPalette}.
  */
 public class ArrayBlocks extends Blocks {
-    private final Block[] pallet = new Block[256];
+    private final BlockPalette pallet = new BlockPalette();
     private final byte[] blocks; //indexes of the block pallet
-    //each block mapped to it's index in the pallet
-    private final HashMap<Block, Byte> ids = new HashMap<>();
+    //the same information as bits for faster neighbor queries
+    private final OccupancyBitmaps occupancy;
 
     @Override
     public Iterator<XYZBlock> iterator() {
@@ -36,58 +48,184 @@ public class ArrayBlocks extends Blocks {
     public ArrayBlocks(int width, int length, int height, int minX, int minY, int minZ, int sideLength) {
         super(width, length, height, minX, minY, minZ, sideLength);
         this.blocks = new byte[width*length*height];
+        this.occupancy = new OccupancyBitmaps(width, length, height);
     }
     private int pos(int x, int y, int z) {
         return z * (this.width * this.length) + x*(this.length) + y;
     }
 
-    public boolean set(int x, int y, int z, @NotNull Block block) {
+    @Override
+    protected boolean setBlock(int x, int y, int z, @NotNull Block block) {
         if (!inRange(x,y,z)) return false;
+        store(x,y,z, pallet.indexOf(block));
+        return true;
+    }
+
+    @Override
+    protected boolean setBlock(int x, int y, int z, int blockId) {
+        if (!inRange(x,y,z)) return false;
+        store(x,y,z, pallet.indexOf(blockId));
+        return true;
+    }
 
-        Byte index = ids.get(block);
+    private void store(int x, int y, int z, byte index) {
+        write(x,y,z, pos(x,y,z), index);
+    }
 
-        if (index == null) { //new block
-            byte size = (byte) (ids.size() + 1);
-            ids.put(block, size);
-            this.pallet[size] = block;
-            this.blocks[pos(x,y,z)] = size;
+    //writes the index (0 for air) to the position of the coordinates and updates the bitmaps
+    private void write(int x, int y, int z, int pos, byte index) {
+        Block previous = this.pallet.get(this.blocks[pos]);
+        this.blocks[pos] = index;
+        if (index == 0) {
+            if (previous != null) this.occupancy.clear(x,y,z, previous.classification());
         } else {
-            this.blocks[pos(x,y,z)] = index;
+            this.occupancy.set(x,y,z, previous == null ? null : previous.classification(), pallet.get(index).classification());
         }
-        return true;
     }
 
     @Override
-    public boolean remove(int x, int y, int z) {
-        this.blocks[pos(x,y,z)] = 0;
+    protected void fillBlocks(int fromX, int fromY, int fromZ, int toX, int toY, int toZ, int blockId) {
+        byte index = pallet.indexOf(blockId);
+        for (int z = fromZ; z <= toZ; z++) {
+            for (int x = fromX; x <= toX; x++) {
+                int pos = pos(x, fromY, z);
+                for (int y = fromY; y <= toY; y++, pos++) {
+                    write(x,y,z, pos, index);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected int replaceInColumnBlocks(int x, int y, Predicate<Block> predicate, int blockId) {
+        byte index = pallet.indexOf(blockId);
+        //the predicate is tested once for each block in the palette
+        boolean[] matches = new boolean[pallet.size() + 1];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = predicate.test(pallet.get((byte) i));
+        }
+        int replaced = 0;
+        int layer = this.width * this.length;
+        int pos = pos(x,y,0);
+        for (int z = 0; z < this.height; z++, pos += layer) {
+            int old = this.blocks[pos] & 0xFF;
+            if (old >= matches.length || !matches[old]) continue;
+            write(x,y,z, pos, index);
+            replaced++;
+        }
+        return replaced;
+    }
+
+    @Override
+    protected boolean removeBlock(int x, int y, int z) {
+        if (!inRange(x,y,z)) return false;
+        write(x,y,z, pos(x,y,z), (byte) 0);
         return true;
     }
 
+    @Override
+    public boolean isAir(int x, int y, int z) {
+        return !inRange(x,y,z) || !occupancy.isSolid(x,y,z);
+    }
+
+    @Override
+    public boolean hasClassification(int x, int y, int z, Classification classification) {
+        return inRange(x,y,z) && occupancy.has(x,y,z, classification);
+    }
+
+    //all neighbors are inside the area
+    private boolean isInside(int x, int y, int z) {
+        return x > 0 && y > 0 && z > 0 && x < width - 1 && y < length - 1 && z < height - 1;
+    }
+
+    @Override
+    public int neighborsCount(int x, int y, int z) {
+        if (isInside(x,y,z)) return occupancy.countNeighbors(x,y,z, null);
+        int sum = 0;
+        if (!isAir(x-1, y, z)) sum++;
+        if (!isAir(x, y-1, z)) sum++;
+        if (!isAir(x, y, z-1)) sum++;
+        if (!isAir(x+1, y, z)) sum++;
+        if (!isAir(x, y+1, z)) sum++;
+        if (!isAir(x, y, z+1)) sum++;
+        return sum;
+    }
+
+    @Override
+    public int numberOfNeighboringBlocksWithClassification(int x, int y, int z, Classification classification) {
+        if (isInside(x,y,z)) return occupancy.countNeighbors(x,y,z, classification);
+        return super.numberOfNeighboringBlocksWithClassification(x, y, z, classification);
+    }
+
     @Override
     public int size() {
         return width * length * height;
     }
 
+    //the occupancy bitmaps would have to be rebuilt if a classification changes
+    @Override
+    protected boolean replaceInPalette(Map<Block, Block> replacements) {
+        if (pallet.changesClassification(replacements)) return false;
+        pallet.replace(replacements);
+        return true;
+    }
+
+    //the bricks of the occupancy bitmaps are 8 blocks wide
+    @Override
+    protected int parallelSlabAlignment() {
+        return 8;
+    }
+
     public Block get(int x, int y, int z) {
         if (!inRange(x,y,z)) {
             return null;
         }
-        return this.pallet[this.blocks[pos(x,y,z)]];
+        return this.pallet.get(this.blocks[pos(x,y,z)]);
+    }
+
+    @Override
+    public int getId(int x, int y, int z) {
+        if (!inRange(x,y,z)) return BlockRegistry.AIR;
+        return this.pallet.blockId(this.blocks[pos(x,y,z)]);
     }
 
     @Override
     public void forEach(BlockAction action) {
-        for (int x = 0; x < this.width; x++) {
-            for (int y = 0; y < this.length; y++) {
-                for (int z = 0; z < this.height; z++) {
-                    action.run(x,y,z, this.pallet[this.blocks[pos(x,y,z)]]);
+        //same order as the array so the blocks are read sequentially
+        int i = 0;
+        for (int z = 0; z < this.height; z++) {
+            for (int x = 0; x < this.width; x++) {
+                for (int y = 0; y < this.length; y++) {
+                    action.run(x,y,z, this.pallet.get(this.blocks[i++]));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void forEachSet(BlockSetAction action) {
+        int i = 0;
+        for (int z = 0; z < this.height; z++) {
+            for (int x = 0; x < this.width; x++) {
+                for (int y = 0; y < this.length; y++, i++) {
+                    Block previous = this.pallet.get(this.blocks[i]);
+                    Block block = action.run(x,y,z, previous);
+                    if (Objects.equals(block, previous)) continue;
+                    if (block != null) {
+                        set(x,y,z, block);
+                    } else {
+                        remove(x,y,z);
+                    }
                 }
             }
         }
     }
 
     /**
-     * Iterates over blocks.
+     * Iterates over blocks in the order of the array: y changes fastest, then x and then z.
+     * Skips empty z-layers and 8*8*8 bricks without looking at the blocks one by one.<br>
+     * The next block is searched for when {@link #hasNext()} is called, so blocks can be set and removed
+     * during the iteration. Blocks removed before the iterator reaches them are not returned.
      */
     public static class XYZIterator implements Iterator<XYZBlock> {
         private final ArrayBlocks blocks;
@@ -98,41 +236,46 @@ public class ArrayBlocks extends Blocks {
         private final int zStep;
         public XYZIterator(ArrayBlocks blocks, boolean bottomToUp) {
             this.blocks = blocks;
-            this.x = -1;
+            this.x = 0;
             this.XYZBlock = new XYZBlock(0,0,0, null);
             this.zStep = bottomToUp ? 1 : -1;
             this.z = bottomToUp ? 0 : blocks.height-1;
-            advance();
         }
-        @Override
-        public boolean hasNext() {
-            return z >= 0 && z < this.blocks.height;
-        }
-        private void advanceCoordinates() {
-            x++;
-            if (x == this.blocks.width) {
-                x = 0;y++;
-                if (y == this.blocks.length) {
-                    y = 0; z+=zStep;
+        //moves to the next solid block starting from the current coordinates
+        private void findNext() {
+            OccupancyBitmaps occupancy = this.blocks.occupancy;
+            while (z >= 0 && z < this.blocks.height) {
+                if (y >= this.blocks.length) {
+                    y = 0; x++;
+                    if (x == this.blocks.width) {
+                        x = 0; z+=zStep;
+                    }
+                } else if (occupancy.isLayerEmpty(z)) {
+                    x = 0; y = 0; z+=zStep;
+                } else if (occupancy.isBrickEmpty(x,y,z)) {
+                    //jumping over the brick
+                    y = (y | 7) + 1;
+                } else if (this.blocks.blocks[blocks.pos(x,y,z)] != 0) {
+                    return;
+                } else {
+                    y++;
                 }
             }
         }
-        private void advance() {
-            advanceCoordinates();
-            while (z >= 0 && z < this.blocks.height && this.blocks.blocks[blocks.pos(x,y,z)] == 0) {
-                advanceCoordinates();
-            }
+        @Override
+        public boolean hasNext() {
+            findNext();
+            return z >= 0 && z < this.blocks.height;
         }
         @Override
         public XYZBlock next() {
-            if (z >= this.blocks.height)
+            if (!hasNext())
                 throw new NoSuchElementException();
-            //Item item = this.blocks.blocks[x][y][z];
             this.XYZBlock.x = x;
             this.XYZBlock.y = y;
             this.XYZBlock.z = z;
-            this.XYZBlock.block = this.blocks.pallet[this.blocks.blocks[this.blocks.pos(x,y,z)]];
-            advance();
+            this.XYZBlock.block = this.blocks.pallet.get(this.blocks.blocks[this.blocks.pos(x,y,z)]);
+            y++;
             return this.XYZBlock;
         }
     }
@@ -142,94 +285,144 @@ public class ArrayBlocks extends Blocks {
      * Used for caching to a file for later use.
      */
     public static class ArrayBlockSerializer extends BlockSerializer {
-        @Override
-        public ArrayBlocks deserialize(byte[] ar) {
-            // 7 * 4 = width, length, height, minX, minY, minZ,sideLength as bytes
-            //the palette takes 256*3 bytes
-            //it takes 1 byte to represent a block
+        // 7 * 4 = width, length, height, minX, minY, minZ,sideLength as bytes
+        //the palette takes 256*3 bytes
+        //it takes 1 byte to represent a block
+        private static final int HEADER_SIZE = 7 * 4 + BlockPalette.SERIALIZED_SIZE;
 
-            //the metadata
+        //the metadata and the palette
+        private static ArrayBlocks readHeader(byte[] ar) {
             int[] ints = readInts(ar, 0, 7);
-            int width, length, height, minX, minY, minZ, sideLength;
-            width = ints[0];
-            length = ints[1];
-            height = ints[2];
-            minX = ints[3];
-            minY = ints[4];
-            minZ = ints[5];
-            sideLength = ints[6];
-            ArrayBlocks blocks = new ArrayBlocks(width, length, height, minX, minY, minZ, sideLength);
-            int i = 7 * 4;
-            //the block pallet
-            for (int palletIndex = 0; palletIndex < blocks.pallet.length; palletIndex++) {
-                byte id = ar[i];
-                if (id == 0) {
-                    blocks.pallet[palletIndex] = null;
-                } else {
-                    byte data = ar[i+1];
-                    Classification classification = Classification.values()[ar[i+2]];
-                    blocks.pallet[palletIndex] = new Block(id, data, classification);
-                }
-                i+=3;
+            ArrayBlocks blocks = new ArrayBlocks(ints[0], ints[1], ints[2], ints[3], ints[4], ints[5], ints[6]);
+            blocks.pallet.read(ByteBuffer.wrap(ar, 7 * 4, BlockPalette.SERIALIZED_SIZE));
+            return blocks;
+        }
+
+        private byte[] writeHeader(ArrayBlocks blocks, int size) {
+            byte[] serialized = new byte[size];
+            writeInts(serialized, 0, blocks.width, blocks.length, blocks.height, blocks.minX, blocks.minY, blocks.minZ, blocks.getSideLength());
+            blocks.pallet.write(ByteBuffer.wrap(serialized, 7 * 4, BlockPalette.SERIALIZED_SIZE));
+            return serialized;
+        }
+
+        //the bitmaps are not serialized, because they can be built from the blocks.
+        //The blocks of a (x,z) row are next to each other in the array, so they are handled a row at a time
+        private static void buildOccupancy(ArrayBlocks blocks) {
+            Classification[] classifications = new Classification[256];
+            for (int i = 1; i < classifications.length; i++) {
+                Block block = blocks.pallet.get((byte) i);
+                if (block != null) classifications[i] = block.classification();
             }
-            int maximum = 0;
-            //the actual blocks
-            for (int x = 0; x < blocks.width; x++) {
-                for (int y = 0; y < blocks.length; y++) {
-                    for (int z = 0; z < blocks.height; z++) {
-                        int index = blocks.pos(x,y,z);
-                        index += i;
-                        byte block = ar[index];
-                        maximum = Math.max(maximum, block);
-                        blocks.blocks[blocks.pos(x,y,z)] = block;
-
-                        Block b = blocks.pallet[block];
-                        if (b != null)
-                            blocks.ids.put(b, block);
-                    }
+            int index = 0;
+            for (int z = 0; z < blocks.height; z++) {
+                for (int x = 0; x < blocks.width; x++) {
+                    blocks.occupancy.setRow(x, z, blocks.blocks, index, classifications);
+                    index += blocks.length;
                 }
             }
-            //hack to fill up the ids array
-            int data = 30;
-            while (blocks.ids.size() < maximum) {
-                blocks.ids.put(new Block(30, data++, Classification.UNKNOWN), (byte) 1);
+        }
+
+        @Override
+        public ArrayBlocks deserialize(byte[] ar) {
+            ArrayBlocks blocks = readHeader(ar);
+            //the actual blocks. The serialized blocks are in the same order as the array
+            System.arraycopy(ar, HEADER_SIZE, blocks.blocks, 0, blocks.blocks.length);
+            buildOccupancy(blocks);
+            return blocks;
+        }
+
+        @Override
+        protected ArrayBlocks deserialize(InputStream in) throws IOException {
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            if (header.length != HEADER_SIZE) {
+                throw new EOFException("The file is too short to contain the header");
             }
+            ArrayBlocks blocks = readHeader(header);
+            //reading straight to the array of the blocks
+            int read = in.readNBytes(blocks.blocks, 0, blocks.blocks.length);
+            if (read != blocks.blocks.length) {
+                throw new EOFException("Expected " + blocks.blocks.length + " blocks but the file only has " + read);
+            }
+            buildOccupancy(blocks);
             return blocks;
         }
+
+        /**
+         * Maps the file and copies the blocks to the array with one bulk get,
+         * because the file has the blocks in the same order as the array.
+         */
         @Override
-        public byte[] serialize(Blocks blocksUnknown) {
-            ArrayBlocks blocks = (ArrayBlocks) blocksUnknown;
-            // 7 * 4 = width, length, height, minX, minY, minZ,sideLength as bytes
-            //the palette takes 256*3 bytes
-            //it takes 1 byte to represent a block
+        protected ArrayBlocks deserialize(FileChannel channel) throws IOException {
+            long size = channel.size() - channel.position();
+            if (size > Integer.MAX_VALUE) {
+                return deserialize(Channels.newInputStream(channel));
+            }
+            if (size < HEADER_SIZE) {
+                throw new EOFException("The file is too short to contain the header");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, channel.position(), size);
+            byte[] header = new byte[HEADER_SIZE];
+            mapped.get(header);
+            ArrayBlocks blocks = readHeader(header);
+            if (mapped.remaining() < blocks.blocks.length) {
+                throw new EOFException("Expected " + blocks.blocks.length + " blocks but the file only has " + mapped.remaining());
+            }
+            mapped.get(blocks.blocks);
+            buildOccupancy(blocks);
+            return blocks;
+        }
 
-            //storing the metadata
-            byte[] serialized = new byte[7*4 + blocks.pallet.length * 3 + blocks.width * blocks.length * blocks.height];
-            writeInts(serialized, 0, blocks.width, blocks.length, blocks.height, blocks.minX, blocks.minY, blocks.minZ, blocks.getSideLength());
-            int i = 7*4;
-            //storing the pallet
-            for (int palletIndex = 0; palletIndex < blocks.pallet.length; palletIndex++) {
-                Block block = blocks.pallet[palletIndex];
-                if (block != null) {
-                    serialized[i] = block.id();
-                    serialized[i+1] = block.data();
-                    serialized[i+2] = (byte) Classification.index(block.classification());
-                }
-                i+=3;
+        /**
+         * Reads the rows of the box from each z-layer, because the blocks of the rows are next to each other in the file.
+         */
+        @Override
+        protected ArrayBlocks deserializeRegion(RandomAccessData data, IntBoundingBox3D box) throws IOException {
+            return readRegion(data, box);
+        }
+
+        //also used by MappedBlocks, which has the same format
+        static ArrayBlocks readRegion(RandomAccessData data, IntBoundingBox3D box) throws IOException {
+            byte[] header = new byte[HEADER_SIZE];
+            data.readFully(0, header, 0, HEADER_SIZE);
+            int[] ints = readInts(header, 0, 7);
+            int width = ints[0], length = ints[1], height = ints[2];
+            if (box.x() < 0 || box.y() < 0 || box.z() < 0 || box.w() < 0 || box.l() < 0 || box.h() < 0
+                    || box.x() + box.w() > width || box.y() + box.l() > length || box.z() + box.h() > height) {
+                throw new IllegalArgumentException("The region " + box + " is not inside the area " + width + "*" + length + "*" + height);
             }
-            //storing the blocks
-            for (int x = 0; x < blocks.width; x++) {
-                for (int y = 0; y < blocks.length; y++) {
-                    for (int z = 0; z < blocks.height; z++) {
-                        int index = blocks.pos(x,y,z);
-                        byte block = blocks.blocks[index];
-                        index += i;
-                        serialized[index] = block;
-                    }
+            ArrayBlocks region = new ArrayBlocks(box.w(), box.l(), box.h(),
+                    ints[3] + box.x(), ints[4] + box.y(), ints[5] + box.z(), ints[6]);
+            region.pallet.read(ByteBuffer.wrap(header, 7 * 4, BlockPalette.SERIALIZED_SIZE));
+            //the rows from box.x() to the end of the box in one layer
+            byte[] rows = new byte[box.w() * length];
+            int index = 0;
+            for (int z = box.z(); z < box.z() + box.h(); z++) {
+                data.readFully(HEADER_SIZE + (long) z * width * length + (long) box.x() * length, rows, 0, rows.length);
+                for (int x = 0; x < box.w(); x++) {
+                    System.arraycopy(rows, x * length + box.y(), region.blocks, index, box.l());
+                    index += box.l();
                 }
             }
+            buildOccupancy(region);
+            return region;
+        }
+
+        @Override
+        public byte[] serialize(Blocks blocksUnknown) {
+            ArrayBlocks blocks = (ArrayBlocks) blocksUnknown;
+            byte[] serialized = writeHeader(blocks, HEADER_SIZE + blocks.blocks.length);
+            //storing the blocks. The serialized format has the same order as the array
+            System.arraycopy(blocks.blocks, 0, serialized, HEADER_SIZE, blocks.blocks.length);
             return serialized;
         }
+
+        @Override
+        protected void serialize(Blocks blocksUnknown, OutputStream out) throws IOException {
+            ArrayBlocks blocks = (ArrayBlocks) blocksUnknown;
+            out.write(writeHeader(blocks, HEADER_SIZE));
+            //the array is written as it is without copying it
+            out.write(blocks.blocks);
+        }
     }
 
     @Override
@@ -237,7 +430,7 @@ public class ArrayBlocks extends Blocks {
         byte[] blocks = new byte[this.width*this.length*this.height];
         byte[] data = new byte[blocks.length];
         for (int i = 0; i < this.blocks.length; i++) {
-            Block block = pallet[this.blocks[i]];
+            Block block = pallet.get(this.blocks[i]);
             if (block == null) continue;
             blocks[i] = block.id();
             data[i] = block.data();
@@ -0,0 +1,166 @@
+package org.patonki.blocks;
+
+import org.jetbrains.annotations.NotNull;
+import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
+import org.patonki.data.Classification;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Maps blocks to the byte indexes that {@link Blocks} implementations store instead of the blocks themselves.<br>
+ * Index 0 is reserved for air, so one palette holds up to 255 different blocks.
+ * Adding more than that throws an exception instead of silently wrapping around.<br>
+ * The blocks are looked up with their {@link BlockRegistry} ids, so finding the index of a registry id
+ * is a single array read.<br>
+ * Looking up an index is thread safe. New blocks are added under a lock and the lookup array is replaced
+ * as a whole, so readers never see a half updated array.
+ */
+class BlockPalette {
+    //the palette takes 256*3 bytes in the serialized format
+    static final int SERIALIZED_SIZE = 256 * 3;
+
+    private final Block[] pallet = new Block[256];
+    //the registry id of each block in the pallet
+    private final int[] blockIds = new int[256];
+    //registry id mapped to the index in the pallet. 0 if the block is not in the pallet
+    private volatile byte[] indexes = new byte[0];
+    private volatile int size = 0;
+
+    /**
+     * Returns the index of the block, adding it to the palette if it is not there yet.
+     * @param block the block
+     * @return index in the range 1-255 as a byte
+     * @throws IllegalStateException if the palette already contains 255 blocks
+     */
+    byte indexOf(@NotNull Block block) {
+        return indexOf(BlockRegistry.idOf(block));
+    }
+
+    /**
+     * Same as {@link #indexOf(Block)}, but with the {@link BlockRegistry} id of the block
+     * @param blockId the registry id. {@link BlockRegistry#AIR} returns 0
+     */
+    byte indexOf(int blockId) {
+        if (blockId == BlockRegistry.AIR) return 0;
+        byte[] indexes = this.indexes;
+        if (blockId < indexes.length) {
+            byte index = indexes[blockId];
+            if (index != 0) return index;
+        }
+        return add(blockId);
+    }
+
+    private synchronized byte add(int blockId) {
+        byte[] indexes = this.indexes;
+        if (blockId < indexes.length && indexes[blockId] != 0) return indexes[blockId];
+
+        Block block = BlockRegistry.get(blockId);
+        int size = this.size + 1;
+        if (size >= pallet.length) {
+            throw new IllegalStateException("The block palette is full! Only " + (pallet.length - 1)
+                    + " different blocks are supported. Unable to add " + block);
+        }
+        byte[] copy = Arrays.copyOf(indexes, Math.max(indexes.length, BlockRegistry.size()));
+        copy[blockId] = (byte) size;
+        this.pallet[size] = block;
+        this.blockIds[size] = blockId;
+        this.size = size;
+        this.indexes = copy;
+        return (byte) size;
+    }
+
+    /**
+     * @param index index as returned by {@link #indexOf(Block)}. The byte is treated as unsigned
+     * @return the block or null for air
+     */
+    Block get(byte index) {
+        return pallet[index & 0xFF];
+    }
+
+    /**
+     * @param index index as returned by {@link #indexOf(Block)}. The byte is treated as unsigned
+     * @return the {@link BlockRegistry} id of the block
+     */
+    int blockId(byte index) {
+        return blockIds[index & 0xFF];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Replaces the blocks that are keys in the map, so the indexes of the old blocks point to the new blocks.
+     * If a new block is already in the palette, both indexes will point to it. Not thread safe with
+     * the other methods.
+     * @param replacements old blocks mapped to the new blocks. The values must not be null
+     */
+    synchronized void replace(Map<Block, Block> replacements) {
+        int size = this.size;
+        //every index is replaced with the old block, so swapping blocks works
+        for (int i = 1; i <= size; i++) {
+            if (pallet[i] == null) continue;
+            Block replacement = replacements.get(pallet[i]);
+            if (replacement == null) continue;
+            pallet[i] = replacement;
+            blockIds[i] = BlockRegistry.idOf(replacement);
+        }
+        byte[] indexes = new byte[BlockRegistry.size()];
+        for (int i = 1; i <= size; i++) {
+            if (pallet[i] == null || indexes[blockIds[i]] != 0) continue;
+            indexes[blockIds[i]] = (byte) i;
+        }
+        this.indexes = indexes;
+    }
+
+    /**
+     * @return whether replacing the blocks in the palette would change the classification of a block in the palette
+     */
+    boolean changesClassification(Map<Block, Block> replacements) {
+        for (int i = 1; i <= size; i++) {
+            if (pallet[i] == null) continue;
+            Block replacement = replacements.get(pallet[i]);
+            if (replacement != null && replacement.classification() != pallet[i].classification()) return true;
+        }
+        return false;
+    }
+
+    void write(ByteBuffer buffer) {
+        for (Block block : pallet) {
+            if (block == null) {
+                buffer.put(new byte[3]);
+                continue;
+            }
+            buffer.put(block.id());
+            buffer.put(block.data());
+            buffer.put((byte) Classification.index(block.classification()));
+        }
+    }
+
+    synchronized void read(ByteBuffer buffer) {
+        byte[] read = new byte[0];
+        int size = 0;
+        for (int palletIndex = 0; palletIndex < pallet.length; palletIndex++) {
+            byte id = buffer.get();
+            byte data = buffer.get();
+            byte classification = buffer.get();
+            if (id == 0) {
+                pallet[palletIndex] = null;
+                blockIds[palletIndex] = BlockRegistry.AIR;
+                continue;
+            }
+            Block block = new Block(id, data, Classification.values()[classification]);
+            int blockId = BlockRegistry.idOf(block);
+            if (blockId >= read.length) read = Arrays.copyOf(read, BlockRegistry.size());
+            pallet[palletIndex] = block;
+            blockIds[palletIndex] = blockId;
+            read[blockId] = (byte) palletIndex;
+            size = Math.max(size, palletIndex);
+        }
+        this.size = size;
+        this.indexes = read;
+    }
+}
@@ -4,11 +4,19 @@ package org.patonki.blocks;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
 import org.patonki.data.Classification;
+import org.patonki.data.IntBoundingBox3D;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * This class is used to store minecraft blocks in an area defined by the width, length, height
@@ -26,6 +34,10 @@ import java.util.List;
 public abstract class Blocks implements Iterable<XYZBlock>{
     protected final int width, length, height, minX, minY, minZ;
     private final int sideLength;
+    //built when it is needed for the first time
+    private volatile HeightMap heightMap;
+    //null if the changes are not tracked
+    private volatile ChangeTracker changes;
 
     /**
      * @param width Width of the area
@@ -65,7 +77,53 @@ public abstract class Blocks implements Iterable<XYZBlock>{
      * @param block the block
      * @return if setting the block was successful. Returns false when out of bounds
      */
-    public abstract boolean set(int x, int y, int z, @NotNull Block block);
+    public final boolean set(int x, int y, int z, @NotNull Block block) {
+        if (!setBlock(x,y,z, block)) return false;
+        HeightMap heightMap = this.heightMap;
+        if (heightMap != null) heightMap.blockSet(x,y,z, block);
+        ChangeTracker changes = this.changes;
+        if (changes != null) changes.mark(x,y,z);
+        return true;
+    }
+
+    /**
+     * Stores the block. Implementations should not call this directly, but use {@link #set(int, int, int, Block)}
+     * so that the {@link HeightMap} stays up to date.
+     * @return if setting the block was successful. Returns false when out of bounds
+     */
+    protected abstract boolean setBlock(int x, int y, int z, @NotNull Block block);
+
+    /**
+     * Sets the block with the {@link BlockRegistry} id. Faster than {@link #set(int, int, int, Block)}
+     * when the same blocks are set many times, because the block doesn't have to be hashed.
+     * @param blockId id from {@link BlockRegistry#idOf(Block)}. {@link BlockRegistry#AIR} removes the block
+     * @return if setting the block was successful. Returns false when out of bounds
+     */
+    public final boolean set(int x, int y, int z, int blockId) {
+        if (blockId == BlockRegistry.AIR) return remove(x,y,z);
+        if (!setBlock(x,y,z, blockId)) return false;
+        HeightMap heightMap = this.heightMap;
+        if (heightMap != null) heightMap.blockSet(x,y,z, BlockRegistry.get(blockId));
+        ChangeTracker changes = this.changes;
+        if (changes != null) changes.mark(x,y,z);
+        return true;
+    }
+
+    /**
+     * Stores the block with the registry id, which is never air. See {@link #setBlock(int, int, int, Block)}.
+     * Implementations with a palette should override this to skip the block lookup.
+     */
+    protected boolean setBlock(int x, int y, int z, int blockId) {
+        return setBlock(x,y,z, Objects.requireNonNull(BlockRegistry.get(blockId)));
+    }
+
+    /**
+     * Returns the {@link BlockRegistry} id of the block in the coordinates
+     * @return the id or {@link BlockRegistry#AIR} if there is no block or the coordinates are out of bounds
+     */
+    public int getId(int x, int y, int z) {
+        return BlockRegistry.idOf(get(x,y,z));
+    }
     public boolean set(XYZBlock XYZBlock, Block block) {
         return this.set(XYZBlock.x, XYZBlock.y, XYZBlock.z, block);
     }
@@ -91,11 +149,110 @@ public abstract class Blocks implements Iterable<XYZBlock>{
      * @param z z
      * @return whether the removal was successful. Returns false when out of bounds
      */
-    public abstract boolean remove(int x, int y, int z);
+    public final boolean remove(int x, int y, int z) {
+        if (!removeBlock(x,y,z)) return false;
+        HeightMap heightMap = this.heightMap;
+        if (heightMap != null) heightMap.blockRemoved(x,y,z);
+        ChangeTracker changes = this.changes;
+        if (changes != null) changes.mark(x,y,z);
+        return true;
+    }
+
+    /**
+     * Removes the block from the storage. See {@link #setBlock(int, int, int, Block)}
+     * @return whether the removal was successful. Returns false when out of bounds
+     */
+    protected abstract boolean removeBlock(int x, int y, int z);
     public boolean remove(XYZBlock XYZBlock) {
         return this.remove(XYZBlock.x, XYZBlock.y, XYZBlock.z);
     }
 
+    /**
+     * Sets every block in the column from fromZ to toZ (both inclusive) to the block.
+     * The parts outside the area are ignored. Much faster than setting the blocks one by one.
+     * @param block the block or null to remove the blocks
+     */
+    public final void fillColumn(int x, int y, int fromZ, int toZ, @Nullable Block block) {
+        fillBox(x, y, fromZ, x, y, toZ, block);
+    }
+
+    /**
+     * Sets every block in the box to the block. The coordinates are inclusive,
+     * and the parts of the box outside the area are ignored.
+     * @param block the block or null to remove the blocks
+     */
+    public final void fillBox(int fromX, int fromY, int fromZ, int toX, int toY, int toZ, @Nullable Block block) {
+        fromX = Math.max(fromX, 0); toX = Math.min(toX, width - 1);
+        fromY = Math.max(fromY, 0); toY = Math.min(toY, length - 1);
+        fromZ = Math.max(fromZ, 0); toZ = Math.min(toZ, height - 1);
+        if (fromX > toX || fromY > toY || fromZ > toZ) return;
+        fillBlocks(fromX, fromY, fromZ, toX, toY, toZ, BlockRegistry.idOf(block));
+        ChangeTracker changes = this.changes;
+        if (changes != null) changes.markBox(fromX, fromY, fromZ, toX, toY, toZ);
+        HeightMap heightMap = this.heightMap;
+        if (heightMap == null) return;
+        for (int x = fromX; x <= toX; x++) {
+            for (int y = fromY; y <= toY; y++) {
+                heightMap.columnFilled(x, y, fromZ, toZ, block);
+            }
+        }
+    }
+
+    /**
+     * Stores the block in every coordinate of the box. The box is inside the area. See {@link #setBlock(int, int, int, Block)}
+     * @param blockId the registry id of the block or {@link BlockRegistry#AIR}
+     */
+    protected void fillBlocks(int fromX, int fromY, int fromZ, int toX, int toY, int toZ, int blockId) {
+        for (int z = fromZ; z <= toZ; z++) {
+            for (int x = fromX; x <= toX; x++) {
+                for (int y = fromY; y <= toY; y++) {
+                    if (blockId == BlockRegistry.AIR) {
+                        removeBlock(x, y, z);
+                    } else {
+                        setBlock(x, y, z, blockId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the blocks of the (x,y) column that match the predicate with the block.
+     * The predicate only depends on the block, so implementations can test each kind of block once.
+     * @param predicate tested on every block in the column. Air is tested as null
+     * @param block the new block or null to remove the matching blocks
+     * @return the number of replaced blocks
+     */
+    public final int replaceInColumn(int x, int y, Predicate<Block> predicate, @Nullable Block block) {
+        if (!inRange(x, y, 0)) return 0;
+        int replaced = replaceInColumnBlocks(x, y, predicate, BlockRegistry.idOf(block));
+        HeightMap heightMap = this.heightMap;
+        if (heightMap != null && replaced > 0) heightMap.columnChanged(x, y);
+        ChangeTracker changes = this.changes;
+        if (changes != null && replaced > 0) changes.markBox(x, y, 0, x, y, height - 1);
+        return replaced;
+    }
+
+    /**
+     * Stores the block in place of the blocks of the column that match the predicate.
+     * See {@link #replaceInColumn(int, int, Predicate, Block)}
+     * @param blockId the registry id of the block or {@link BlockRegistry#AIR}
+     * @return the number of replaced blocks
+     */
+    protected int replaceInColumnBlocks(int x, int y, Predicate<Block> predicate, int blockId) {
+        int replaced = 0;
+        for (int z = 0; z < height; z++) {
+            if (!predicate.test(get(x, y, z))) continue;
+            if (blockId == BlockRegistry.AIR) {
+                removeBlock(x, y, z);
+            } else {
+                setBlock(x, y, z, blockId);
+            }
+            replaced++;
+        }
+        return replaced;
+    }
+
     /**
      * Gets a block in the coordinates. Returns null if there is no block (air)
      * @param x x
@@ -184,6 +341,18 @@ public abstract class Blocks implements Iterable<XYZBlock>{
         return numberOfBlocksWithClassificationInRadius(XYZBlock.x, XYZBlock.y, XYZBlock.z, classification, radius);
     }
 
+    /**
+     * Creates a snapshot that answers {@link #numberOfBlocksWithClassificationInRadius(int, int, int, Classification, int)}
+     * queries in constant time. Useful when the query is done for a large number of blocks.
+     * The snapshot doesn't see changes made after it was created.
+     * It takes two bytes per block for each classification, so only the needed classifications should be given.
+     * @param classifications the classifications to count
+     * @return the snapshot
+     */
+    public ClassificationCounts classificationCounts(Classification... classifications) {
+        return new ClassificationCounts(this, classifications);
+    }
+
     protected void addIfNotNull(List<XYZBlock> list, int x, int y, int z) {
         Block block = get(x, y, z);
         if (block != null) {
@@ -234,6 +403,88 @@ public abstract class Blocks implements Iterable<XYZBlock>{
     }
 
 
+    private void runIfNotNull(BlockAction action, int x, int y, int z) {
+        Block block = get(x, y, z);
+        if (block != null) {
+            action.run(x,y,z, block);
+        }
+    }
+
+    /**
+     * Runs the action on the blocks that touch the block at x,y,z. Air blocks are skipped.
+     * Same blocks in the same order as {@link #neighborsList(int, int, int)}, but without allocating anything.
+     * @param x x
+     * @param y y
+     * @param z z
+     * @param action the action. The block is never null
+     */
+    public void forEachNeighbor(int x, int y, int z, BlockAction action) {
+        runIfNotNull(action, x-1, y, z);
+        runIfNotNull(action, x+1, y, z);
+        runIfNotNull(action, x, y-1, z);
+        runIfNotNull(action, x, y+1, z);
+        runIfNotNull(action, x, y, z-1);
+        runIfNotNull(action, x, y, z+1);
+    }
+
+    /**
+     * Same as {@link #forEachNeighbor(int, int, int, BlockAction)} but only in the x and y directions.
+     * See {@link #xyNeighborsList(int, int, int)}
+     */
+    public void forEachXYNeighbor(int x, int y, int z, BlockAction action) {
+        runIfNotNull(action, x-1, y, z);
+        runIfNotNull(action, x+1, y, z);
+        runIfNotNull(action, x, y-1, z);
+        runIfNotNull(action, x, y+1, z);
+    }
+
+    private int fillIfNotNull(XYZBlock[] buffer, int count, int x, int y, int z) {
+        Block block = get(x, y, z);
+        if (block == null) return count;
+        XYZBlock XYZBlock = buffer[count];
+        if (XYZBlock == null) {
+            buffer[count] = new XYZBlock(x,y,z, block);
+        } else {
+            XYZBlock.x = x;
+            XYZBlock.y = y;
+            XYZBlock.z = z;
+            XYZBlock.block = block;
+        }
+        return count + 1;
+    }
+
+    /**
+     * Fills the buffer with the blocks that touch the block at x,y,z.
+     * Same blocks in the same order as {@link #neighborsList(int, int, int)}, but the
+     * {@link XYZBlock} objects in the buffer are reused, so calling this in a loop doesn't allocate anything.
+     * @param x x
+     * @param y y
+     * @param z z
+     * @param buffer array with a length of at least 6. Null elements are filled with new objects
+     * @return the number of neighbors written to the start of the buffer
+     */
+    public int neighbors(int x, int y, int z, XYZBlock[] buffer) {
+        int count = xyNeighbors(x, y, z, buffer);
+        count = fillIfNotNull(buffer, count, x, y, z-1);
+        count = fillIfNotNull(buffer, count, x, y, z+1);
+        return count;
+    }
+
+    /**
+     * Same as {@link #neighbors(int, int, int, XYZBlock[])} but only in the x and y directions.
+     * See {@link #xyNeighborsList(int, int, int)}
+     * @param buffer array with a length of at least 4
+     * @return the number of neighbors written to the start of the buffer
+     */
+    public int xyNeighbors(int x, int y, int z, XYZBlock[] buffer) {
+        int count = 0;
+        count = fillIfNotNull(buffer, count, x-1, y, z);
+        count = fillIfNotNull(buffer, count, x+1, y, z);
+        count = fillIfNotNull(buffer, count, x, y-1, z);
+        count = fillIfNotNull(buffer, count, x, y+1, z);
+        return count;
+    }
+
     /**
      * Returns a {@link GroundLayer} built from the data.
      * The ground layer object requires that at every (x,y) column there must
@@ -243,30 +494,60 @@ public abstract class Blocks implements Iterable<XYZBlock>{
      * @return GroundLayer
      */
     public GroundLayer getGroundLayer() {
-        return new GroundLayer(getGroundLayerIncomplete());
+        return new GroundLayer(this);
+    }
+
+    private HeightMap heightMap() {
+        HeightMap heightMap = this.heightMap;
+        if (heightMap != null) return heightMap;
+        synchronized (this) {
+            if (this.heightMap == null) {
+                this.heightMap = new HeightMap(this);
+            }
+            return this.heightMap;
+        }
+    }
+
+    /**
+     * Returns the z-coordinate of the highest ground block ({@link Classification#GROUND} or {@link Classification#WATER})
+     * in the (x,y) column. The heights are kept up to date when blocks are set, so this doesn't scan the column.<br>
+     * The heights are calculated when this or {@link #getGroundLayer()} is called for the first time.
+     * That should not be done while other threads are modifying the blocks.
+     * @param x x
+     * @param y y
+     * @return the z-coordinate or -1 if the column doesn't have any ground blocks
+     */
+    public int getGroundHeight(int x, int y) {
+        return heightMap().groundZ(x,y);
     }
 
-    private boolean isGroundBlock(Block block) {
-        if (block == null) return false;
-        return block.classification() == Classification.GROUND || block.classification() == Classification.WATER;
+    /**
+     * Returns the z-coordinate of the highest block of any kind in the (x,y) column.
+     * See {@link #getGroundHeight(int, int)}
+     * @param x x
+     * @param y y
+     * @return the z-coordinate or -1 if the column only contains air
+     */
+    public int getHighestBlockHeight(int x, int y) {
+        return heightMap().topZ(x,y);
     }
+
     /**
-     * Finds the highest ground block {@link Classification#GROUND} in each (x,y) column.
+     * Finds the highest ground block ({@link Classification#GROUND} or {@link Classification#WATER}) in each (x,y) column.
      * However, the 2d array may contain null values if the column does not have any ground blocks.
      * Use {@link #getGroundLayer()} to get a {@link GroundLayer} object that is guaranteed to
      * have a ground block in every column.
      * @return The x,y array that contains the {@link XYZBlock} representing the highest ground block
+     * @see #getGroundHeight(int, int)
      */
     public XYZBlock[][] getGroundLayerIncomplete() {
+        HeightMap heightMap = heightMap();
         XYZBlock[][] ar = new XYZBlock[getWidth()][getLength()];
         for (int x = 0; x < getWidth(); x++) {
             for (int y = 0; y < getLength(); y++) {
-                for (int z = getHeight()-1; z >= 0; z--) {
-                    Block block = get(x,y,z);
-                    if (isGroundBlock(block)) {
-                        ar[x][y] = new XYZBlock(x,y,z, block);
-                        break; //the highest block has been found
-                    }
+                int z = heightMap.groundZ(x,y);
+                if (z != -1) {
+                    ar[x][y] = new XYZBlock(x,y,z, get(x,y,z));
                 }
             }
         }
@@ -282,13 +563,15 @@ public abstract class Blocks implements Iterable<XYZBlock>{
 
     /**
      * Runs the action on every block in the area.
-     * The blocks will not be processed in any specific order
+     * The blocks will not be processed in any specific order.
+     * The default implementation goes through the layers from the bottom and y changes the fastest,
+     * which is the order of the blocks in memory and in {@link BlockData}
      * @param action action
      */
     public void forEach(BlockAction action) {
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < length; y++) {
-                for (int z = 0; z < height; z++) {
+        for (int z = 0; z < height; z++) {
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < length; y++) {
                     action.run(x,y,z, get(x,y,z));
                 }
             }
@@ -303,14 +586,17 @@ public abstract class Blocks implements Iterable<XYZBlock>{
     }
     /**
      * Runs the action on every block in the area and replaces the block with whatever the action returns.
-     * The blocks will not be processed in any specific order
+     * The blocks will not be processed in any specific order.
+     * Blocks are only written if the action returns something else than the current block
      * @param action action
      */
     public void forEachSet(BlockSetAction action) {
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < length; y++) {
-                for (int z = 0; z < height; z++) {
-                    Block block = action.run(x,y,z, get(x,y,z));
+        for (int z = 0; z < height; z++) {
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < length; y++) {
+                    Block previous = get(x,y,z);
+                    Block block = action.run(x,y,z, previous);
+                    if (Objects.equals(block, previous)) continue;
                     if (block != null) {
                         set(x,y,z, block);
                     } else {
@@ -321,6 +607,271 @@ public abstract class Blocks implements Iterable<XYZBlock>{
         }
     }
 
+    /**
+     * Starts remembering which parts of the area change, so that only the changed parts have to be saved,
+     * see {@link BlocksDelta}. Calling this again forgets the earlier changes.
+     * Changes are tracked at the granularity of {@value ChangeTracker#BRICK_SIZE}^3 bricks, and a brick counts
+     * as changed when a block in it is set, even if the block was the same as before.
+     */
+    public final void trackChanges() {
+        this.changes = new ChangeTracker(width, length, height);
+    }
+
+    /**
+     * Stops tracking the changes. See {@link #trackChanges()}
+     */
+    public final void stopTrackingChanges() {
+        this.changes = null;
+    }
+
+    public final boolean isTrackingChanges() {
+        return changes != null;
+    }
+
+    ChangeTracker changes() {
+        return changes;
+    }
+
+    /**
+     * Replaces every block that is a key in the map with the value, as if all the blocks were replaced at the same time.
+     * So swapping two blocks works. Implementations with a palette only change the palette and don't touch the blocks,
+     * others go through the whole area with {@link #forEachSet(BlockSetAction)}.<br>
+     * Must not be called while other threads modify the blocks.
+     * @param replacements the old blocks mapped to the new blocks. A null value removes the block
+     */
+    public final void replaceAll(Map<Block, Block> replacements) {
+        if (replacements.isEmpty()) return;
+        //removing blocks can't be done in the palette
+        boolean removes = false;
+        for (Block block : replacements.values()) {
+            if (block == null) removes = true;
+        }
+        if (removes || !replaceInPalette(replacements)) {
+            forEachSet((x, y, z, block) -> block == null ? null : replacements.getOrDefault(block, block));
+            return;
+        }
+        //the palette doesn't tell where the replaced blocks are
+        ChangeTracker changes = this.changes;
+        if (changes != null) changes.markAll();
+        for (Map.Entry<Block, Block> entry : replacements.entrySet()) {
+            if (entry.getKey().classification() != entry.getValue().classification()) {
+                //the ground may have changed, so the height map is built again when it is needed
+                this.heightMap = null;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Replaces the blocks by changing only the palette. See {@link #replaceAll(Map)}
+     * @param replacements the old blocks mapped to the new blocks. The values are never null
+     * @return false if the implementation can't do it, in which case every block is replaced one by one
+     */
+    protected boolean replaceInPalette(Map<Block, Block> replacements) {
+        return false;
+    }
+
+    /**
+     * Runs an action on the x-coordinates from fromX (inclusive) to toX (exclusive). See {@link #forEachSlab(ForkJoinPool, int, SlabAction)}
+     */
+    public interface SlabAction {
+        void run(int fromX, int toX);
+    }
+
+    /**
+     * Runs an action on an (x,y) column
+     */
+    public interface ColumnAction {
+        void run(int x, int y);
+    }
+
+    /**
+     * Splits the area into slabs along the x-axis and runs the action on the slabs in the pool.
+     * The action may write blocks inside its slab and read blocks at most halo blocks outside of it.
+     * When the halo is larger than zero, every other slab is processed first, and then the rest of them,
+     * so that no slab is modified while another worker is reading it. <br>
+     * Runs the action on the whole area in the calling thread if the pool is null or
+     * the implementation can not be modified from multiple threads. <br>
+     * The result is the same as running the pass sequentially as long as the action does not depend on the order
+     * in which the blocks are processed, for example, when it only modifies the (x,y) column it is processing
+     * or makes its decisions based on a snapshot like {@link ClassificationCounts}.
+     * @param pool the pool or null to run the action in the calling thread
+     * @param halo the number of blocks the action reads outside its slab along the x-axis
+     * @param action action
+     */
+    public void forEachSlab(@Nullable ForkJoinPool pool, int halo, SlabAction action) {
+        int alignment = parallelSlabAlignment();
+        if (pool == null || alignment <= 0 || pool.getParallelism() <= 1) {
+            action.run(0, width);
+            return;
+        }
+        //the workers should not build the height map at the same time as others are modifying the blocks
+        heightMap();
+        int slabs = pool.getParallelism() * SLABS_PER_THREAD;
+        int slabWidth = Math.max(Math.max(halo, 1), (width + slabs - 1) / slabs);
+        slabWidth = (slabWidth + alignment - 1) / alignment * alignment;
+        if (slabWidth >= width) {
+            action.run(0, width);
+            return;
+        }
+        if (halo <= 0) {
+            runSlabs(pool, action, slabWidth, 0, 1);
+        } else {
+            runSlabs(pool, action, slabWidth, 0, 2);
+            runSlabs(pool, action, slabWidth, 1, 2);
+        }
+    }
+    private static final int SLABS_PER_THREAD = 4;
+
+    private void runSlabs(ForkJoinPool pool, SlabAction action, int slabWidth, int first, int step) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int fromX = first * slabWidth; fromX < width; fromX += step * slabWidth) {
+            int from = fromX;
+            int to = Math.min(width, fromX + slabWidth);
+            tasks.add(pool.submit(() -> action.run(from, to)));
+        }
+        //rethrows the exceptions of the action
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    /**
+     * Runs the action on every (x,y) column. The columns are divided between the threads of the pool.
+     * See {@link #forEachSlab(ForkJoinPool, int, SlabAction)}
+     * @param pool the pool or null to run the action in the calling thread
+     * @param halo the number of blocks the action reads outside its column along the x-axis
+     * @param action action
+     */
+    public void forEachColumn(@Nullable ForkJoinPool pool, int halo, ColumnAction action) {
+        forEachSlab(pool, halo, (fromX, toX) -> {
+            for (int x = fromX; x < toX; x++) {
+                for (int y = 0; y < length; y++) {
+                    action.run(x, y);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the action on every block in the area. The blocks are divided between the threads of the pool.
+     * See {@link #forEachSlab(ForkJoinPool, int, SlabAction)}
+     * @param pool the pool or null to run the action in the calling thread
+     * @param halo the number of blocks the action reads outside its block along the x-axis
+     * @param action action
+     */
+    public void forEach(@Nullable ForkJoinPool pool, int halo, BlockAction action) {
+        forEachSlab(pool, halo, (fromX, toX) -> {
+            for (int z = 0; z < height; z++) {
+                for (int x = fromX; x < toX; x++) {
+                    for (int y = 0; y < length; y++) {
+                        action.run(x,y,z, get(x,y,z));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether different slabs of the area can be modified from different threads at the same time.
+     * @return 0 if the implementation is not thread safe or the number the x-coordinates of the slabs
+     * have to be divisible by
+     */
+    protected int parallelSlabAlignment() {
+        return 0;
+    }
+
+    private static final int STRIPE_WIDTH = 64;
+    //created when a region is locked for the first time
+    private volatile ReentrantLock[] stripes;
+    private int stripeWidth;
+
+    private ReentrantLock[] stripes() {
+        ReentrantLock[] stripes = this.stripes;
+        if (stripes != null) return stripes;
+        synchronized (this) {
+            if (this.stripes == null) {
+                int alignment = parallelSlabAlignment();
+                //implementations that are not thread safe only have one stripe
+                stripeWidth = alignment <= 0 ? Math.max(1, width)
+                        : (STRIPE_WIDTH + alignment - 1) / alignment * alignment;
+                ReentrantLock[] locks = new ReentrantLock[Math.max(1, (width + stripeWidth - 1) / stripeWidth)];
+                for (int i = 0; i < locks.length; i++) {
+                    locks[i] = new ReentrantLock();
+                }
+                this.stripes = locks;
+            }
+            return this.stripes;
+        }
+    }
+
+    /**
+     * A lock on the x-coordinates from {@link #fromX()} to {@link #toX()} (inclusive).
+     * The locked region may be larger than the requested one. See {@link #lockRegion(int, int)}
+     */
+    public final class RegionLock implements AutoCloseable {
+        private final int firstStripe, lastStripe;
+
+        private RegionLock(int firstStripe, int lastStripe) {
+            this.firstStripe = firstStripe;
+            this.lastStripe = lastStripe;
+        }
+
+        public int fromX() {
+            return firstStripe * stripeWidth;
+        }
+
+        public int toX() {
+            return Math.min(width, (lastStripe + 1) * stripeWidth) - 1;
+        }
+
+        /**
+         * @return whether the x-coordinate is inside the locked region
+         */
+        public boolean contains(int x) {
+            return x >= fromX() && x <= toX();
+        }
+
+        /**
+         * Releases the lock
+         */
+        @Override
+        public void close() {
+            ReentrantLock[] stripes = stripes();
+            for (int i = lastStripe; i >= firstStripe; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Locks the x-coordinates from fromX to toX (inclusive) so that only the calling thread can modify or read
+     * the blocks in the region while other threads work on other regions.
+     * The area is divided into stripes along the x-axis and the stripes are always locked in the same order,
+     * so two threads can't end up waiting for each other. Implementations that can not be modified from multiple threads
+     * at the same time (see {@link #parallelSlabAlignment()}) only have one stripe, so the whole area is locked.<br>
+     * The locks are reentrant, but a thread should not lock a new region while holding another one.
+     * <pre>{@code
+     * try (Blocks.RegionLock lock = blocks.lockRegion(minX, maxX)) {
+     *     blocks.set(x,y,z, block);
+     * }
+     * }</pre>
+     * @param fromX the smallest x-coordinate. Clamped to the area
+     * @param toX the largest x-coordinate. Clamped to the area
+     * @return the lock that must be closed after the region has been processed
+     */
+    public RegionLock lockRegion(int fromX, int toX) {
+        ReentrantLock[] stripes = stripes();
+        //the workers should not build the height map at the same time as others are modifying the blocks
+        heightMap();
+        int first = Math.max(0, Math.min(stripes.length - 1, fromX / stripeWidth));
+        int last = Math.max(first, Math.min(stripes.length - 1, toX / stripeWidth));
+        for (int i = first; i <= last; i++) {
+            stripes[i].lock();
+        }
+        return new RegionLock(first, last);
+    }
+
     /**
      * Data format for storing blocks. Same for all implementations of {@link Blocks}<br>
      * mimics the format of .schematic files.
@@ -331,6 +882,23 @@ public abstract class Blocks implements Iterable<XYZBlock>{
                             int minX, int minY, int minZ) {}
 
     public abstract Iterator<XYZBlock> getIterator(boolean bottomToUp);
+
+    /**
+     * Returns a window to a box inside the area. The view has its own coordinates starting from zero,
+     * and reads and writes the blocks of this object without copying them.
+     * Useful for working on one building or one tree at a time.
+     * @param box the box in the coordinates of this object. x, y and z are the smallest coordinates
+     *            and w, l and h the size of the box
+     * @return the view
+     * @throws IllegalArgumentException if the box is not inside the area
+     */
+    public Blocks view(IntBoundingBox3D box) {
+        if (box.x() < 0 || box.y() < 0 || box.z() < 0 || box.w() < 0 || box.l() < 0 || box.h() < 0
+                || box.x() + box.w() > width || box.y() + box.l() > length || box.z() + box.h() > height) {
+            throw new IllegalArgumentException("The view " + box + " is not inside the area " + width + "*" + length + "*" + height);
+        }
+        return new BlocksView(this, box.x(), box.y(), box.z(), box.w(), box.l(), box.h());
+    }
     /**
      * Returns an {@link BlockData} object that represents the data.
      * The format of the {@link BlockData} mimics the format of .schematic files
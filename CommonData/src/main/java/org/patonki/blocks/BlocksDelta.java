@@ -0,0 +1,160 @@
+package org.patonki.blocks;
+
+import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
+import org.patonki.data.Classification;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores only the parts of the blocks that have changed since {@link Blocks#trackChanges()} was called.<br>
+ * Most steps only change a small part of the area, so saving the changed bricks is much faster and smaller
+ * than saving all the blocks again. The delta is applied on top of the blocks as they were when the tracking started.
+ * <br><br>
+ * The format is the magic number, the dimensions and the min coordinates of the area, the palette
+ * (3 bytes per block like in {@link BlockPalette}) and the number of changed bricks. Every brick is its index
+ * and one palette index per block in z, x, y order. Index 0 is air and index i is palette block i-1.
+ */
+public final class BlocksDelta {
+    //"DLTA"
+    private static final int MAGIC = 0x444C5441;
+    private static final int BRICK_VOLUME = ChangeTracker.BRICK_SIZE * ChangeTracker.BRICK_SIZE * ChangeTracker.BRICK_SIZE;
+    //a delta with more changes than this isn't much smaller than the blocks, so it isn't worth reading two files
+    private static final double MAX_CHANGED_FRACTION = 0.5;
+
+    private BlocksDelta() {}
+
+    /**
+     * Serializes the changed bricks of the blocks
+     * @param blocks blocks whose changes are {@link Blocks#trackChanges() tracked}
+     * @return the delta or null if the changes aren't tracked or so large that the blocks should be saved instead
+     */
+    public static byte[] serialize(Blocks blocks) {
+        ChangeTracker changes = blocks.changes();
+        if (changes == null) return null;
+        int changed = changes.dirtyCount();
+        if (changed > changes.brickCount() * MAX_CHANGED_FRACTION) return null;
+
+        //the palette index + 1 of every registry id, 0 if not in the palette yet
+        int[] paletteIndexes = new int[BlockRegistry.size()];
+        List<Block> palette = new ArrayList<>();
+        byte[] bricks = new byte[changed * BRICK_VOLUME];
+        int[] brickIndexes = new int[changed];
+        int written = 0;
+        for (int brick = 0; brick < changes.brickCount(); brick++) {
+            if (!changes.isDirty(brick)) continue;
+            int offset = written * BRICK_VOLUME;
+            brickIndexes[written++] = brick;
+            int fromY = (brick % changes.bricksY) << ChangeTracker.BRICK_SHIFT;
+            int fromX = (brick / changes.bricksY % changes.bricksX) << ChangeTracker.BRICK_SHIFT;
+            int fromZ = (brick / changes.bricksY / changes.bricksX) << ChangeTracker.BRICK_SHIFT;
+            int i = 0;
+            for (int z = fromZ; z < fromZ + ChangeTracker.BRICK_SIZE; z++) {
+                for (int x = fromX; x < fromX + ChangeTracker.BRICK_SIZE; x++) {
+                    for (int y = fromY; y < fromY + ChangeTracker.BRICK_SIZE; y++, i++) {
+                        //the parts of the edge bricks outside the area are left as air
+                        int id = blocks.getId(x, y, z);
+                        if (id == BlockRegistry.AIR) continue;
+                        if (id >= paletteIndexes.length) paletteIndexes = Arrays.copyOf(paletteIndexes, BlockRegistry.size());
+                        int index = paletteIndexes[id];
+                        if (index == 0) {
+                            palette.add(BlockRegistry.get(id));
+                            //the same limit as the palettes of the blocks
+                            if (palette.size() > 255) return null;
+                            index = paletteIndexes[id] = palette.size();
+                        }
+                        bricks[offset + i] = (byte) index;
+                    }
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(bricks.length + changed * 4 + palette.size() * 3 + 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(blocks.getWidth());
+            out.writeInt(blocks.getLength());
+            out.writeInt(blocks.getHeight());
+            out.writeInt(blocks.getMinX());
+            out.writeInt(blocks.getMinY());
+            out.writeInt(blocks.getMinZ());
+            out.writeShort(palette.size());
+            for (Block block : palette) {
+                out.writeByte(block.id());
+                out.writeByte(block.data());
+                out.writeByte(Classification.index(block.classification()));
+            }
+            out.writeInt(changed);
+            for (int brick = 0; brick < changed; brick++) {
+                out.writeInt(brickIndexes[brick]);
+                out.write(bricks, brick * BRICK_VOLUME, BRICK_VOLUME);
+            }
+        } catch (IOException e) {
+            //a byte array stream doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the bricks of the blocks with the bricks of the delta
+     * @param blocks the blocks as they were when the changes started to be tracked or a box inside them,
+     *               like a {@link Blocks#view(org.patonki.data.IntBoundingBox3D) view}. Only the part of the delta
+     *               inside the box is applied
+     * @param in the delta written with {@link #serialize(Blocks)}
+     * @throws IOException if reading fails or the blocks are not inside the area of the delta
+     */
+    public static void apply(Blocks blocks, InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) throw new IOException("Not a delta");
+        int width = data.readInt(), length = data.readInt(), height = data.readInt();
+        int minX = data.readInt(), minY = data.readInt(), minZ = data.readInt();
+        //the position of the blocks in the area of the delta
+        int offsetX = blocks.getMinX() - minX, offsetY = blocks.getMinY() - minY, offsetZ = blocks.getMinZ() - minZ;
+        if (offsetX < 0 || offsetY < 0 || offsetZ < 0 || offsetX + blocks.getWidth() > width
+                || offsetY + blocks.getLength() > length || offsetZ + blocks.getHeight() > height) {
+            throw new IOException("The blocks are not inside the area of the delta");
+        }
+        int paletteSize = data.readUnsignedShort();
+        int[] ids = new int[paletteSize + 1];
+        for (int i = 1; i <= paletteSize; i++) {
+            byte id = data.readByte();
+            byte blockData = data.readByte();
+            int classification = data.readUnsignedByte();
+            if (classification >= Classification.values().length) throw new IOException("Unknown classification " + classification);
+            ids[i] = BlockRegistry.idOf(new Block(id, blockData, Classification.values()[classification]));
+        }
+        ChangeTracker bricks = new ChangeTracker(width, length, height);
+        int changed = data.readInt();
+        byte[] brick = new byte[BRICK_VOLUME];
+        for (int b = 0; b < changed; b++) {
+            int index = data.readInt();
+            if (index < 0 || index >= bricks.brickCount()) throw new IOException("Brick " + index + " is outside the area");
+            data.readFully(brick);
+            int fromY = (index % bricks.bricksY) << ChangeTracker.BRICK_SHIFT;
+            int fromX = (index / bricks.bricksY % bricks.bricksX) << ChangeTracker.BRICK_SHIFT;
+            int fromZ = (index / bricks.bricksY / bricks.bricksX) << ChangeTracker.BRICK_SHIFT;
+            //the part of the brick inside the blocks
+            int startX = Math.max(fromX, offsetX), endX = Math.min(fromX + ChangeTracker.BRICK_SIZE, offsetX + blocks.getWidth());
+            int startY = Math.max(fromY, offsetY), endY = Math.min(fromY + ChangeTracker.BRICK_SIZE, offsetY + blocks.getLength());
+            int startZ = Math.max(fromZ, offsetZ), endZ = Math.min(fromZ + ChangeTracker.BRICK_SIZE, offsetZ + blocks.getHeight());
+            for (int z = startZ; z < endZ; z++) {
+                for (int x = startX; x < endX; x++) {
+                    int i = ((z - fromZ) * ChangeTracker.BRICK_SIZE + (x - fromX)) * ChangeTracker.BRICK_SIZE + (startY - fromY);
+                    for (int y = startY; y < endY; y++, i++) {
+                        int paletteIndex = brick[i] & 0xFF;
+                        if (paletteIndex > paletteSize) throw new IOException("Palette index " + paletteIndex + " is out of bounds");
+                        blocks.set(x - offsetX, y - offsetY, z - offsetZ, ids[paletteIndex]);
+                    }
+                }
+            }
+        }
+    }
+}
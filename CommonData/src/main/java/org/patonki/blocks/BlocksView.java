@@ -0,0 +1,146 @@
+package org.patonki.blocks;
+
+import org.jetbrains.annotations.NotNull;
+import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
+import org.patonki.data.Classification;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A box inside another {@link Blocks} object that uses its own coordinates starting from zero.
+ * The blocks are read from and written to the parent, nothing is copied.<br>
+ * The height map of the view is separate from the parent, so it doesn't see changes made through the parent
+ * after it was built. The view uses the palette of the parent, so {@link #replaceAll(java.util.Map)}
+ * replaces the blocks one by one.
+ * @see Blocks#view(org.patonki.data.IntBoundingBox3D)
+ */
+final class BlocksView extends Blocks {
+    private final Blocks parent;
+    //the position of the view in the coordinates of the parent
+    private final int offsetX, offsetY, offsetZ;
+
+    BlocksView(Blocks parent, int x, int y, int z, int width, int length, int height) {
+        super(width, length, height, parent.getMinX() + x, parent.getMinY() + y, parent.getMinZ() + z, parent.getSideLength());
+        this.parent = parent;
+        this.offsetX = x;
+        this.offsetY = y;
+        this.offsetZ = z;
+    }
+
+    @Override
+    protected boolean setBlock(int x, int y, int z, @NotNull Block block) {
+        return inRange(x,y,z) && parent.set(x + offsetX, y + offsetY, z + offsetZ, block);
+    }
+
+    @Override
+    protected boolean setBlock(int x, int y, int z, int blockId) {
+        return inRange(x,y,z) && parent.set(x + offsetX, y + offsetY, z + offsetZ, blockId);
+    }
+
+    @Override
+    protected boolean removeBlock(int x, int y, int z) {
+        return inRange(x,y,z) && parent.remove(x + offsetX, y + offsetY, z + offsetZ);
+    }
+
+    @Override
+    protected void fillBlocks(int fromX, int fromY, int fromZ, int toX, int toY, int toZ, int blockId) {
+        parent.fillBox(fromX + offsetX, fromY + offsetY, fromZ + offsetZ, toX + offsetX, toY + offsetY, toZ + offsetZ,
+                BlockRegistry.get(blockId));
+    }
+
+    @Override
+    public Block get(int x, int y, int z) {
+        if (!inRange(x,y,z)) return null;
+        return parent.get(x + offsetX, y + offsetY, z + offsetZ);
+    }
+
+    @Override
+    public int getId(int x, int y, int z) {
+        if (!inRange(x,y,z)) return BlockRegistry.AIR;
+        return parent.getId(x + offsetX, y + offsetY, z + offsetZ);
+    }
+
+    @Override
+    public boolean isAir(int x, int y, int z) {
+        return !inRange(x,y,z) || parent.isAir(x + offsetX, y + offsetY, z + offsetZ);
+    }
+
+    @Override
+    public boolean hasClassification(int x, int y, int z, Classification classification) {
+        return inRange(x,y,z) && parent.hasClassification(x + offsetX, y + offsetY, z + offsetZ, classification);
+    }
+
+    //the slabs of the view only line up with the slabs of the parent if the offset is a multiple of the alignment
+    @Override
+    protected int parallelSlabAlignment() {
+        int alignment = parent.parallelSlabAlignment();
+        if (alignment <= 0 || offsetX % alignment != 0) return 0;
+        return alignment;
+    }
+
+    @Override
+    public Iterator<XYZBlock> iterator() {
+        return new ViewIterator(true);
+    }
+
+    @Override
+    public Iterator<XYZBlock> getIterator(boolean bottomToUp) {
+        return new ViewIterator(bottomToUp);
+    }
+
+    /**
+     * @return 0, because the blocks are stored in the parent
+     */
+    @Override
+    public int size() {
+        return 0;
+    }
+
+    /**
+     * Iterates over the blocks of the view one z-layer at a time. The next block is searched for
+     * when {@link #hasNext()} is called, so blocks can be set and removed during the iteration.
+     */
+    private class ViewIterator implements Iterator<XYZBlock> {
+        private int x, y, z;
+        private final int zStep;
+        private final XYZBlock XYZBlock = new XYZBlock(0,0,0, null);
+
+        private ViewIterator(boolean bottomToUp) {
+            this.zStep = bottomToUp ? 1 : -1;
+            this.z = bottomToUp ? 0 : height - 1;
+        }
+        private void findNext() {
+            while (z >= 0 && z < height) {
+                if (y >= length) {
+                    y = 0; x++;
+                    if (x >= width) {
+                        x = 0; z += zStep;
+                    }
+                } else if (isAir(x,y,z)) {
+                    y++;
+                } else {
+                    return;
+                }
+            }
+        }
+        @Override
+        public boolean hasNext() {
+            findNext();
+            return z >= 0 && z < height;
+        }
+
+        @Override
+        public XYZBlock next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            this.XYZBlock.x = x;
+            this.XYZBlock.y = y;
+            this.XYZBlock.z = z;
+            this.XYZBlock.block = get(x,y,z);
+            y++;
+            return this.XYZBlock;
+        }
+    }
+}
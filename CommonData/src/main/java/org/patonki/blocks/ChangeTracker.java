@@ -0,0 +1,73 @@
+package org.patonki.blocks;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers which bricks of {@link #BRICK_SIZE}^3 blocks have changed. Used by {@link Blocks#trackChanges()}.<br>
+ * One bit per brick, so the tracker is tiny compared to the blocks. The bits are set atomically,
+ * because the blocks are modified by several threads at the same time.
+ */
+final class ChangeTracker {
+    static final int BRICK_SHIFT = 4;
+    static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+    final int bricksX, bricksY, bricksZ;
+    private final AtomicLongArray dirty;
+
+    ChangeTracker(int width, int length, int height) {
+        this.bricksX = (width + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.bricksY = (length + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.bricksZ = (height + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.dirty = new AtomicLongArray((brickCount() + 63) >> 6);
+    }
+
+    int brickCount() {
+        return bricksX * bricksY * bricksZ;
+    }
+
+    private int brick(int bx, int by, int bz) {
+        return (bz * bricksX + bx) * bricksY + by;
+    }
+
+    private void markBrick(int brick) {
+        int word = brick >> 6;
+        long bit = 1L << brick;
+        //most changes are to bricks that have already changed, so the atomic write is skipped for them
+        if ((dirty.get(word) & bit) != 0) return;
+        dirty.getAndAccumulate(word, bit, (a, b) -> a | b);
+    }
+
+    void mark(int x, int y, int z) {
+        markBrick(brick(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT));
+    }
+
+    /**
+     * Marks the bricks of the box. The coordinates are inclusive and inside the area
+     */
+    void markBox(int fromX, int fromY, int fromZ, int toX, int toY, int toZ) {
+        for (int bz = fromZ >> BRICK_SHIFT; bz <= toZ >> BRICK_SHIFT; bz++) {
+            for (int bx = fromX >> BRICK_SHIFT; bx <= toX >> BRICK_SHIFT; bx++) {
+                for (int by = fromY >> BRICK_SHIFT; by <= toY >> BRICK_SHIFT; by++) {
+                    markBrick(brick(bx, by, bz));
+                }
+            }
+        }
+    }
+
+    void markAll() {
+        for (int i = 0; i < dirty.length(); i++) {
+            dirty.set(i, -1L);
+        }
+    }
+
+    boolean isDirty(int brick) {
+        return (dirty.get(brick >> 6) & (1L << brick)) != 0;
+    }
+
+    int dirtyCount() {
+        int count = 0;
+        for (int i = 0; i < brickCount(); i++) {
+            if (isDirty(i)) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,273 @@
+package org.patonki.blocks;
+
+import org.jetbrains.annotations.NotNull;
+import org.patonki.blocks.sections.Section;
+import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
+import org.patonki.data.BlockSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An implementation of {@link Blocks}
+ * that divides the area into 16*16*16 {@link Section}s. <br>
+ * Sections that only contain air are not stored at all and sections that contain only one kind of block
+ * (for example, stone below the ground) are stored without an array.
+ * Other sections bit-pack their blocks using only as many bits as they need.
+ * This uses several times less memory than {@link ArrayBlocks} on typical areas that are mostly air or ground.<br>
+ * Because of memory limitations, this class only supports up to 255 different
+ * types of blocks.
+ */
+public class ChunkedBlocks extends Blocks {
+    private static final int SHIFT = 4; // 2^4 = Section.SIZE
+    private static final int MASK = Section.SIZE - 1;
+
+    private final BlockPalette pallet = new BlockPalette();
+    private final Section[] sections; //null means that the section only has air
+    private final int sectionsX, sectionsY, sectionsZ;
+
+    /**
+     * @see Blocks#Blocks(int, int, int, int, int, int, int)
+     */
+    public ChunkedBlocks(int width, int length, int height, int minX, int minY, int minZ, int sideLength) {
+        super(width, length, height, minX, minY, minZ, sideLength);
+        this.sectionsX = (width + MASK) >> SHIFT;
+        this.sectionsY = (length + MASK) >> SHIFT;
+        this.sectionsZ = (height + MASK) >> SHIFT;
+        this.sections = new Section[sectionsX * sectionsY * sectionsZ];
+    }
+
+    private int sectionIndex(int x, int y, int z) {
+        return ((z >> SHIFT) * sectionsX + (x >> SHIFT)) * sectionsY + (y >> SHIFT);
+    }
+
+    private static int localIndex(int x, int y, int z) {
+        return Section.index(x & MASK, y & MASK, z & MASK);
+    }
+
+    @Override
+    protected boolean setBlock(int x, int y, int z, @NotNull Block block) {
+        if (!inRange(x,y,z)) return false;
+        store(x,y,z, pallet.indexOf(block));
+        return true;
+    }
+
+    @Override
+    protected boolean setBlock(int x, int y, int z, int blockId) {
+        if (!inRange(x,y,z)) return false;
+        store(x,y,z, pallet.indexOf(blockId));
+        return true;
+    }
+
+    private void store(int x, int y, int z, byte index) {
+        int sectionIndex = sectionIndex(x,y,z);
+        Section section = sections[sectionIndex];
+        if (section == null) {
+            section = sections[sectionIndex] = new Section((byte) 0);
+        }
+        section.set(localIndex(x,y,z), index);
+    }
+
+    @Override
+    protected boolean removeBlock(int x, int y, int z) {
+        if (!inRange(x,y,z)) return false;
+        int sectionIndex = sectionIndex(x,y,z);
+        Section section = sections[sectionIndex];
+        if (section == null) return true;
+
+        section.set(localIndex(x,y,z), (byte) 0);
+        //dropping sections that only have air
+        if (section.isUniform() && section.uniformValue() == 0) {
+            sections[sectionIndex] = null;
+        }
+        return true;
+    }
+
+    @Override
+    public Block get(int x, int y, int z) {
+        if (!inRange(x,y,z)) return null;
+        Section section = sections[sectionIndex(x,y,z)];
+        if (section == null) return null;
+        return pallet.get(section.get(localIndex(x,y,z)));
+    }
+
+    @Override
+    public int getId(int x, int y, int z) {
+        if (!inRange(x,y,z)) return BlockRegistry.AIR;
+        Section section = sections[sectionIndex(x,y,z)];
+        if (section == null) return BlockRegistry.AIR;
+        return pallet.blockId(section.get(localIndex(x,y,z)));
+    }
+
+    /**
+     * @return the number of bytes used by the sections
+     */
+    @Override
+    public int size() {
+        int total = 0;
+        for (Section section : sections) {
+            if (section == null) continue;
+            total += section.size();
+        }
+        return total;
+    }
+
+    @Override
+    protected boolean replaceInPalette(Map<Block, Block> replacements) {
+        pallet.replace(replacements);
+        return true;
+    }
+
+    //the sections of one slab are never touched by another
+    @Override
+    protected int parallelSlabAlignment() {
+        return Section.SIZE;
+    }
+
+    @Override
+    public Iterator<XYZBlock> iterator() {
+        return new XYZIterator(true);
+    }
+
+    @Override
+    public Iterator<XYZBlock> getIterator(boolean bottomToUp) {
+        return new XYZIterator(bottomToUp);
+    }
+
+    /**
+     * Iterates over blocks. Skips sections that only contain air
+     */
+    public class XYZIterator implements Iterator<XYZBlock> {
+        private int x,y,z;
+        private final XYZBlock XYZBlock;
+        private final int zStep;
+
+        public XYZIterator(boolean bottomToUp) {
+            this.x = -1;
+            this.XYZBlock = new XYZBlock(0,0,0, null);
+            this.zStep = bottomToUp ? 1 : -1;
+            this.z = bottomToUp ? 0 : height-1;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return z >= 0 && z < height;
+        }
+
+        private void advanceCoordinates() {
+            x++;
+            if (x >= width) {
+                x = 0;y++;
+                if (y == length) {
+                    y = 0; z+=zStep;
+                }
+            }
+        }
+
+        private void advance() {
+            advanceCoordinates();
+            while (z >= 0 && z < height) {
+                Section section = sections[sectionIndex(x,y,z)];
+                if (section == null || (section.isUniform() && section.uniformValue() == 0)) {
+                    //jumping to the last x-coordinate of the empty section
+                    x |= MASK;
+                } else if (section.get(localIndex(x,y,z)) != 0) {
+                    return;
+                }
+                advanceCoordinates();
+            }
+        }
+
+        @Override
+        public XYZBlock next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            this.XYZBlock.x = x;
+            this.XYZBlock.y = y;
+            this.XYZBlock.z = z;
+            this.XYZBlock.block = get(x,y,z);
+            advance();
+            return this.XYZBlock;
+        }
+    }
+
+    /**
+     * Enables serialization to and from byte arrays.
+     * Used for caching to a file for later use.
+     */
+    public static class ChunkedBlocksSerializer extends BlockSerializer {
+        // 7 * 4 = width, length, height, minX, minY, minZ, sideLength as bytes
+        private static final int HEADER_SIZE = 7 * 4;
+
+        @Override
+        public byte[] serialize(Blocks blocksUnknown) {
+            ChunkedBlocks blocks = (ChunkedBlocks) blocksUnknown;
+            //the palette takes 256*3 bytes
+            //an empty section takes 1 byte and the others take Section.serializedSize bytes
+            int size = HEADER_SIZE + BlockPalette.SERIALIZED_SIZE;
+            for (Section section : blocks.sections) {
+                size += section == null ? 1 : section.serializedSize();
+            }
+            byte[] serialized = new byte[size];
+            writeInts(serialized, 0, blocks.width, blocks.length, blocks.height, blocks.minX, blocks.minY, blocks.minZ, blocks.getSideLength());
+
+            ByteBuffer buffer = ByteBuffer.wrap(serialized, HEADER_SIZE, size - HEADER_SIZE);
+            blocks.pallet.write(buffer);
+            for (Section section : blocks.sections) {
+                if (section == null) {
+                    buffer.put((byte) 0);
+                } else {
+                    section.write(buffer);
+                }
+            }
+            return serialized;
+        }
+
+        @Override
+        protected void serialize(Blocks blocksUnknown, OutputStream out) throws IOException {
+            ChunkedBlocks blocks = (ChunkedBlocks) blocksUnknown;
+            //the sections are collected to a small buffer that is written when it gets full,
+            //so the whole file is never in memory. A section takes less than 5000 bytes
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            writeInts(buffer.array(), 0, blocks.width, blocks.length, blocks.height, blocks.minX, blocks.minY, blocks.minZ, blocks.getSideLength());
+            buffer.position(HEADER_SIZE);
+            blocks.pallet.write(buffer);
+            for (Section section : blocks.sections) {
+                int size = section == null ? 1 : section.serializedSize();
+                if (buffer.remaining() < size) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                if (section == null) {
+                    buffer.put((byte) 0);
+                } else {
+                    section.write(buffer);
+                }
+            }
+            out.write(buffer.array(), 0, buffer.position());
+        }
+
+        @Override
+        public ChunkedBlocks deserialize(byte[] ar) {
+            int[] ints = readInts(ar, 0, 7);
+            ChunkedBlocks blocks = new ChunkedBlocks(ints[0], ints[1], ints[2], ints[3], ints[4], ints[5], ints[6]);
+
+            ByteBuffer buffer = ByteBuffer.wrap(ar, HEADER_SIZE, ar.length - HEADER_SIZE);
+            blocks.pallet.read(buffer);
+            for (int i = 0; i < blocks.sections.length; i++) {
+                if (ar[buffer.position()] == 0) {
+                    buffer.get();
+                    continue;
+                }
+                blocks.sections[i] = Section.read(buffer);
+            }
+            return blocks;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.patonki.blocks;
+
+import org.patonki.data.Classification;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A snapshot of the blocks that answers "how many blocks with this classification are inside a box"
+ * in constant time. Uses a summed-volume table (3d prefix sum) for each classification.<br>
+ * The snapshot is not updated when the blocks change, so it should be created again when the blocks have
+ * been modified. See {@link Blocks#classificationCounts(Classification...)}
+ * <br><br>
+ * The sums are stored in chars (16 bits) to save memory. They overflow, but the counts
+ * are calculated with the same modular arithmetic, so the result is correct as long as the box
+ * contains fewer than 65536 blocks.
+ */
+public class ClassificationCounts {
+    private static final int MAX_VOLUME = 0xFFFF;
+    private final int width, length, height;
+    //indexed with the classification ordinal. Null if the classification was not requested
+    private final char[][] sums;
+
+    ClassificationCounts(Blocks blocks, Classification... classifications) {
+        this.width = blocks.getWidth();
+        this.length = blocks.getLength();
+        this.height = blocks.getHeight();
+        this.sums = new char[Classification.values().length][];
+        int size = (width + 1) * (length + 1) * (height + 1);
+        for (Classification classification : classifications) {
+            sums[classification.ordinal()] = new char[size];
+        }
+        count(blocks, sums);
+        for (char[] sum : sums) {
+            if (sum != null) accumulate(sum);
+        }
+    }
+
+    //marks the blocks with ones in the tables indexed with the classification ordinal
+    private void count(Blocks blocks, char[][] tables) {
+        for (Iterator<XYZBlock> it = blocks.getIterator(true); it.hasNext(); ) {
+            XYZBlock block = it.next();
+            char[] sum = tables[block.block.classification().ordinal()];
+            if (sum == null) continue;
+            sum[index(block.x + 1, block.y + 1, block.z + 1)] = 1;
+        }
+    }
+
+    /**
+     * Counts another classification instead of a counted one, reusing the memory of its table,
+     * so that several classifications can be counted one at a time with one table.
+     * The other counts are not changed, but the new counts are a snapshot of the blocks at the time of this call.
+     * @param blocks the blocks the snapshot was created from
+     * @param counted the counted classification that is no longer counted after this
+     * @param classification the classification to count. Must not be counted already
+     * @throws IllegalArgumentException if the classification was not counted or the other classification is already counted
+     */
+    public void recount(Blocks blocks, Classification counted, Classification classification) {
+        char[] sum = sums[counted.ordinal()];
+        if (sum == null) {
+            throw new IllegalArgumentException("Classification " + counted + " was not counted");
+        }
+        if (counted != classification && sums[classification.ordinal()] != null) {
+            throw new IllegalArgumentException("Classification " + classification + " is already counted");
+        }
+        if (blocks.getWidth() != width || blocks.getLength() != length || blocks.getHeight() != height) {
+            throw new IllegalArgumentException("The blocks have different dimensions than the snapshot");
+        }
+        Arrays.fill(sum, (char) 0);
+        //only the new classification is counted, so the other tables stay the same
+        char[][] tables = new char[sums.length][];
+        tables[classification.ordinal()] = sum;
+        count(blocks, tables);
+        accumulate(sum);
+        sums[counted.ordinal()] = null;
+        sums[classification.ordinal()] = sum;
+    }
+
+    private int index(int x, int y, int z) {
+        return (z * (width + 1) + x) * (length + 1) + y;
+    }
+
+    //turns the array of ones and zeros to sums one axis at a time
+    private void accumulate(char[] sum) {
+        for (int z = 1; z <= height; z++) {
+            for (int x = 1; x <= width; x++) {
+                for (int y = 1; y <= length; y++) {
+                    int i = index(x, y, z);
+                    sum[i] += sum[i - 1];
+                }
+            }
+        }
+        int xStep = length + 1;
+        for (int z = 1; z <= height; z++) {
+            for (int x = 1; x <= width; x++) {
+                for (int y = 1; y <= length; y++) {
+                    int i = index(x, y, z);
+                    sum[i] += sum[i - xStep];
+                }
+            }
+        }
+        int zStep = (width + 1) * (length + 1);
+        for (int z = 1; z <= height; z++) {
+            for (int x = 1; x <= width; x++) {
+                for (int y = 1; y <= length; y++) {
+                    int i = index(x, y, z);
+                    sum[i] += sum[i - zStep];
+                }
+            }
+        }
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+
+    /**
+     * Counts the blocks with the classification in the box. The box can be partially outside the area.
+     * @param classification the classification. Must be one of the classifications the snapshot was created with
+     * @param x0 the smallest x-coordinate (inclusive)
+     * @param y0 the smallest y-coordinate (inclusive)
+     * @param z0 the smallest z-coordinate (inclusive)
+     * @param x1 the largest x-coordinate (exclusive)
+     * @param y1 the largest y-coordinate (exclusive)
+     * @param z1 the largest z-coordinate (exclusive)
+     * @return the number of blocks
+     * @throws IllegalArgumentException if the classification was not counted or the box is too large
+     */
+    public int count(Classification classification, int x0, int y0, int z0, int x1, int y1, int z1) {
+        char[] sum = sums[classification.ordinal()];
+        if (sum == null) {
+            throw new IllegalArgumentException("Classification " + classification + " was not counted");
+        }
+        x0 = clamp(x0, width); x1 = clamp(x1, width);
+        y0 = clamp(y0, length); y1 = clamp(y1, length);
+        z0 = clamp(z0, height); z1 = clamp(z1, height);
+        if (x0 >= x1 || y0 >= y1 || z0 >= z1) return 0;
+        if ((long) (x1 - x0) * (y1 - y0) * (z1 - z0) > MAX_VOLUME) {
+            throw new IllegalArgumentException("The box is too large: " + (x1 - x0) + "x" + (y1 - y0) + "x" + (z1 - z0));
+        }
+        int result = sum[index(x1, y1, z1)]
+                - sum[index(x0, y1, z1)] - sum[index(x1, y0, z1)] - sum[index(x1, y1, z0)]
+                + sum[index(x0, y0, z1)] + sum[index(x0, y1, z0)] + sum[index(x1, y0, z0)]
+                - sum[index(x0, y0, z0)];
+        return result & 0xFFFF;
+    }
+
+    /**
+     * Same as {@link Blocks#numberOfBlocksWithClassificationInRadius(int, int, int, Classification, int)},
+     * but answered from the snapshot in constant time.
+     */
+    public int numberOfBlocksWithClassificationInRadius(int x, int y, int z, Classification classification, int radius) {
+        return count(classification, x - radius, y - radius, z - radius, x + radius, y + radius, z + radius);
+    }
+    public int numberOfBlocksWithClassificationInRadius(XYZBlock XYZBlock, Classification classification, int radius) {
+        return numberOfBlocksWithClassificationInRadius(XYZBlock.x, XYZBlock.y, XYZBlock.z, classification, radius);
+    }
+
+    /**
+     * @param classification the classification
+     * @return whether the snapshot counts the classification
+     */
+    public boolean counts(Classification classification) {
+        return sums[classification.ordinal()] != null;
+    }
+}
@@ -2,34 +2,77 @@ package org.patonki.blocks;
 
 import org.jetbrains.annotations.NotNull;
 import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
 
 /**
  * Represents the ground surface of an area. <br>
  * The highest ground point can be retrieved from a (x,y)-coordinate <br>
- * The ground surface is guaranteed to be filled (no holes).
+ * The ground surface is guaranteed to be filled (no holes).<br>
+ * The heights and the {@link BlockRegistry} ids of the blocks are stored in flat arrays, so reading
+ * the ground doesn't create any objects. The layer doesn't change when the blocks change,
+ * but it can be updated with {@link #refresh()}.
  */
 public class GroundLayer {
-    private final XYZBlock[][] ground;
+    private final Blocks blocks;
     private final int width;
     private final int length;
+    //indexed with x * length + y
+    private final int[] heights;
+    //the registry ids as unsigned shorts
+    private final short[] blockIds;
 
-    public GroundLayer(XYZBlock[][] ground) {
-        this.ground = ground;
-        this.width = ground.length;
-        this.length = ground[0].length;
+    /**
+     * Runs an action on the ground block of a column
+     */
+    public interface GroundAction {
+        void run(int x, int y, int z, @NotNull Block block);
+    }
+
+    /**
+     * @throws IllegalArgumentException if a column doesn't have any ground blocks
+     */
+    GroundLayer(Blocks blocks) {
+        this.blocks = blocks;
+        this.width = blocks.getWidth();
+        this.length = blocks.getLength();
+        this.heights = new int[width * length];
+        this.blockIds = new short[heights.length];
+        refresh();
+    }
 
+    /**
+     * Reads the ground again from the blocks without creating new arrays
+     * @throws IllegalArgumentException if a column doesn't have any ground blocks
+     */
+    public void refresh() {
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < length; y++) {
-                XYZBlock XYZBlock = ground[x][y];
-                if (XYZBlock == null) {
-                    throw new IllegalArgumentException("Null value found at coordinates: " + x + " " + y);
-                }
-                if (XYZBlock.block == null) {
-                    throw new IllegalArgumentException("Null block found at: " + x + " " + y);
-                }
+                refreshColumn(x, y);
             }
         }
     }
+
+    /**
+     * Reads the ground of one column again. Cheaper than {@link #refresh()} when only a few columns have changed
+     * @throws IllegalArgumentException if the column doesn't have any ground blocks
+     */
+    public void refreshColumn(int x, int y) {
+        int z = blocks.getGroundHeight(x, y);
+        if (z == -1) {
+            throw new IllegalArgumentException("Null value found at coordinates: " + x + " " + y);
+        }
+        int blockId = blocks.getId(x, y, z);
+        if (blockId > 0xFFFF) {
+            throw new IllegalStateException("Too many different blocks to store the ground layer. Block id: " + blockId);
+        }
+        heights[index(x,y)] = z;
+        blockIds[index(x,y)] = (short) blockId;
+    }
+
+    private int index(int x, int y) {
+        return x * length + y;
+    }
+
     public boolean inRange(int x, int y) {
         return x >= 0 && x < width && y >= 0 && y < length;
     }
@@ -41,16 +84,54 @@ public class GroundLayer {
     public int getLength() {
         return length;
     }
+
+    @NotNull
     public Block getBlock(int x, int y) {
-        return ground[x][y].block;
+        return BlockRegistry.get(getBlockId(x, y));
+    }
+
+    /**
+     * @return the {@link BlockRegistry} id of the ground block
+     */
+    public int getBlockId(int x, int y) {
+        return blockIds[index(x,y)] & 0xFFFF;
     }
 
+    /**
+     * Creates a new object every time, so {@link #getHeightAt(int, int)} and {@link #getBlock(int, int)}
+     * should be used in loops.
+     */
     @NotNull
     public XYZBlock getXYZBlock(int x, int y) {
-        return ground[x][y];
+        return new XYZBlock(x, y, getHeightAt(x, y), getBlock(x, y));
     }
 
     public int getHeightAt(int x, int y) {
-        return ground[x][y].z;
+        return heights[index(x,y)];
+    }
+
+    /**
+     * Copies the heights to the array, which is indexed with x * length + y.
+     * @param destination the array or null to create a new one
+     * @return the array with the heights
+     */
+    public int[] getHeights(int[] destination) {
+        if (destination == null || destination.length < heights.length) {
+            destination = new int[heights.length];
+        }
+        System.arraycopy(heights, 0, destination, 0, heights.length);
+        return destination;
+    }
+
+    /**
+     * Runs the action on the ground block of every column
+     */
+    public void forEach(GroundAction action) {
+        int i = 0;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < length; y++, i++) {
+                action.run(x, y, heights[i], BlockRegistry.get(blockIds[i] & 0xFFFF));
+            }
+        }
     }
 }
@@ -0,0 +1,113 @@
+package org.patonki.blocks;
+
+import org.patonki.data.Block;
+import org.patonki.data.Classification;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * The z-coordinates of the highest ground block and the highest block of any kind in each (x,y) column.
+ * -1 means that the column doesn't have such a block. <br>
+ * The map is built once by scanning the blocks and then kept up to date
+ * by {@link Blocks#set(int, int, int, Block)}, {@link Blocks#remove(int, int, int)} and the bulk writes.
+ * A column is only scanned again if its highest block is removed or replaced.
+ */
+class HeightMap {
+    private final Blocks blocks;
+    private final int length;
+    //indexed with x * length + y
+    private final int[] ground;
+    private final int[] top;
+
+    HeightMap(Blocks blocks) {
+        this.blocks = blocks;
+        this.length = blocks.getLength();
+        this.ground = new int[blocks.getWidth() * length];
+        this.top = new int[ground.length];
+        Arrays.fill(ground, -1);
+        Arrays.fill(top, -1);
+        //the iterator skips air. Not all implementations iterate strictly from top to bottom
+        for (Iterator<XYZBlock> it = blocks.getIterator(false); it.hasNext(); ) {
+            XYZBlock block = it.next();
+            int i = index(block.x, block.y);
+            if (block.z > top[i]) top[i] = block.z;
+            if (block.z > ground[i] && isGroundBlock(block.block)) ground[i] = block.z;
+        }
+    }
+
+    static boolean isGroundBlock(Block block) {
+        if (block == null) return false;
+        return block.classification() == Classification.GROUND || block.classification() == Classification.WATER;
+    }
+
+    private int index(int x, int y) {
+        return x * length + y;
+    }
+
+    void blockSet(int x, int y, int z, Block block) {
+        int i = index(x,y);
+        if (z > top[i]) top[i] = z;
+        if (isGroundBlock(block)) {
+            if (z > ground[i]) ground[i] = z;
+        } else if (z == ground[i]) {
+            //the highest ground block was replaced
+            ground[i] = findGround(x, y, z - 1);
+        }
+    }
+
+    void blockRemoved(int x, int y, int z) {
+        int i = index(x,y);
+        if (z == top[i]) top[i] = findTop(x, y, z - 1);
+        if (z == ground[i]) ground[i] = findGround(x, y, z - 1);
+    }
+
+    /**
+     * Called when the blocks from fromZ to toZ (inclusive) were all set to the block
+     * @param block the block or null if the blocks were removed
+     */
+    void columnFilled(int x, int y, int fromZ, int toZ, Block block) {
+        int i = index(x,y);
+        if (block == null) {
+            if (top[i] >= fromZ && top[i] <= toZ) top[i] = findTop(x, y, fromZ - 1);
+        } else if (toZ > top[i]) {
+            top[i] = toZ;
+        }
+        if (isGroundBlock(block)) {
+            if (toZ > ground[i]) ground[i] = toZ;
+        } else if (ground[i] >= fromZ && ground[i] <= toZ) {
+            ground[i] = findGround(x, y, fromZ - 1);
+        }
+    }
+
+    /**
+     * Scans the column again after any number of its blocks were changed
+     */
+    void columnChanged(int x, int y) {
+        int i = index(x,y);
+        top[i] = findTop(x, y, blocks.getHeight() - 1);
+        ground[i] = findGround(x, y, top[i]);
+    }
+
+    private int findGround(int x, int y, int fromZ) {
+        for (int z = fromZ; z >= 0; z--) {
+            if (isGroundBlock(blocks.get(x,y,z))) return z;
+        }
+        return -1;
+    }
+
+    private int findTop(int x, int y, int fromZ) {
+        for (int z = fromZ; z >= 0; z--) {
+            if (blocks.get(x,y,z) != null) return z;
+        }
+        return -1;
+    }
+
+    int groundZ(int x, int y) {
+        return ground[index(x,y)];
+    }
+
+    int topZ(int x, int y) {
+        return top[index(x,y)];
+    }
+}
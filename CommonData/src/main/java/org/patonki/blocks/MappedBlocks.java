@@ -0,0 +1,453 @@
+package org.patonki.blocks;
+
+import org.jetbrains.annotations.NotNull;
+import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
+import org.patonki.data.BlockSerializer;
+import org.patonki.data.CacheCompression;
+import org.patonki.data.Classification;
+import org.patonki.data.IntBoundingBox3D;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An implementation of {@link Blocks}
+ * that keeps the blocks in a memory-mapped file instead of the java heap. <br>
+ * The file has exactly the same layout as the data of the caches written by {@link ArrayBlocks.ArrayBlockSerializer}:
+ * the metadata, the palette and one byte per block. Therefore, the caches of either one can be used by the other.
+ * The operating system decides which parts of the area are kept in memory, so the area can be larger than the heap.<br>
+ * Because of memory limitations, this class only supports up to 255 different
+ * types of blocks.
+ */
+public class MappedBlocks extends Blocks {
+    // 7 * 4 = width, length, height, minX, minY, minZ, sideLength as bytes
+    private static final int HEADER_SIZE = 7 * 4;
+    private static final int DATA_OFFSET = HEADER_SIZE + BlockPalette.SERIALIZED_SIZE;
+
+    private final BlockPalette pallet = new BlockPalette();
+    //the metadata and the palette
+    private final MappedByteBuffer header;
+    //one mapping can be at most 2GB, so the blocks are split into mappings of whole z-layers
+    private final MappedByteBuffer[] slabs;
+    private final int layersPerSlab;
+    private final int layerSize;
+    //the number of palette entries written to the file
+    private volatile int writtenPaletteSize = 0;
+
+    /**
+     * @param mode {@link FileChannel.MapMode#READ_WRITE} to write the changes to the file
+     *             or {@link FileChannel.MapMode#PRIVATE} to keep them in memory
+     * @param start the position of the blocks in the file
+     */
+    private MappedBlocks(FileChannel channel, FileChannel.MapMode mode, long start, boolean create, int width, int length, int height, int minX, int minY, int minZ, int sideLength) throws IOException {
+        super(width, length, height, minX, minY, minZ, sideLength);
+        this.layerSize = width * length;
+        this.layersPerSlab = Math.max(1, Integer.MAX_VALUE / Math.max(1, layerSize));
+
+        this.header = channel.map(mode, start, DATA_OFFSET);
+        this.slabs = new MappedByteBuffer[(height + layersPerSlab - 1) / layersPerSlab];
+        for (int i = 0; i < slabs.length; i++) {
+            int layers = Math.min(layersPerSlab, height - i * layersPerSlab);
+            long offset = start + DATA_OFFSET + (long) i * layersPerSlab * layerSize;
+            slabs[i] = channel.map(mode, offset, (long) layers * layerSize);
+        }
+        if (create) {
+            int[] ints = {width, length, height, minX, minY, minZ, sideLength};
+            for (int i = 0; i < ints.length; i++) {
+                header.putInt(i * 4, ints[i]);
+            }
+            writePalette();
+        } else {
+            pallet.read(header.duplicate().position(HEADER_SIZE));
+            writtenPaletteSize = pallet.size();
+        }
+    }
+
+    private static long fileSize(int width, int length, int height) {
+        return DATA_OFFSET + (long) width * length * height;
+    }
+
+    /**
+     * Creates a new file that contains only air. An existing file is overwritten.
+     * @param file the file that is going to contain the blocks
+     * @see Blocks#Blocks(int, int, int, int, int, int, int)
+     * @return the blocks
+     * @throws IOException if the file can't be created or mapped
+     */
+    public static MappedBlocks create(File file, int width, int length, int height, int minX, int minY, int minZ, int sideLength) throws IOException {
+        if ((long) width * length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("One layer of blocks is too large to be mapped: " + width + "x" + length);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            //the file is filled with zeros which means air
+            raf.setLength(0);
+            raf.setLength(fileSize(width, length, height));
+            return new MappedBlocks(raf.getChannel(), FileChannel.MapMode.READ_WRITE, 0, true, width, length, height, minX, minY, minZ, sideLength);
+        }
+    }
+
+    /**
+     * Maps a file written by {@link #create(File, int, int, int, int, int, int, int)} or {@link #writeTo(File)}.
+     * Changes to the blocks are written to the file. Caches are read with {@link MappedBlocksSerializer#read(File)}.
+     * @param file the file
+     * @return the blocks
+     * @throws IOException if the file can't be read or is in the wrong format
+     */
+    public static MappedBlocks open(File file) throws IOException {
+        return open(file, FileChannel.MapMode.READ_WRITE, 0);
+    }
+
+    //a private mapping needs a channel that can be written even though nothing is written to the file
+    private static MappedBlocks open(File file, FileChannel.MapMode mode, long start) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() - start < DATA_OFFSET) {
+                throw new IOException("File " + file + " is too small to contain blocks");
+            }
+            raf.seek(start);
+            int[] ints = new int[7];
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = raf.readInt();
+            }
+            long expected = fileSize(ints[0], ints[1], ints[2]);
+            if (raf.length() - start != expected) {
+                throw new IOException("File " + file + " has the wrong size: " + (raf.length() - start) + ". Expected " + expected);
+            }
+            return new MappedBlocks(raf.getChannel(), mode, start, false, ints[0], ints[1], ints[2], ints[3], ints[4], ints[5], ints[6]);
+        }
+    }
+
+    /**
+     * Creates a new temporary file in the folder. The file is deleted when it is no longer needed.
+     * @param folder the folder of the file
+     * @see #create(File, int, int, int, int, int, int, int)
+     */
+    public static MappedBlocks createTemporary(File folder, int width, int length, int height, int minX, int minY, int minZ, int sideLength) throws IOException {
+        File file = createTemporaryFile(folder);
+        try {
+            return create(file, width, length, height, minX, minY, minZ, sideLength);
+        } finally {
+            deleteTemporaryFile(file);
+        }
+    }
+
+    private static File createTemporaryFile(File folder) throws IOException {
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Unable to create folder " + folder);
+        }
+        return File.createTempFile("blocks", ".dat", folder);
+    }
+
+    //the mapping stays valid after the file has been deleted.
+    //some systems don't allow deleting mapped files, so then it is deleted when the program exits
+    private static void deleteTemporaryFile(File file) {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private MappedByteBuffer slab(int z) {
+        return slabs[z / layersPerSlab];
+    }
+    private int pos(int x, int y, int z) {
+        return (z % layersPerSlab) * layerSize + x * this.length + y;
+    }
+
+    private void writePalette() {
+        writePalette(writtenPaletteSize + 1);
+    }
+
+    //writes the palette entries starting from the index to the file
+    private synchronized void writePalette(int from) {
+        int size = pallet.size();
+        for (int i = from; i <= size; i++) {
+            Block block = pallet.get((byte) i);
+            if (block == null) continue;
+            ByteBuffer buffer = header.duplicate().position(HEADER_SIZE + i * 3);
+            buffer.put(block.id());
+            buffer.put(block.data());
+            buffer.put((byte) Classification.index(block.classification()));
+        }
+        writtenPaletteSize = size;
+    }
+
+    @Override
+    protected boolean setBlock(int x, int y, int z, @NotNull Block block) {
+        if (!inRange(x,y,z)) return false;
+        store(x,y,z, pallet.indexOf(block));
+        return true;
+    }
+
+    @Override
+    protected boolean setBlock(int x, int y, int z, int blockId) {
+        if (!inRange(x,y,z)) return false;
+        store(x,y,z, pallet.indexOf(blockId));
+        return true;
+    }
+
+    private void store(int x, int y, int z, byte index) {
+        if ((index & 0xFF) > writtenPaletteSize) {
+            //new block, the palette in the file is kept up to date
+            writePalette();
+        }
+        slab(z).put(pos(x,y,z), index);
+    }
+
+    @Override
+    protected boolean removeBlock(int x, int y, int z) {
+        if (!inRange(x,y,z)) return false;
+        slab(z).put(pos(x,y,z), (byte) 0);
+        return true;
+    }
+
+    @Override
+    public Block get(int x, int y, int z) {
+        if (!inRange(x,y,z)) return null;
+        return pallet.get(slab(z).get(pos(x,y,z)));
+    }
+
+    @Override
+    public int getId(int x, int y, int z) {
+        if (!inRange(x,y,z)) return BlockRegistry.AIR;
+        return pallet.blockId(slab(z).get(pos(x,y,z)));
+    }
+
+    //the palette in the file is written again
+    @Override
+    protected boolean replaceInPalette(Map<Block, Block> replacements) {
+        pallet.replace(replacements);
+        writePalette(1);
+        return true;
+    }
+
+    //the palette is thread safe and the blocks are written with absolute positions
+    @Override
+    protected int parallelSlabAlignment() {
+        return 1;
+    }
+
+    /**
+     * @return the number of bytes in the mapped file that are used by the blocks. Not the heap usage
+     */
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) layerSize * height);
+    }
+
+    /**
+     * Writes the changes to the disk
+     */
+    public void force() {
+        header.force();
+        for (MappedByteBuffer slab : slabs) {
+            slab.force();
+        }
+    }
+
+    /**
+     * Writes a copy of the file of the blocks, which can be mapped with {@link #open(File)},
+     * without copying the blocks to the heap. Caches are written with {@link MappedBlocksSerializer}
+     * @param file the file
+     * @throws IOException if writing fails
+     */
+    public void writeTo(File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file); FileChannel channel = out.getChannel()) {
+            ByteBuffer header = this.header.duplicate().clear();
+            while (header.hasRemaining()) channel.write(header);
+            for (MappedByteBuffer slab : slabs) {
+                ByteBuffer buffer = slab.duplicate().clear();
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+    }
+
+    //writes the same bytes as writeTo(File) through a buffer, so that the stream can compress them
+    private void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        copy(header, out, buffer);
+        for (MappedByteBuffer slab : slabs) {
+            copy(slab, out, buffer);
+        }
+    }
+    private static final int COPY_BUFFER_SIZE = 1 << 20;
+
+    private static void copy(ByteBuffer source, OutputStream out, byte[] buffer) throws IOException {
+        ByteBuffer data = source.duplicate().clear();
+        while (data.hasRemaining()) {
+            int count = Math.min(buffer.length, data.remaining());
+            data.get(buffer, 0, count);
+            out.write(buffer, 0, count);
+        }
+    }
+
+    @Override
+    public Iterator<XYZBlock> iterator() {
+        return new XYZIterator(true);
+    }
+
+    @Override
+    public Iterator<XYZBlock> getIterator(boolean bottomToUp) {
+        return new XYZIterator(bottomToUp);
+    }
+
+    /**
+     * Iterates over blocks in the order of the file: y changes fastest, then x and then z,
+     * so the pages of the file are read in order.
+     */
+    public class XYZIterator implements Iterator<XYZBlock> {
+        private int x,y,z;
+        private final XYZBlock XYZBlock;
+        private final int zStep;
+
+        public XYZIterator(boolean bottomToUp) {
+            this.y = -1;
+            this.XYZBlock = new XYZBlock(0,0,0, null);
+            this.zStep = bottomToUp ? 1 : -1;
+            this.z = bottomToUp ? 0 : height-1;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return z >= 0 && z < height;
+        }
+
+        private void advanceCoordinates() {
+            y++;
+            if (y == length) {
+                y = 0;x++;
+                if (x == width) {
+                    x = 0; z+=zStep;
+                }
+            }
+        }
+
+        private void advance() {
+            advanceCoordinates();
+            while (z >= 0 && z < height && slab(z).get(pos(x,y,z)) == 0) {
+                advanceCoordinates();
+            }
+        }
+
+        @Override
+        public XYZBlock next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            this.XYZBlock.x = x;
+            this.XYZBlock.y = y;
+            this.XYZBlock.z = z;
+            this.XYZBlock.block = pallet.get(slab(z).get(pos(x,y,z)));
+            advance();
+            return this.XYZBlock;
+        }
+    }
+
+    /**
+     * Enables serialization to and from byte arrays and files.
+     * Uses the same format as {@link ArrayBlocks.ArrayBlockSerializer}.
+     * Uncompressed cache files are mapped privately, so the changes to the blocks are kept in memory and the files
+     * are never modified. Compressed caches and blocks deserialized from byte arrays are mapped to temporary files
+     * inside the given folder.
+     */
+    public static class MappedBlocksSerializer extends BlockSerializer {
+        private final File folder;
+
+        /**
+         * @param folder the folder for the temporary files
+         */
+        public MappedBlocksSerializer(File folder) {
+            this.folder = folder;
+        }
+
+        @Override
+        public byte[] serialize(Blocks blocksUnknown) {
+            MappedBlocks blocks = (MappedBlocks) blocksUnknown;
+            long size = DATA_OFFSET + (long) blocks.layerSize * blocks.height;
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("The blocks are too large for a byte array. Use write(Blocks, File) instead");
+            }
+            byte[] serialized = new byte[(int) size];
+            blocks.header.duplicate().clear().get(serialized, 0, DATA_OFFSET);
+            int offset = DATA_OFFSET;
+            for (MappedByteBuffer slab : blocks.slabs) {
+                int capacity = slab.capacity();
+                slab.duplicate().clear().get(serialized, offset, capacity);
+                offset += capacity;
+            }
+            return serialized;
+        }
+
+        @Override
+        public MappedBlocks deserialize(byte[] ar) {
+            try {
+                File file = createTemporaryFile(folder);
+                try {
+                    try (FileOutputStream out = new FileOutputStream(file)) {
+                        out.write(ar);
+                    }
+                    return open(file);
+                } finally {
+                    deleteTemporaryFile(file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        protected void serialize(Blocks blocks, OutputStream out) throws IOException {
+            ((MappedBlocks) blocks).writeTo(out);
+        }
+
+        //decompressed caches are streamed to a temporary file instead of a byte array
+        @Override
+        protected MappedBlocks deserialize(InputStream in) throws IOException {
+            File file = createTemporaryFile(folder);
+            try {
+                try (FileOutputStream out = new FileOutputStream(file)) {
+                    in.transferTo(out);
+                }
+                return open(file);
+            } finally {
+                deleteTemporaryFile(file);
+            }
+        }
+
+        //a copy on the heap would defeat keeping the blocks outside the heap, so the caches are written directly
+        @Override
+        public byte[] snapshot(Blocks blocks) {
+            return null;
+        }
+
+        //a region is small, so it is read to an array instead of a temporary file
+        @Override
+        protected ArrayBlocks deserializeRegion(RandomAccessData data, IntBoundingBox3D box) throws IOException {
+            return ArrayBlocks.ArrayBlockSerializer.readRegion(data, box);
+        }
+
+        @Override
+        public MappedBlocks read(File file) throws IOException {
+            long start;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                Header header = readHeader(channel, file);
+                start = header.compression() == CacheCompression.NONE ? channel.position() : -1;
+            }
+            //a compressed cache can't be mapped, so it is decompressed to a temporary file
+            if (start < 0) return (MappedBlocks) super.read(file);
+            //copy-on-write, so only the modified pages are copied and the cache is never written
+            return open(file, FileChannel.MapMode.PRIVATE, start);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.patonki.blocks;
+
+import org.patonki.data.Classification;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * One bit per block telling whether the block is solid (not air), and the same for each {@link Classification}.
+ * Used to answer neighbor queries without looking up the blocks from the palette.<br>
+ * Each (x,z) row of bits is padded to whole longs, so blocks with different x-coordinates never share a long.
+ * The bitmap of a classification is allocated when the first block with that classification is added.<br>
+ * Also counts the solid blocks in each 8*8*8 brick and each z-layer, so that iterators can skip empty space.<br>
+ * Blocks in different bricks can be modified from different threads.
+ */
+class OccupancyBitmaps {
+    private final int width;
+    private final int length;
+    private final int rowWords;
+    private final long[] solid;
+    //indexed with the classification ordinal
+    private final long[][] classified = new long[Classification.values().length][];
+
+    private static final int BRICK_SHIFT = 3; // 2^3 = 8
+    private final int bricksX, bricksY;
+    private final int[] brickCounts;
+    //shared by all bricks of the layer
+    private final AtomicIntegerArray layerCounts;
+
+    OccupancyBitmaps(int width, int length, int height) {
+        this.width = width;
+        this.length = length;
+        this.rowWords = (length + 63) >>> 6;
+        this.solid = new long[width * height * rowWords];
+        this.bricksX = (width + 7) >> BRICK_SHIFT;
+        this.bricksY = (length + 7) >> BRICK_SHIFT;
+        int bricksZ = (height + 7) >> BRICK_SHIFT;
+        this.brickCounts = new int[bricksX * bricksY * bricksZ];
+        this.layerCounts = new AtomicIntegerArray(height);
+    }
+
+    private int brick(int x, int y, int z) {
+        return ((z >> BRICK_SHIFT) * bricksX + (x >> BRICK_SHIFT)) * bricksY + (y >> BRICK_SHIFT);
+    }
+
+    private int word(int x, int y, int z) {
+        return (z * width + x) * rowWords + (y >>> 6);
+    }
+
+    private static boolean get(long[] bits, int word, int y) {
+        return (bits[word] & (1L << y)) != 0;
+    }
+
+    /**
+     * @param previous the classification of the replaced block or null if it was air
+     * @param classification the classification of the new block
+     */
+    void set(int x, int y, int z, Classification previous, Classification classification) {
+        int word = word(x,y,z);
+        long bit = 1L << y;
+        solid[word] |= bit;
+        if (previous == null) {
+            brickCounts[brick(x,y,z)]++;
+            layerCounts.incrementAndGet(z);
+        }
+        if (previous == classification) return;
+        if (previous != null) {
+            classified[previous.ordinal()][word] &= ~bit;
+        }
+        long[] bits = classified[classification.ordinal()];
+        if (bits == null) {
+            bits = allocate(classification);
+        }
+        bits[word] |= bit;
+    }
+
+    private synchronized long[] allocate(Classification classification) {
+        long[] bits = classified[classification.ordinal()];
+        if (bits == null) {
+            bits = classified[classification.ordinal()] = new long[solid.length];
+        }
+        return bits;
+    }
+
+    /**
+     * Sets the bits of a whole (x,z) row one long at a time. The row must only have air before this.
+     * Used when the blocks are loaded from a file, because it is much faster than calling
+     * {@link #set(int, int, int, Classification, Classification)} for every block.
+     * @param indexes the palette indexes of the blocks of the row starting from the offset
+     * @param classifications the classification of each palette index, null for air
+     */
+    void setRow(int x, int z, byte[] indexes, int offset, Classification[] classifications) {
+        int rowStart = word(x, 0, z);
+        int brickRow = brick(x, 0, z);
+        int count = 0;
+        for (int w = 0; w < rowWords; w++) {
+            int from = w << 6;
+            int to = Math.min(from + 64, length);
+            long solidBits = 0;
+            for (int y = from; y < to; y++) {
+                Classification classification = classifications[indexes[offset + y] & 0xFF];
+                if (classification == null) continue;
+                long bit = 1L << y;
+                solidBits |= bit;
+                long[] bits = classified[classification.ordinal()];
+                if (bits == null) {
+                    bits = allocate(classification);
+                }
+                bits[rowStart + w] |= bit;
+                brickCounts[brickRow + (y >> BRICK_SHIFT)]++;
+            }
+            solid[rowStart + w] |= solidBits;
+            count += Long.bitCount(solidBits);
+        }
+        if (count > 0) layerCounts.addAndGet(z, count);
+    }
+
+    /**
+     * @param previous the classification of the removed block or null if it was air
+     */
+    void clear(int x, int y, int z, Classification previous) {
+        if (previous == null) return;
+        int word = word(x,y,z);
+        long bit = ~(1L << y);
+        solid[word] &= bit;
+        classified[previous.ordinal()][word] &= bit;
+        brickCounts[brick(x,y,z)]--;
+        layerCounts.decrementAndGet(z);
+    }
+
+    /**
+     * @return whether the 8*8*8 brick containing the coordinates only has air
+     */
+    boolean isBrickEmpty(int x, int y, int z) {
+        return brickCounts[brick(x,y,z)] == 0;
+    }
+
+    /**
+     * @return whether the z-layer only has air
+     */
+    boolean isLayerEmpty(int z) {
+        return layerCounts.get(z) == 0;
+    }
+
+    /**
+     * Counts the solid blocks or the blocks with the classification touching the block at x,y,z.
+     * The block and all of its neighbors must be inside the area
+     * @param classification the classification or null to count all solid blocks
+     */
+    int countNeighbors(int x, int y, int z, Classification classification) {
+        long[] bits = classification == null ? solid : classified[classification.ordinal()];
+        if (bits == null) return 0;
+        int word = word(x,y,z);
+        int zStep = width * rowWords;
+        int sum = 0;
+        if (get(bits, word - rowWords, y)) sum++;
+        if (get(bits, word + rowWords, y)) sum++;
+        if (get(bits, word - zStep, y)) sum++;
+        if (get(bits, word + zStep, y)) sum++;
+        if (get(bits, word(x, y - 1, z), y - 1)) sum++;
+        if (get(bits, word(x, y + 1, z), y + 1)) sum++;
+        return sum;
+    }
+
+    /**
+     * The coordinates must be inside the area
+     */
+    boolean isSolid(int x, int y, int z) {
+        return get(solid, word(x,y,z), y);
+    }
+
+    /**
+     * The coordinates must be inside the area
+     */
+    boolean has(int x, int y, int z, Classification classification) {
+        long[] bits = classified[classification.ordinal()];
+        return bits != null && get(bits, word(x,y,z), y);
+    }
+}
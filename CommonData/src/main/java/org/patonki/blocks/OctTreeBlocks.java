@@ -7,20 +7,31 @@ import org.patonki.data.Block;
 import org.patonki.data.BlockSerializer;
 import org.patonki.data.Classification;
 
-import java.util.HashMap;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 /**
  * An implementation of {@link Blocks}
  * that uses an Oct tree. Which is an algorithm used to reduce memory consumption of storing
  * voxels (blocks).<br>
- * Because of memory limitations, this class only supports up to 256 (byte max value) different
- * types of blocks.
+ * Parts of the area that only contain one kind of block (air, or stone under the ground) are stored as a single value,
+ * and the leaves store their columns as runs of the same block.<br>
+ * Because of memory limitations, this class only supports up to 255 different
+ * types of blocks. See {@link BlockPalette}.
  */
 public class OctTreeBlocks extends Blocks {
     private final Node blocks;
-    private final HashMap<Block, Byte> ids = new HashMap<>();
-    private final Block[] pallet = new Block[256];
+    private final BlockPalette pallet = new BlockPalette();
     private final int maxSize;
 
     /**
@@ -33,21 +44,28 @@ public class OctTreeBlocks extends Blocks {
         this.blocks = new ParentNode(0,0,0, width, length, height, maxSize);
     }
 
-    public boolean set(int x, int y, int z, @NotNull Block block) {
-        Byte index = ids.get(block);
-        if (index == null) {
-            byte size = (byte) (ids.size() + 1);
-            ids.put(block, size);
-            this.pallet[size] = block;
-            this.blocks.set(x,y,z, size);
-        } else {
-            this.blocks.set(x,y,z, index);
-        }
+    @Override
+    protected boolean setBlock(int x, int y, int z, @NotNull Block block) {
+        if (!inRange(x,y,z)) return false;
+        this.blocks.set(x,y,z, pallet.indexOf(block));
+        return true;
+    }
+
+    @Override
+    protected boolean setBlock(int x, int y, int z, int blockId) {
+        if (!inRange(x,y,z)) return false;
+        this.blocks.set(x,y,z, pallet.indexOf(blockId));
         return true;
     }
 
     @Override
-    public boolean remove(int x, int y, int z) {
+    protected void fillBlocks(int fromX, int fromY, int fromZ, int toX, int toY, int toZ, int blockId) {
+        this.blocks.fill(new Node.BBox(fromX, fromY, fromZ, toX, toY, toZ), pallet.indexOf(blockId));
+    }
+
+    @Override
+    protected boolean removeBlock(int x, int y, int z) {
+        if (!inRange(x,y,z)) return false;
         return this.blocks.set(x,y,z, (byte)0);
     }
 
@@ -57,17 +75,20 @@ public class OctTreeBlocks extends Blocks {
     }
 
     public Block get(int x, int y, int z) {
-        return this.pallet[this.blocks.get(x,y,z)];
+        return this.pallet.get(this.blocks.get(x,y,z));
     }
 
-    private final Node.BlockConverter converter = b -> this.pallet[b];
+    @Override
+    public int getId(int x, int y, int z) {
+        return this.pallet.blockId(this.blocks.get(x,y,z));
+    }
 
     @Override
-    public XYZBlock[][] getGroundLayerIncomplete() {
-        XYZBlock[][] ar = new XYZBlock[getWidth()][getLength()];
-        this.blocks.groundLayer(ar, converter);
-        return ar;
+    protected boolean replaceInPalette(Map<Block, Block> replacements) {
+        pallet.replace(replacements);
+        return true;
     }
+
     public Object getMaxSize() {
         return this.maxSize;
     }
@@ -75,14 +96,14 @@ public class OctTreeBlocks extends Blocks {
 
     @Override
     public void forEach(BlockAction action) {
-        this.blocks.forEach((x, y, z, b) -> action.run(x,y,z, pallet[b]));
+        this.blocks.forEach((x, y, z, b) -> action.run(x,y,z, pallet.get(b)));
     }
 
     @Override
     public int numberOfBlocksWithClassificationInRadius(int x, int y, int z, Classification classification, int radius) {
         final int[] num = {0};
         this.blocks.forEach((x1, y1, z1, b) -> {
-            if (classification == this.pallet[b].classification()) num[0]++;
+            if (classification == this.pallet.get(b).classification()) num[0]++;
         }, new Node.BBox(x - radius, y - radius, z - radius, x + radius, y + radius, z +radius));
         return num[0];
     }
@@ -118,49 +139,86 @@ public class OctTreeBlocks extends Blocks {
             this.XYZBlock.x = next.x;
             this.XYZBlock.y = next.y;
             this.XYZBlock.z = next.z;
-            this.XYZBlock.block = pallet[next.block];
+            this.XYZBlock.block = pallet.get(next.block);
             return this.XYZBlock;
         }
     }
     /**
      * Enables serialization to and from byte arrays.
-     * Used for caching to a file for later use
+     * Used for caching to a file for later use.<br>
+     * Only the nodes of the tree are written (see {@link Node#write(java.io.DataOutput)}), so the size of the
+     * file depends on how many different areas the blocks have, not on the volume of the area.
+     * The old format that stored every block can still be read.
      */
     public static class OctTreeBlocksSerializer extends BlockSerializer {
+        //"OCT1". The old format starts with the width
+        private static final int MAGIC = 0x4F435431;
+
         @Override
-        public byte[] serialize(Blocks blocksUnknown) {
+        public byte[] serialize(Blocks blocks) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                serialize(blocks, out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        protected void serialize(Blocks blocksUnknown, OutputStream stream) throws IOException {
             OctTreeBlocks blocks = (OctTreeBlocks) blocksUnknown;
-            // 7 * 4 = width, length, height, minX, minY, minZ, maxSize as bytes
+            // 4 = magic, 8 * 4 = width, length, height, minX, minY, minZ, maxSize, sideLength
             //the palette takes 256*3 bytes
-            //it takes 1 byte to represent a block
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            for (int value : new int[]{blocks.width, blocks.length, blocks.height, blocks.minX, blocks.minY, blocks.minZ,
+                    blocks.maxSize, blocks.getSideLength()}) {
+                out.writeInt(value);
+            }
+            byte[] palette = new byte[BlockPalette.SERIALIZED_SIZE];
+            blocks.pallet.write(ByteBuffer.wrap(palette));
+            out.write(palette);
+            blocks.blocks.write(out);
+            //not closing, because the stream belongs to the caller
+            out.flush();
+        }
 
-            //storing the metadata
-            byte[] serialized = new byte[8*4 + blocks.pallet.length * 3 + blocks.width * blocks.length * blocks.height];
-            writeInts(serialized, 0, blocks.width, blocks.length, blocks.height, blocks.minX, blocks.minY, blocks.minZ, blocks.maxSize, blocks.getSideLength());
-            int i = 8*4;
-            //storing the pallet
-            for (int palletIndex = 0; palletIndex < blocks.pallet.length; palletIndex++) {
-                Block block = blocks.pallet[palletIndex];
-                if (block != null) {
-                    serialized[i] = block.id();
-                    serialized[i+1] = block.data();
-                    serialized[i+2] = (byte) Classification.index(block.classification());
+        @Override
+        public OctTreeBlocks deserialize(byte[] ar) {
+            if (ar.length >= 4 && readInt(ar, 0) == MAGIC) {
+                try {
+                    return deserialize(new ByteArrayInputStream(ar));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-                i+=3;
             }
-            //storing the blocks
-            int finalI = i;
-            blocks.blocks.forEach((x, y, z, b) -> {
-                int index =  z * (blocks.width * blocks.length) + x*(blocks.length) + y;
-                index += finalI;
-
-                serialized[index] = b;
-            });
-            return serialized;
+            return deserializeDense(ar);
         }
 
         @Override
-        public OctTreeBlocks deserialize(byte[] ar) {
+        protected OctTreeBlocks deserialize(InputStream stream) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            in.mark(4);
+            if (in.readInt() != MAGIC) {
+                in.reset();
+                return deserializeDense(in.readAllBytes());
+            }
+            int[] ints = new int[8];
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = in.readInt();
+            }
+            OctTreeBlocks blocks = new OctTreeBlocks(ints[0], ints[1], ints[2], ints[3], ints[4], ints[5], ints[7], ints[6]);
+            byte[] palette = new byte[BlockPalette.SERIALIZED_SIZE];
+            in.readFully(palette);
+            blocks.pallet.read(ByteBuffer.wrap(palette));
+            //the tree is rebuilt node by node
+            blocks.blocks.read(in);
+            return blocks;
+        }
+
+        //the old format that has every block of the area
+        private OctTreeBlocks deserializeDense(byte[] ar) {
             // 8 * 4 = width, length, height, minX, minY, minZ,sideLength maxSize as bytes
             //the palette takes 256*3 bytes
             //it takes 1 byte to represent a block
@@ -179,25 +237,17 @@ public class OctTreeBlocks extends Blocks {
             OctTreeBlocks blocks = new OctTreeBlocks(width, length, height, minX, minY, minZ, sideLength, maxSize);
             int i = 8 * 4;
             //the pallet
-            for (int palletIndex = 0; palletIndex < blocks.pallet.length; palletIndex++) {
-                byte id = ar[i];
-                if (id != 0) {
-                    byte data = ar[i+1];
-                    Classification classification = Classification.values()[ar[i+2]];
-                    blocks.pallet[palletIndex] = new Block(id, data, classification);
+            blocks.pallet.read(ByteBuffer.wrap(ar, i, BlockPalette.SERIALIZED_SIZE));
+            i += BlockPalette.SERIALIZED_SIZE;
+            //the blocks. Air is not stored in the tree
+            for (int z = 0; z < height; z++) {
+                for (int x = 0; x < width; x++) {
+                    for (int y = 0; y < length; y++) {
+                        byte number = ar[i++];
+                        if (number != 0) blocks.blocks.set(x,y,z, number);
+                    }
                 }
-                i+=3;
             }
-            //the blocks
-            int finalI = i;
-            blocks.blocks.forEachSet((x, y, z) -> {
-                int index =  z * (blocks.width * blocks.length) + x*(blocks.length) + y;
-                index += finalI;
-
-                byte number = ar[index];
-                blocks.ids.put(blocks.pallet[number], number);
-                return number;
-            });
             return blocks;
         }
     }
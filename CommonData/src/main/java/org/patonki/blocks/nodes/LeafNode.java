@@ -1,165 +1,319 @@
 package org.patonki.blocks.nodes;
 
-import org.patonki.blocks.XYZBlock;
-
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
 
+/**
+ * Stores each (x,y) column as runs of the same block from the bottom up.
+ * Most columns only have a few runs, for example, stone, dirt, grass and air.
+ * A leaf where every block is the same is stored as a single value.
+ */
 public class LeafNode extends Node{
-    private final byte[] blocks;
+    //the runs of all columns one after another. A run is (length << 8) | value. Null if the node is uniform
+    private int[] runs;
+    //the index of the first run of each column (x * length + y). The last value is the number of runs
+    private int[] columnStart;
+    //the value of every block when the node is uniform
+    private byte fill;
 
     public LeafNode(int minX, int minY, int minZ, int width, int length, int height) {
+        this(minX, minY, minZ, width, length, height, (byte) 0);
+    }
+
+    /**
+     * @param fill the value of every block in the node
+     */
+    public LeafNode(int minX, int minY, int minZ, int width, int length, int height, byte fill) {
         super(minX, minY, minZ, width, length, height);
-        this.blocks = new byte[width*length*height];
+        this.fill = fill;
+    }
+
+    private static int run(byte value, int length) {
+        return (length << 8) | (value & 0xFF);
     }
-    private int pos(int x, int y, int z) {
-        x -= minX;
-        y -= minY;
-        z -= minZ;
-        return localPos(x,y,z);
+    private static byte value(int run) {
+        return (byte) run;
     }
-    private int localPos(int x, int y, int z) {
-        return z * (this.width * this.length) + x*(this.length) + y;
+    private static int length(int run) {
+        return run >>> 8;
+    }
+
+    private int column(int x, int y) {
+        return (x - minX) * this.length + (y - minY);
     }
 
     @Override
     public byte get(int x, int y, int z) {
         if (outOfBounds(x, y, z)) return 0;
-        return blocks[pos(x,y,z)];
+        int[] runs = this.runs;
+        if (runs == null) return fill;
+        int column = column(x,y);
+        int localZ = z - minZ;
+        int end = 0;
+        for (int i = columnStart[column]; i < columnStart[column + 1]; i++) {
+            end += length(runs[i]);
+            if (localZ < end) return value(runs[i]);
+        }
+        return 0;
     }
 
-    @Override
-    public boolean set(int x, int y, int z, byte block) {
-        if (outOfBounds(x, y, z)) return false;
-        blocks[pos(x,y,z)] = block;
-        return true;
+    //every column becomes one run of the uniform value
+    private void expand() {
+        int columns = width * length;
+        this.runs = new int[columns + (columns >> 1)];
+        this.columnStart = new int[columns + 1];
+        for (int c = 0; c < columns; c++) {
+            runs[c] = run(fill, height);
+            columnStart[c] = c;
+        }
+        columnStart[columns] = columns;
     }
 
-    @Override
-    public int size() {
-        return width * length * height;
+    //replaces the runs from first to last (exclusive) of the column with count runs and returns the index of the first one
+    private int replace(int column, int first, int last, int count) {
+        int delta = count - (last - first);
+        if (delta == 0) return first;
+        int total = columnStart[columnStart.length - 1];
+        if (total + delta > runs.length) {
+            runs = Arrays.copyOf(runs, Math.max(total + delta, runs.length + (runs.length >> 1)));
+        }
+        System.arraycopy(runs, last, runs, last + delta, total - last);
+        for (int c = column + 1; c < columnStart.length; c++) {
+            columnStart[c] += delta;
+        }
+        return first;
     }
 
     @Override
-    public boolean groundLayer(XYZBlock[][] groundModel, BlockConverter converter) {
-        int sum = 0;
-        for (int x = 0; x < this.width; x++) {
-            for (int y = 0; y < this.length; y++) {
-                for (int z = this.height-1; z >= 0; z--) {
-                    byte block = this.blocks[localPos(x,y,z)];
-                    if (block != 0) {
-                        groundModel[x+minX][y+minY] = new XYZBlock(x+minX, y+minX, z+minZ, converter.convert(block));
-                        break;
-                    }
-                }
-            }
+    public boolean set(int x, int y, int z, byte block) {
+        if (outOfBounds(x, y, z)) return false;
+        if (runs == null) {
+            if (block == fill) return true;
+            expand();
+        }
+        int column = column(x,y);
+        int localZ = z - minZ;
+        int from = columnStart[column];
+        int to = columnStart[column + 1];
+        //finding the run that contains the block
+        int i = from;
+        int start = 0;
+        while (start + length(runs[i]) <= localZ) {
+            start += length(runs[i]);
+            i++;
+        }
+        byte old = value(runs[i]);
+        if (old == block) return true;
+        int before = localZ - start;
+        int after = length(runs[i]) - before - 1;
+
+        //joining the block with the runs above and below if they have the same value
+        int first = i, last = i + 1;
+        int newLength = 1;
+        if (before == 0 && i > from && value(runs[i - 1]) == block) {
+            first = i - 1;
+            newLength += length(runs[i - 1]);
+        }
+        if (after == 0 && i + 1 < to && value(runs[i + 1]) == block) {
+            last = i + 2;
+            newLength += length(runs[i + 1]);
+        }
+        int count = (before > 0 ? 1 : 0) + 1 + (after > 0 ? 1 : 0);
+        int index = replace(column, first, last, count);
+        if (before > 0) runs[index++] = run(old, before);
+        runs[index++] = run(block, newLength);
+        if (after > 0) runs[index] = run(old, after);
+
+        if (columnStart[columnStart.length - 1] == width * length) {
+            //every column has only one run
+            collapseIfUniform();
         }
-        return sum == this.width * this.length;
+        return true;
     }
 
     @Override
-    public void forEachSet(SetByteAction action) {
-        for (int x = 0; x < this.width; x++) {
-            for (int y = 0; y < this.length; y++) {
-                for (int z = 0; z < this.height; z++) {
-                    int pos = localPos(x,y,z);
-                    if (this.blocks[pos] != 0)
-                        blocks[pos] = action.get(minX + x, minY + y,minZ + z);
-                }
+    public void fill(BBox box, byte value) {
+        if (!inside(box)) return;
+        if (coveredBy(box)) {
+            this.fill = value;
+            this.runs = null;
+            this.columnStart = null;
+            return;
+        }
+        if (runs == null) {
+            if (value == fill) return;
+            expand();
+        }
+        int fromX = Math.max(minX, box.minX()), toX = Math.min(minX + width - 1, box.maxX());
+        int fromY = Math.max(minY, box.minY()), toY = Math.min(minY + length - 1, box.maxY());
+        int fromZ = Math.max(minZ, box.minZ()) - minZ, toZ = Math.min(minZ + height - 1, box.maxZ()) - minZ;
+        for (int x = fromX; x <= toX; x++) {
+            for (int y = fromY; y <= toY; y++) {
+                fillColumn(column(x,y), fromZ, toZ, value);
             }
         }
+        if (columnStart[columnStart.length - 1] == width * length) {
+            collapseIfUniform();
+        }
     }
 
-    @Override
-    public void forEach(ByteAction action) {
-        for (int x = 0; x < this.width; x++) {
-            for (int y = 0; y < this.length; y++) {
-                for (int z = 0; z < this.height; z++) {
-                    int pos = localPos(x,y,z);
-                    if (this.blocks[pos] != 0)
-                        action.run(minX + x, minY + y,minZ + z,this.blocks[pos]);
-                }
-            }
+    //sets the blocks of the column from the local z-coordinate fromZ to toZ (inclusive) to the value
+    private void fillColumn(int column, int fromZ, int toZ, byte value) {
+        int first = columnStart[column];
+        int last = columnStart[column + 1];
+        //the runs below the filled part, the filled part and the runs above it
+        int[] result = new int[last - first + 2];
+        int count = 0;
+        int start = 0;
+        for (int i = first; i < last; i++) {
+            int end = start + length(runs[i]);
+            if (start < fromZ) count = append(result, count, value(runs[i]), Math.min(end, fromZ) - start);
+            start = end;
         }
+        count = append(result, count, value, toZ - fromZ + 1);
+        start = 0;
+        for (int i = first; i < last; i++) {
+            int end = start + length(runs[i]);
+            if (end > toZ + 1) count = append(result, count, value(runs[i]), end - Math.max(start, toZ + 1));
+            start = end;
+        }
+        int index = replace(column, first, last, count);
+        System.arraycopy(result, 0, runs, index, count);
     }
 
-    @Override
-    public void forEach(ByteAction action, BBox box) {
-        int endX = Math.min(this.minX + width - 1, box.maxX());
-        int endY = Math.min(this.minY + length -1, box.maxY());
-        int endZ = Math.min(this.minZ + height -1, box.maxZ());
-
-        int x = Math.max(this.minX, box.minX());
-        int y = Math.max(this.minY, box.minY());
-        int z = Math.max(this.minZ, box.minZ());
-
-        for (;x <= endX; x++) {
-            for (;y <= endY; y++) {
-                for (;z <= endZ; z++) {
-                    byte block = this.blocks[pos(x,y,z)];
-                    if (block != 0) action.run(x,y,z,block);
-                }
-            }
+    //adds the run to the end of the array, joining it with the last run if they have the same value
+    private static int append(int[] runs, int count, byte value, int length) {
+        if (count > 0 && value(runs[count - 1]) == value) {
+            runs[count - 1] = run(value, length(runs[count - 1]) + length);
+            return count;
         }
+        runs[count] = run(value, length);
+        return count + 1;
     }
 
-    private class BlocksIterator implements Iterator<ByteItem> {
-        private int x,y,z;
-        private int zStep = 1;
-        private final ByteItem item = new ByteItem(0,0,0, (byte) 0);
+    private void collapseIfUniform() {
+        byte value = value(runs[0]);
+        for (int c = 1; c < width * length; c++) {
+            if (value(runs[c]) != value) return;
+        }
+        this.fill = value;
+        this.runs = null;
+        this.columnStart = null;
+    }
 
-        private void reset(boolean bottomToUp) {
-            this.x = -1;
-            this.y = 0;
-            this.z = bottomToUp ? 0 : height-1;
-            this.zStep = bottomToUp ? 1 : -1;
-            advance();
+    /**
+     * Format: <br>
+     * uniform leaf: {@link #UNIFORM}, value <br>
+     * other leaves: {@link #RUNS}, number of runs, the number of runs of each column as shorts,
+     * the runs as value and length (short). The length of a run is never larger than the height of the leaf
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        int[] runs = this.runs;
+        if (runs == null) {
+            out.writeByte(UNIFORM);
+            out.writeByte(fill);
+            return;
         }
-        private void advanceCoordinates() {
-            x++;
-            if (x == width) {
-                x = 0;y++;
-                if (y == length) {
-                    y = 0;z+=zStep;
-                }
-            }
+        int columns = width * length;
+        out.writeByte(RUNS);
+        out.writeInt(columnStart[columns]);
+        for (int c = 0; c < columns; c++) {
+            out.writeShort(columnStart[c + 1] - columnStart[c]);
         }
-        private int pos(int x, int y, int z) {
-            return z * (width * length) + x*(length) + y;
+        for (int i = 0; i < columnStart[columns]; i++) {
+            out.writeByte(value(runs[i]));
+            out.writeShort(length(runs[i]));
         }
-        private void advance() {
-            advanceCoordinates();
-            while (z >= 0 && z < height && blocks[pos(x,y,z)] == 0) {
-                advanceCoordinates();
-            }
+    }
+
+    @Override
+    public void read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        if (type == UNIFORM) {
+            this.fill = in.readByte();
+            this.runs = null;
+            this.columnStart = null;
+            return;
         }
-        @Override
-        public boolean hasNext() {
-            return z < height;
+        if (type != RUNS) throw new IOException("Unknown node type " + type);
+        int columns = width * length;
+        int total = in.readInt();
+        int[] columnStart = new int[columns + 1];
+        for (int c = 0; c < columns; c++) {
+            columnStart[c + 1] = columnStart[c] + in.readUnsignedShort();
         }
-
-        @Override
-        public ByteItem next() {
-            if (z >= height)
-                throw new NoSuchElementException();
-            this.item.x = x + minX;
-            this.item.y = y + minY;
-            this.item.z = z + minZ;
-            this.item.block = blocks[pos(x,y,z)];
-            advance();
-            return this.item;
+        if (columnStart[columns] != total) throw new IOException("The run counts of the leaf don't match");
+        int[] runs = new int[total];
+        for (int i = 0; i < total; i++) {
+            byte value = in.readByte();
+            runs[i] = run(value, in.readUnsignedShort());
         }
+        this.runs = runs;
+        this.columnStart = columnStart;
     }
-    private final BlocksIterator iterator = new BlocksIterator();
+
     @Override
-    public Iterator<ByteItem> iterator() {
-        iterator.reset(true);
-        return iterator;
+    public int size() {
+        if (runs == null) return 0;
+        return (runs.length + columnStart.length) * Integer.BYTES;
     }
+
     @Override
-    public Iterator<ByteItem> getIterator(boolean bottomToUp) {
-        iterator.reset(bottomToUp);
+    public boolean isUniform() {
+        return runs == null;
+    }
 
-        return iterator;
+    @Override
+    public byte uniformValue() {
+        return fill;
+    }
+
+    @Override
+    public void forEach(ByteAction action) {
+        forEach(action, null);
+    }
+
+    @Override
+    public void forEach(ByteAction action, BBox box) {
+        int[] runs = this.runs;
+        if (runs == null) {
+            forEachInRegion(minX, minY, minZ, width, length, height, fill, action, box);
+            return;
+        }
+        int fromX = minX, toX = minX + width - 1;
+        int fromY = minY, toY = minY + length - 1;
+        int fromZ = minZ, toZ = minZ + height - 1;
+        if (box != null) {
+            fromX = Math.max(fromX, box.minX()); toX = Math.min(toX, box.maxX());
+            fromY = Math.max(fromY, box.minY()); toY = Math.min(toY, box.maxY());
+            fromZ = Math.max(fromZ, box.minZ()); toZ = Math.min(toZ, box.maxZ());
+        }
+        for (int x = fromX; x <= toX; x++) {
+            for (int y = fromY; y <= toY; y++) {
+                int column = column(x,y);
+                int z = minZ;
+                for (int i = columnStart[column]; i < columnStart[column + 1] && z <= toZ; i++) {
+                    int end = z + length(runs[i]);
+                    byte value = value(runs[i]);
+                    if (value != 0) {
+                        for (int bz = Math.max(z, fromZ); bz < end && bz <= toZ; bz++) {
+                            action.run(x, y, bz, value);
+                        }
+                    }
+                    z = end;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected Iterator<ByteItem> getIterator(boolean bottomToUp, Node root) {
+        if (runs == null && fill == 0) return Collections.emptyIterator();
+        return new RegionIterator(root, minX, minY, minZ, width, length, height, bottomToUp);
     }
 }
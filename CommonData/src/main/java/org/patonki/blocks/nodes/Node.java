@@ -1,26 +1,35 @@
 package org.patonki.blocks.nodes;
 
 
-import org.patonki.blocks.XYZBlock;
-import org.patonki.data.Block;
-
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 public abstract class Node implements Iterable<Node.ByteItem>{
 
-
-    public abstract Iterator<ByteItem> getIterator(boolean bottomToUp);
+    /**
+     * Iterates over the blocks that are not air.
+     * The blocks are read from the tree while iterating, so the iterator sees the changes made during the iteration
+     * @param bottomToUp whether the lower blocks are returned first
+     */
+    public Iterator<ByteItem> getIterator(boolean bottomToUp) {
+        return getIterator(bottomToUp, this);
+    }
+    @Override
+    public Iterator<ByteItem> iterator() {
+        return getIterator(true);
+    }
+    /**
+     * @param root the node the values are read from
+     */
+    protected abstract Iterator<ByteItem> getIterator(boolean bottomToUp, Node root);
 
     public interface ByteAction {
         void run(int x, int y, int z, byte b);
     }
-    public interface SetByteAction {
-        byte get(int x, int y, int z);
-    }
 
-    public interface BlockConverter {
-        Block convert(byte b);
-    }
     public static class ByteItem {
         public int x,y,z;
         public byte block;
@@ -51,17 +60,138 @@ public abstract class Node implements Iterable<Node.ByteItem>{
     }
     public abstract byte get(int x, int y, int z);
     public abstract boolean set(int x, int y, int z, byte block);
+    /**
+     * @return the number of bytes used to store the blocks
+     */
     public abstract int size();
-    public abstract boolean groundLayer(XYZBlock[][] model, BlockConverter converter);
 
+    /**
+     * @return whether every block in the node is the same. See {@link #uniformValue()}
+     */
+    public abstract boolean isUniform();
+
+    /**
+     * @return the value of every block in the node if the node is uniform
+     */
+    public abstract byte uniformValue();
+
+    /**
+     * Runs the action on the blocks that are not air
+     */
     public abstract void forEach(ByteAction action);
     public record BBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {}
+    /**
+     * Runs the action on the blocks that are not air inside the box (inclusive)
+     */
     public abstract void forEach(ByteAction action, BBox box);
 
-    public abstract void forEachSet(SetByteAction action);
-
     public boolean inside(BBox box) {
         return box.maxX() >= minX && box.maxY() >= minY && box.maxZ() >= minZ
             && box.minX() < minX+width && box.minY() < minY+length && box.minZ() < minZ + height;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return whether the whole node is inside the box
+     */
+    protected boolean coveredBy(BBox box) {
+        return box.minX() <= minX && box.minY() <= minY && box.minZ() <= minZ
+            && box.maxX() >= minX+width-1 && box.maxY() >= minY+length-1 && box.maxZ() >= minZ+height-1;
+    }
+
+    /**
+     * Sets every block inside the box (inclusive) to the value. Much faster than setting them one by one,
+     * because nodes that are completely inside the box are replaced with the value.
+     */
+    public abstract void fill(BBox box, byte value);
+
+    //the first byte of a serialized node
+    protected static final byte UNIFORM = 0, CHILDREN = 1, RUNS = 2;
+
+    /**
+     * Writes the node and its children. A uniform node takes two bytes, so the size of the result depends
+     * on how many different areas the node has, not on its volume.
+     */
+    public abstract void write(DataOutput out) throws IOException;
+
+    /**
+     * Reads a node written with {@link #write(DataOutput)} into this node, which must be empty and have the
+     * same area and maximum size as the written node
+     * @throws IOException if reading fails or the data is not a node
+     */
+    public abstract void read(DataInput in) throws IOException;
+
+    //runs the action on every block of a region that only contains the value. The region is clipped to the box
+    protected static void forEachInRegion(int minX, int minY, int minZ, int width, int length, int height,
+                                          byte value, ByteAction action, BBox box) {
+        if (value == 0) return;
+        int endX = minX + width - 1, endY = minY + length - 1, endZ = minZ + height - 1;
+        if (box != null) {
+            minX = Math.max(minX, box.minX()); endX = Math.min(endX, box.maxX());
+            minY = Math.max(minY, box.minY()); endY = Math.min(endY, box.maxY());
+            minZ = Math.max(minZ, box.minZ()); endZ = Math.min(endZ, box.maxZ());
+        }
+        for (int z = minZ; z <= endZ; z++) {
+            for (int x = minX; x <= endX; x++) {
+                for (int y = minY; y <= endY; y++) {
+                    action.run(x,y,z, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterates over the blocks of a region that are not air one z-layer at a time
+     */
+    protected static class RegionIterator implements Iterator<ByteItem> {
+        private final Node root;
+        private final int minX, minY, maxX, maxY, endZ, zStep;
+        private int x, y, z;
+        private byte value;
+        private final ByteItem item = new ByteItem(0,0,0, (byte) 0);
+
+        protected RegionIterator(Node root, int minX, int minY, int minZ, int width, int length, int height, boolean bottomToUp) {
+            this.root = root;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = minX + width;
+            this.maxY = minY + length;
+            this.zStep = bottomToUp ? 1 : -1;
+            this.z = bottomToUp ? minZ : minZ + height - 1;
+            this.endZ = bottomToUp ? minZ + height : minZ - 1;
+            this.x = minX - 1;
+            this.y = minY;
+            if (width <= 0 || length <= 0) {
+                this.z = endZ;
+                return;
+            }
+            advance();
+        }
+        private void advance() {
+            do {
+                x++;
+                if (x >= maxX) {
+                    x = minX; y++;
+                    if (y >= maxY) {
+                        y = minY; z += zStep;
+                    }
+                }
+            } while (z != endZ && (value = root.get(x,y,z)) == 0);
+        }
+        @Override
+        public boolean hasNext() {
+            return z != endZ;
+        }
+
+        @Override
+        public ByteItem next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            this.item.x = x;
+            this.item.y = y;
+            this.item.z = z;
+            this.item.block = value;
+            advance();
+            return this.item;
+        }
+    }
+}
@@ -1,35 +1,54 @@
 package org.patonki.blocks.nodes;
 
-import org.patonki.blocks.XYZBlock;
-
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 
+/**
+ * Divides its area into eight children. A node or a child where every block is the same
+ * (for example, air above the ground or stone below it) is not stored at all, but represented by a single value.
+ * Children that become uniform after a change are merged back into their parent.
+ */
 public class ParentNode extends Node{
     private interface ChildCreator {
-        Node create(ParentNode node, NodeCreator creator);
+        Node create(ParentNode node, NodeCreator creator, byte fill);
     }
-    private final Node[] children = new Node[8];
+    //null when every block in the node is the same
+    private Node[] children;
+    //the value of the whole node if there are no children, otherwise the value of the missing children
+    private byte fill;
     private final NodeCreator creator;
-    private boolean populated = false;
     private static final ChildCreator[] childCreators = new ChildCreator[8];
     static {
         //layer 1
-        childCreators[0] = (n,c) -> c.create(n.minX, n.minY, n.minZ, n.width/2, n.length/2, n.height/2);
-        childCreators[1] = (n,c) -> c.create(n.minX + n.width / 2, n.minY, n.minZ, n.width - n.width / 2, n.length/ 2, n.height/ 2);
-        childCreators[2] = (n,c) -> c.create(n.minX, n.minY + n.length/ 2, n.minZ, n.width / 2, n.length - n.length/ 2, n.height/ 2);
-        childCreators[3] = (n,c) -> c.create(n.minX + n.width / 2, n.minY + n.length/ 2, n.minZ, n.width - n.width / 2, n.length - n.length/ 2, n.height/ 2);
+        childCreators[0] = (n,c,f) -> c.create(n.minX, n.minY, n.minZ, n.width/2, n.length/2, n.height/2, f);
+        childCreators[1] = (n,c,f) -> c.create(n.minX + n.width / 2, n.minY, n.minZ, n.width - n.width / 2, n.length/ 2, n.height/ 2, f);
+        childCreators[2] = (n,c,f) -> c.create(n.minX, n.minY + n.length/ 2, n.minZ, n.width / 2, n.length - n.length/ 2, n.height/ 2, f);
+        childCreators[3] = (n,c,f) -> c.create(n.minX + n.width / 2, n.minY + n.length/ 2, n.minZ, n.width - n.width / 2, n.length - n.length/ 2, n.height/ 2, f);
         //layer 2
-        childCreators[4] = (n,c) -> c.create(n.minX, n.minY, n.minZ + n.height/ 2, n.width / 2, n.length/ 2, n.height - n.height/ 2);
-        childCreators[5] = (n,c) -> c.create(n.minX + n.width / 2, n.minY, n.minZ + n.height/ 2, n.width - n.width / 2, n.length/ 2, n.height - n.height/ 2);
-        childCreators[6] = (n,c) -> c.create(n.minX, n.minY + n.length/ 2, n.minZ + n.height/ 2, n.width / 2, n.length - n.length/ 2, n.height - n.height/ 2);
-        childCreators[7] = (n,c) -> c.create(n.minX + n.width / 2, n.minY + n.length/ 2, n.minZ + n.height/ 2, n.width - n.width / 2, n.length - n.length/ 2, n.height - n.height/ 2);
+        childCreators[4] = (n,c,f) -> c.create(n.minX, n.minY, n.minZ + n.height/ 2, n.width / 2, n.length/ 2, n.height - n.height/ 2, f);
+        childCreators[5] = (n,c,f) -> c.create(n.minX + n.width / 2, n.minY, n.minZ + n.height/ 2, n.width - n.width / 2, n.length/ 2, n.height - n.height/ 2, f);
+        childCreators[6] = (n,c,f) -> c.create(n.minX, n.minY + n.length/ 2, n.minZ + n.height/ 2, n.width / 2, n.length - n.length/ 2, n.height - n.height/ 2, f);
+        childCreators[7] = (n,c,f) -> c.create(n.minX + n.width / 2, n.minY + n.length/ 2, n.minZ + n.height/ 2, n.width - n.width / 2, n.length - n.length/ 2, n.height - n.height/ 2, f);
     }
+    //the order of the children when iterating from the top down
+    private static final int[] TOP_DOWN = {4, 5, 6, 7, 0, 1, 2, 3};
+    private static final int[] BOTTOM_UP = {0, 1, 2, 3, 4, 5, 6, 7};
 
     public ParentNode(int minX, int minY, int minZ, int width, int length, int height, int maxSize) {
-        super(minX, minY, minZ, width, length, height);
+        this(minX, minY, minZ, width, length, height, maxSize, (byte) 0);
+    }
 
+    /**
+     * @param fill the value of every block in the node
+     */
+    public ParentNode(int minX, int minY, int minZ, int width, int length, int height, int maxSize, byte fill) {
+        super(minX, minY, minZ, width, length, height);
+        this.fill = fill;
         if ((width / 2) * (length / 2) * (height / 2) > maxSize) {
             this.creator = getParentCreator(maxSize);
         } else {
@@ -38,19 +57,44 @@ public class ParentNode extends Node{
     }
 
     private interface NodeCreator {
-        Node create(int minX, int minY, int minZ, int width, int length, int height);
+        Node create(int minX, int minY, int minZ, int width, int length, int height, byte fill);
     }
     private static NodeCreator getParentCreator(int maxSize) {
-        return (minX, minY, minZ, width, length, height) -> new ParentNode(minX, minY, minZ, width, length, height, maxSize);
+        return (minX, minY, minZ, width, length, height, fill) -> new ParentNode(minX, minY, minZ, width, length, height, maxSize, fill);
     }
     private static NodeCreator getLeafCreator() {
         return LeafNode::new;
     }
+
+    //the area of a child
+    private int childMinX(int i) {
+        return (i & 1) == 0 ? minX : minX + width / 2;
+    }
+    private int childMinY(int i) {
+        return (i & 2) == 0 ? minY : minY + length / 2;
+    }
+    private int childMinZ(int i) {
+        return (i & 4) == 0 ? minZ : minZ + height / 2;
+    }
+    private int childWidth(int i) {
+        return (i & 1) == 0 ? width / 2 : width - width / 2;
+    }
+    private int childLength(int i) {
+        return (i & 2) == 0 ? length / 2 : length - length / 2;
+    }
+    private int childHeight(int i) {
+        return (i & 4) == 0 ? height / 2 : height - height / 2;
+    }
+    private boolean childIsEmpty(int i) {
+        return childWidth(i) == 0 || childLength(i) == 0 || childHeight(i) == 0;
+    }
+
     @Override
     public int size() {
-        if (!populated) return 0;
+        Node[] children = this.children;
+        if (children == null) return 0;
         int total = 0;
-        for (Node child : this.children) {
+        for (Node child : children) {
             if (child == null) continue;
             total += child.size();
         }
@@ -58,43 +102,35 @@ public class ParentNode extends Node{
     }
 
     @Override
-    public boolean groundLayer(XYZBlock[][] model, BlockConverter converter) {
-        int sum = 0;
-        for (int i = 4; i <= 7; i++) {
-            Node upperChild = this.children[i];
-            if (!upperChild.groundLayer(model, converter)) {
-                sum += this.children[i-4].groundLayer(model, converter) ? 1 : 0;
-            } else {
-                sum++;
-            }
-        }
-        return sum == 4;
+    public boolean isUniform() {
+        return children == null;
     }
 
     @Override
-    public void forEach(ByteAction action) {
-        if (!populated) return;
-        for (Node child : this.children) {
-            if (child == null) continue;
-            child.forEach(action);
-        }
+    public byte uniformValue() {
+        return fill;
     }
 
     @Override
-    public void forEachSet(SetByteAction action) {
-        if (!populated) return;
-        for (Node child : this.children) {
-            if (child == null) continue;
-            child.forEachSet(action);
-        }
+    public void forEach(ByteAction action) {
+        forEach(action, null);
     }
 
     @Override
     public void forEach(ByteAction action, BBox box) {
-        if (!populated) return;
-        for (Node child : children) {
-            if (child == null) continue;
-            if (child.inside(box)) {
+        Node[] children = this.children;
+        if (children == null) {
+            forEachInRegion(minX, minY, minZ, width, length, height, fill, action, box);
+            return;
+        }
+        for (int i = 0; i < children.length; i++) {
+            Node child = children[i];
+            if (child == null) {
+                forEachInRegion(childMinX(i), childMinY(i), childMinZ(i), childWidth(i), childLength(i), childHeight(i),
+                        fill, action, box);
+            } else if (box == null) {
+                child.forEach(action);
+            } else if (child.inside(box)) {
                 child.forEach(action, box);
             }
         }
@@ -106,84 +142,178 @@ public class ParentNode extends Node{
         int childHeight = this.height / 2;
         return (z >= minZ + childHeight ? 4 : 0) + (y >= minY + childLength ? 2 : 0) + (x >= minX + childWidth ? 1 : 0);
     }
-    private Node populate(int x, int y, int z) {
-        this.populated = true;
+
+    @Override
+    public byte get(int x, int y, int z) {
+        if (outOfBounds(x, y, z)) return 0;
+        Node[] children = this.children;
+        if (children == null) return fill;
+        Node child = children[rightChild(x,y,z)];
+        if (child == null) return fill;
+        return child.get(x,y,z);
+    }
+
+    @Override
+    public boolean set(int x, int y, int z, byte block) {
+        if (outOfBounds(x, y, z)) return false;
+        if (children == null) {
+            if (block == fill) return true;
+            children = new Node[8];
+        }
         int i = rightChild(x,y,z);
         Node child = children[i];
-        if (child != null) return child;
-
-        return children[i] = childCreators[i].create(this, creator);
+        if (child == null) {
+            if (block == fill) return true;
+            child = children[i] = childCreators[i].create(this, creator, fill);
+        }
+        child.set(x,y,z,block);
+        if (child.isUniform()) merge(i, child.uniformValue());
+        return true;
     }
 
+    @Override
+    public void fill(BBox box, byte value) {
+        if (!inside(box)) return;
+        if (coveredBy(box)) {
+            this.children = null;
+            this.fill = value;
+            return;
+        }
+        if (children == null) {
+            if (value == fill) return;
+            children = new Node[8];
+        }
+        for (int i = 0; i < 8; i++) {
+            if (childIsEmpty(i) || !childInside(i, box)) continue;
+            Node child = children[i];
+            if (child == null) {
+                if (value == fill) continue;
+                child = children[i] = childCreators[i].create(this, creator, fill);
+            }
+            child.fill(box, value);
+            if (child.isUniform()) merge(i, child.uniformValue());
+            //the whole node became uniform, so the rest of the children already have the value
+            if (children == null) return;
+        }
+    }
 
+    private boolean childInside(int i, BBox box) {
+        return box.maxX() >= childMinX(i) && box.maxY() >= childMinY(i) && box.maxZ() >= childMinZ(i)
+            && box.minX() < childMinX(i) + childWidth(i) && box.minY() < childMinY(i) + childLength(i)
+            && box.minZ() < childMinZ(i) + childHeight(i);
+    }
 
     @Override
-    public byte get(int x, int y, int z) {
-        if (outOfBounds(x, y, z)) return 0;
-        if (!populated) return 0;
-
-        return children[rightChild(x,y,z)].get(x,y,z);
+    public void write(DataOutput out) throws IOException {
+        Node[] children = this.children;
+        if (children == null) {
+            out.writeByte(UNIFORM);
+            out.writeByte(fill);
+            return;
+        }
+        out.writeByte(CHILDREN);
+        out.writeByte(fill);
+        for (int i = 0; i < children.length; i++) {
+            if (childIsEmpty(i)) continue;
+            Node child = children[i];
+            if (child == null) {
+                out.writeByte(UNIFORM);
+                out.writeByte(fill);
+            } else {
+                child.write(out);
+            }
+        }
     }
 
     @Override
-    public boolean set(int x, int y, int z, byte block) {
-        if (outOfBounds(x, y, z)) return false;
-        Node child = this.populate(x, y, z);
-        return child.set(x,y,z,block);
+    public void read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        this.fill = in.readByte();
+        if (type == UNIFORM) {
+            this.children = null;
+            return;
+        }
+        if (type != CHILDREN) throw new IOException("Unknown node type " + type);
+        Node[] children = new Node[8];
+        for (int i = 0; i < children.length; i++) {
+            if (childIsEmpty(i)) continue;
+            Node child = childCreators[i].create(this, creator, fill);
+            child.read(in);
+            //children with the value of the parent are not stored
+            if (!child.isUniform() || child.uniformValue() != fill) {
+                children[i] = child;
+            }
+        }
+        this.children = children;
     }
-    private class ParentIterator implements Iterator<ByteItem> {
-        private int childIndex = 0;
-        private Iterator<ByteItem> currentIterator;
-
-        private final Node[] sortedChildren = new Node[8];
-        private void reset(boolean downToUp) {
-            if (!populated) return;
-            this.childIndex = 0;
-            if (downToUp) {
-                System.arraycopy(children, 0, sortedChildren, 0, children.length);
+
+    //called when a child has become uniform
+    private void merge(int i, byte value) {
+        if (value == fill) {
+            children[i] = null;
+        }
+        for (int j = 0; j < children.length; j++) {
+            if (childIsEmpty(j)) continue;
+            Node child = children[j];
+            byte childValue;
+            if (child == null) {
+                childValue = fill;
+            } else if (child.isUniform()) {
+                childValue = child.uniformValue();
             } else {
-                for (int i = 4; i < children.length; i++) {
-                    sortedChildren[i-4] = children[i];
-                }
-                for (int i = 0; i < 4; i++) {
-                    sortedChildren[i+4] = children[i];
-                }
+                return;
             }
-            this.currentIterator = sortedChildren[childIndex] != null ? sortedChildren[childIndex].iterator() : null;
+            if (childValue != value) return;
+        }
+        this.fill = value;
+        this.children = null;
+    }
+
+    private Iterator<ByteItem> childIterator(int i, boolean bottomToUp, Node root) {
+        Node[] children = this.children;
+        Node child = children == null ? null : children[i];
+        if (child != null) return child.getIterator(bottomToUp, root);
+        if (fill == 0) return Collections.emptyIterator();
+        return new RegionIterator(root, childMinX(i), childMinY(i), childMinZ(i),
+                childWidth(i), childLength(i), childHeight(i), bottomToUp);
+    }
+
+    private class ParentIterator implements Iterator<ByteItem> {
+        private final int[] order;
+        private final boolean bottomToUp;
+        private final Node root;
+        private int index = -1;
+        private Iterator<ByteItem> currentIterator = Collections.emptyIterator();
+
+        private ParentIterator(boolean bottomToUp, Node root) {
+            this.order = bottomToUp ? BOTTOM_UP : TOP_DOWN;
+            this.bottomToUp = bottomToUp;
+            this.root = root;
             advance();
         }
+        //the iterators of the children are created when they are needed,
+        //so the children that are created during the iteration are not skipped
         private void advance() {
-            while (currentIterator == null || !currentIterator.hasNext()) {
-                childIndex++;
-                if (childIndex >= sortedChildren.length) break;
-                currentIterator = sortedChildren[childIndex] != null ? sortedChildren[childIndex].iterator() : null;
+            while (!currentIterator.hasNext() && index < order.length - 1) {
+                index++;
+                currentIterator = childIterator(order[index], bottomToUp, root);
             }
         }
         @Override
         public boolean hasNext() {
-            if (!populated) return false;
-            if (childIndex >= sortedChildren.length) return false;
+            advance();
             return currentIterator.hasNext();
         }
 
         @Override
         public ByteItem next() {
-            if (childIndex >= sortedChildren.length)
+            if (!hasNext())
                 throw new NoSuchElementException();
-            ByteItem child = currentIterator.next();
-            advance();
-            return child;
+            return currentIterator.next();
         }
     }
-    private final ParentIterator iterator = new ParentIterator();
-    @Override
-    public Iterator<ByteItem> iterator() {
-        iterator.reset(true);
-        return iterator;
-    }
     @Override
-    public Iterator<ByteItem> getIterator(boolean bottomToUp) {
-        iterator.reset(bottomToUp);
-        return iterator;
+    protected Iterator<ByteItem> getIterator(boolean bottomToUp, Node root) {
+        return new ParentIterator(bottomToUp, root);
     }
-}
\ No newline at end of file
+}
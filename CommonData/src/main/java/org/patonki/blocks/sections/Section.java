@@ -0,0 +1,215 @@
+package org.patonki.blocks.sections;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A 16*16*16 cube of blocks with its own small palette.<br>
+ * The section stores the palette indexes of the owning {@link org.patonki.blocks.ChunkedBlocks} object.
+ * Those are mapped to local indexes that are bit-packed into longs using 1, 2, 4 or 8 bits per block,
+ * depending on how many different blocks the section contains.
+ * A section that contains only one block (for example, only stone below the ground) doesn't have
+ * the array at all.
+ */
+public class Section {
+    public static final int SIZE = 16;
+    public static final int VOLUME = SIZE * SIZE * SIZE;
+
+    //local index -> palette index of the owner
+    private byte[] palette;
+    //how many blocks each local index has
+    private int[] counts;
+    private int paletteSize;
+    //null when the section only contains one kind of block
+    private long[] data;
+    private int bits;
+
+    /**
+     * Creates a section that is filled with one block
+     * @param value the palette index of the block
+     */
+    public Section(byte value) {
+        makeUniform(value);
+    }
+
+    private Section() {}
+
+    /**
+     * @param x 0-15
+     * @param y 0-15
+     * @param z 0-15
+     * @return the index of the coordinate inside the section
+     */
+    public static int index(int x, int y, int z) {
+        return (z << 8) | (x << 4) | y;
+    }
+
+    private void makeUniform(byte value) {
+        this.palette = new byte[]{value};
+        this.counts = new int[]{VOLUME};
+        this.paletteSize = 1;
+        this.data = null;
+        this.bits = 0;
+    }
+
+    private static int read(long[] data, int bits, int index) {
+        int valuesPerLong = 64 / bits;
+        int shift = (index % valuesPerLong) * bits;
+        return (int) (data[index / valuesPerLong] >>> shift) & ((1 << bits) - 1);
+    }
+    private int readLocal(int index) {
+        if (data == null) return 0;
+        return read(data, bits, index);
+    }
+
+    private void writeLocal(int index, int local) {
+        int valuesPerLong = 64 / bits;
+        int shift = (index % valuesPerLong) * bits;
+        long mask = ((1L << bits) - 1) << shift;
+        int i = index / valuesPerLong;
+        data[i] = (data[i] & ~mask) | ((long) local << shift);
+    }
+
+    public byte get(int index) {
+        return palette[readLocal(index)];
+    }
+
+    /**
+     * Sets a block
+     * @param index index from {@link #index(int, int, int)}
+     * @param value the palette index of the block
+     */
+    public void set(int index, byte value) {
+        int old = readLocal(index);
+        if (palette[old] == value) return;
+
+        int local = localIndexOf(value);
+        if (local == -1) {
+            local = addToPalette(value);
+            //adding to the palette can change the bit-packing
+            old = readLocal(index);
+        }
+        writeLocal(index, local);
+        counts[old]--;
+        counts[local]++;
+        if (counts[local] == VOLUME) {
+            makeUniform(value);
+        }
+    }
+
+    private int localIndexOf(byte value) {
+        for (int i = 0; i < paletteSize; i++) {
+            if (palette[i] == value && counts[i] > 0) return i;
+        }
+        return -1;
+    }
+
+    private int addToPalette(byte value) {
+        if (data == null) {
+            resize(1);
+        }
+        //reusing an index that is no longer used by any block
+        for (int i = 0; i < paletteSize; i++) {
+            if (counts[i] == 0) {
+                palette[i] = value;
+                return i;
+            }
+        }
+        if (paletteSize == 1 << bits) {
+            resize(bits * 2);
+        }
+        palette[paletteSize] = value;
+        counts[paletteSize] = 0;
+        return paletteSize++;
+    }
+
+    private void resize(int newBits) {
+        long[] oldData = this.data;
+        int oldBits = this.bits;
+        this.data = new long[VOLUME * newBits / 64];
+        this.bits = newBits;
+        if (oldData != null) {
+            for (int i = 0; i < VOLUME; i++) {
+                writeLocal(i, read(oldData, oldBits, i));
+            }
+        }
+        byte[] newPalette = new byte[1 << newBits];
+        int[] newCounts = new int[1 << newBits];
+        System.arraycopy(palette, 0, newPalette, 0, paletteSize);
+        System.arraycopy(counts, 0, newCounts, 0, paletteSize);
+        this.palette = newPalette;
+        this.counts = newCounts;
+    }
+
+    public boolean isUniform() {
+        return data == null;
+    }
+
+    /**
+     * @return the palette index of the only block in the section. Only valid if {@link #isUniform()}
+     */
+    public byte uniformValue() {
+        return palette[0];
+    }
+
+    /**
+     * @return approximately the number of bytes used by the section
+     */
+    public int size() {
+        return (data == null ? 0 : data.length * 8) + palette.length + counts.length * 4;
+    }
+
+    /**
+     * @return the number of bytes {@link #write(ByteBuffer)} writes
+     */
+    public int serializedSize() {
+        if (data == null) return 2;
+        return 1 + 1 + 2 + paletteSize + data.length * 8;
+    }
+
+    /**
+     * Format: <br>
+     * uniform section: 1, palette index <br>
+     * other sections: 2, bits per block, palette size as short, palette, the bit-packed longs
+     */
+    public void write(ByteBuffer buffer) {
+        if (data == null) {
+            buffer.put((byte) 1);
+            buffer.put(palette[0]);
+            return;
+        }
+        buffer.put((byte) 2);
+        buffer.put((byte) bits);
+        buffer.putShort((short) paletteSize);
+        buffer.put(palette, 0, paletteSize);
+        for (long l : data) {
+            buffer.putLong(l);
+        }
+    }
+
+    /**
+     * Reads a section written with {@link #write(ByteBuffer)}
+     */
+    public static Section read(ByteBuffer buffer) {
+        byte type = buffer.get();
+        if (type == 1) {
+            return new Section(buffer.get());
+        }
+        if (type != 2) {
+            throw new IllegalArgumentException("Unknown section type: " + type);
+        }
+        Section section = new Section();
+        section.bits = buffer.get();
+        section.paletteSize = buffer.getShort();
+        section.palette = new byte[1 << section.bits];
+        section.counts = new int[1 << section.bits];
+        buffer.get(section.palette, 0, section.paletteSize);
+        section.data = new long[VOLUME * section.bits / 64];
+        for (int i = 0; i < section.data.length; i++) {
+            section.data[i] = buffer.getLong();
+        }
+        for (int i = 0; i < VOLUME; i++) {
+            section.counts[section.readLocal(i)]++;
+        }
+        return section;
+    }
+}
@@ -0,0 +1,76 @@
+package org.patonki.data;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every different {@link Block} an int id that stays the same for the lifetime of the program.<br>
+ * Code that sets the same blocks over and over again can look up the id once and use
+ * {@link org.patonki.blocks.Blocks#set(int, int, int, int)}, which skips hashing the block.<br>
+ * Id {@link #AIR} (0) is reserved for air. The ids are not stored in the caches, because they depend on the order
+ * in which the blocks were registered. The registry is thread safe.
+ */
+public final class BlockRegistry {
+    /**
+     * The id of air (no block)
+     */
+    public static final int AIR = 0;
+
+    private static final ConcurrentHashMap<Block, Integer> ids = new ConcurrentHashMap<>();
+    //indexed with the id. Replaced as a whole when it grows, so it can be read without locking
+    private static volatile Block[] blocks = new Block[64];
+    private static volatile int size = 1;
+
+    private BlockRegistry() {}
+
+    /**
+     * Returns the id of the block, registering it if it has not been seen before.
+     * @param block the block or null for air
+     * @return the id of the block or {@link #AIR}
+     */
+    public static int idOf(@Nullable Block block) {
+        if (block == null) return AIR;
+        Integer id = ids.get(block);
+        if (id != null) return id;
+        return register(block);
+    }
+
+    private static synchronized int register(Block block) {
+        //another thread may have registered the block
+        Integer id = ids.get(block);
+        if (id != null) return id;
+        int newId = size;
+        Block[] blocks = BlockRegistry.blocks;
+        if (newId >= blocks.length) {
+            blocks = Arrays.copyOf(blocks, blocks.length * 2);
+        }
+        blocks[newId] = block;
+        //the block must be readable before the id is handed out
+        BlockRegistry.blocks = blocks;
+        size = newId + 1;
+        ids.put(block, newId);
+        return newId;
+    }
+
+    /**
+     * @param id id returned by {@link #idOf(Block)}
+     * @return the block or null for {@link #AIR}
+     * @throws IllegalArgumentException if no block has the id
+     */
+    @Nullable
+    public static Block get(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("No block has the id " + id);
+        }
+        return blocks[id];
+    }
+
+    /**
+     * @return the number of ids handed out including {@link #AIR}. Every id is smaller than this
+     */
+    public static int size() {
+        return size;
+    }
+}
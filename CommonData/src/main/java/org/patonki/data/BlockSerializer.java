@@ -1,9 +1,280 @@
 package org.patonki.data;
 
 import org.patonki.blocks.Blocks;
+import org.patonki.blocks.BlocksDelta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
- * Enables the serialization of blocks objects
+ * Enables the serialization of blocks objects.<br>
+ * The files written with {@link #write(Blocks, File)} start with a small header that tells the {@link CacheCompression}
+ * and the blocks are streamed to the file, so the whole file doesn't have to fit in a byte array.
+ * Files written before the header was added can still be read.<br>
+ * Compressed files are compressed in independent frames with an index at the end, so a part of the blocks
+ * can be read with {@link #readRegion(File, IntBoundingBox3D)} without decompressing the whole file.
  */
 public abstract class BlockSerializer extends Serializer<Blocks> {
+    //"CACH". The old files start with the width, which is never this large
+    private static final int MAGIC = 0x43414348;
+    // 4 bytes magic + 1 byte compression
+    private static final int HEADER_SIZE = 5;
+    //set in the compression byte when the data is compressed in frames
+    private static final int FRAMED = 0x80;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private CacheCompression compression = CacheCompression.NONE;
+
+    /**
+     * Sets the compression of the files written with {@link #write(Blocks, File)}.
+     * Reading detects the compression from the file.
+     * @param compression the compression
+     */
+    public void setCompression(CacheCompression compression) {
+        if (compression == null) throw new NullPointerException("Compression cannot be null!");
+        this.compression = compression;
+    }
+
+    public CacheCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Writes the serialized blocks to the stream. The default implementation writes {@link #serialize(Object)},
+     * implementations should override this if they can write the blocks without copying them to a byte array.
+     * @param blocks the blocks
+     * @param out the stream. Shouldn't be closed
+     * @throws IOException if writing fails
+     */
+    protected void serialize(Blocks blocks, OutputStream out) throws IOException {
+        out.write(serialize(blocks));
+    }
+
+    /**
+     * Reads blocks written with {@link #serialize(Blocks, OutputStream)}.
+     * The default implementation reads the whole stream to a byte array.
+     * @param in the stream
+     * @return the blocks
+     * @throws IOException if reading fails
+     */
+    protected Blocks deserialize(InputStream in) throws IOException {
+        return deserialize(in.readAllBytes());
+    }
+
+    /**
+     * Reads uncompressed blocks from the current position of the channel to the end of the file.
+     * The default implementation uses {@link #deserialize(InputStream)}, implementations can override this
+     * if they can read the file faster, for example, by mapping it.
+     * @param channel the channel. Shouldn't be closed
+     * @return the blocks
+     * @throws IOException if reading fails
+     */
+    protected Blocks deserialize(FileChannel channel) throws IOException {
+        return deserialize(Channels.newInputStream(channel));
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes the blocks to a file with the {@link #getCompression() compression}. Implementations can override this if
+     * they have a faster way to write the blocks to a file.
+     * @param blocks the blocks
+     * @param file the file
+     * @throws IOException if writing fails
+     */
+    public void write(Blocks blocks, File file) throws IOException {
+        write(file, out -> serialize(blocks, out));
+    }
+
+    /**
+     * Copies the blocks so that they can be written with {@link #write(byte[], File)} while the blocks are modified.
+     * @param blocks the blocks
+     * @return the serialized blocks or null if they shouldn't be copied to a byte array, for example, because they don't fit in one.
+     * Then the blocks must be written with {@link #write(Blocks, File)} before they are modified
+     */
+    public byte[] snapshot(Blocks blocks) {
+        return serialize(blocks);
+    }
+
+    /**
+     * Writes blocks serialized with {@link #serialize(Object)} to a file. The file is the same as the one
+     * written by {@link #write(Blocks, File)}. Used to write a copy of the blocks on another thread
+     * while the blocks are being modified. Also writes a {@link BlocksDelta}, which is read with {@link #readChanges(Blocks, File)}.
+     * @param serialized the serialized blocks
+     * @param file the file
+     * @throws IOException if writing fails
+     */
+    public void write(byte[] serialized, File file) throws IOException {
+        write(file, out -> out.write(serialized));
+    }
+
+    private void write(File file, Writer writer) throws IOException {
+        CacheCompression compression = this.compression;
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            int format = compression.ordinal() | (compression == CacheCompression.NONE ? 0 : FRAMED);
+            header.putInt(MAGIC).put((byte) format).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            OutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            //closing the streams finishes the compression and closes the channel
+            try (OutputStream out = compression == CacheCompression.NONE ? buffered : new FramedOutputStream(buffered, compression)) {
+                writer.write(out);
+            }
+        }
+    }
+
+    /**
+     * The header of a file written with {@link #write(Blocks, File)}
+     * @param compression the compression. Compressed data is always in frames, see {@link FramedOutputStream}
+     */
+    protected record Header(CacheCompression compression) {}
+
+    /**
+     * Reads the header of a file written with {@link #write(Blocks, File)} and leaves the channel at the start of the data.
+     * Files without a header are uncompressed and the data starts from the beginning
+     * @throws IOException if reading fails, the compression is unknown or the data is compressed without frames
+     */
+    protected static Header readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header) != -1) {}
+        header.flip();
+        if (header.remaining() == HEADER_SIZE && header.getInt() == MAGIC) {
+            int format = header.get() & 0xFF;
+            int index = format & ~FRAMED;
+            if (index >= CacheCompression.values().length) {
+                throw new IOException("Unknown compression " + index + " in file " + file);
+            }
+            CacheCompression compression = CacheCompression.values()[index];
+            boolean framed = (format & FRAMED) != 0;
+            if (compression != CacheCompression.NONE && !framed) {
+                throw new IOException("Compression " + compression + " without frames in file " + file);
+            }
+            if (compression == CacheCompression.NONE && framed) {
+                throw new IOException("Uncompressed data in frames in file " + file);
+            }
+            return new Header(compression);
+        }
+        //an old file without the header. The data is the same as in an uncompressed file
+        channel.position(0);
+        return new Header(CacheCompression.NONE);
+    }
+
+    private interface Reader<T> {
+        T read(InputStream in) throws IOException;
+    }
+
+    //reads the data after the header as a stream
+    private static <T> T readStream(FileChannel channel, Header header, Reader<T> reader) throws IOException {
+        if (header.compression() != CacheCompression.NONE) {
+            try (FramedInput frames = new FramedInput(channel, channel.position())) {
+                return reader.read(new BufferedInputStream(frames.stream(), BUFFER_SIZE));
+            }
+        }
+        try (InputStream in = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE)) {
+            return reader.read(in);
+        }
+    }
+
+    /**
+     * Reads blocks written with {@link #write(Blocks, File)}
+     * @param file the file
+     * @return the blocks
+     * @throws IOException if reading fails
+     */
+    public Blocks read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Header header = readHeader(channel, file);
+            if (header.compression() == CacheCompression.NONE) {
+                return deserialize(channel);
+            }
+            return readStream(channel, header, this::deserialize);
+        }
+    }
+
+    /**
+     * Applies a {@link BlocksDelta} written with {@link #write(byte[], File)} to the blocks
+     * @param blocks the blocks that the delta was made from or a region of them read with {@link #readRegion(File, IntBoundingBox3D)}
+     * @param file the file
+     * @throws IOException if reading fails or the delta doesn't fit the blocks
+     */
+    public void readChanges(Blocks blocks, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            readStream(channel, readHeader(channel, file), in -> {
+                BlocksDelta.apply(blocks, in);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * The uncompressed serialized blocks that can be read from any position
+     */
+    protected interface RandomAccessData {
+        /**
+         * @param position the position in the serialized blocks
+         * @throws java.io.EOFException if the data ends before the bytes have been read
+         */
+        void readFully(long position, byte[] destination, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Reads only the blocks inside the box, for example, one building, without reading the whole file.
+     * Uncompressed files and files compressed in frames can be read partially if the implementation
+     * overrides {@link #deserializeRegion(RandomAccessData, IntBoundingBox3D)}. Otherwise, the whole file is read
+     * and a {@link Blocks#view(IntBoundingBox3D) view} of the box is returned.
+     * @param file the file written with {@link #write(Blocks, File)}
+     * @param box the box in the coordinates of the blocks in the file
+     * @return the blocks of the box. The coordinates start from zero, and the min coordinates are moved like in a view
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if the box is not inside the blocks
+     */
+    public Blocks readRegion(File file, IntBoundingBox3D box) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Header header = readHeader(channel, file);
+            long start = channel.position();
+            if (header.compression() == CacheCompression.NONE) {
+                Blocks region = deserializeRegion((position, destination, offset, length) -> {
+                    ByteBuffer buffer = ByteBuffer.wrap(destination, offset, length);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, start + position + buffer.position() - offset) == -1) {
+                            throw new EOFException("Unexpected end of file " + file);
+                        }
+                    }
+                }, box);
+                if (region != null) return region;
+            } else {
+                try (FramedInput frames = new FramedInput(channel, start)) {
+                    Blocks region = deserializeRegion(frames::readFully, box);
+                    if (region != null) return region;
+                }
+            }
+        }
+        //the file can't be read partially
+        return read(file).view(box);
+    }
+
+    /**
+     * Reads the blocks inside the box from the serialized blocks. See {@link #readRegion(File, IntBoundingBox3D)}
+     * @param data the data written by {@link #serialize(Blocks, OutputStream)}
+     * @param box the box in the coordinates of the serialized blocks
+     * @return the blocks in the box or null if the implementation can't read a part of the blocks
+     * @throws IOException if reading fails
+     */
+    protected Blocks deserializeRegion(RandomAccessData data, IntBoundingBox3D box) throws IOException {
+        return null;
+    }
 }
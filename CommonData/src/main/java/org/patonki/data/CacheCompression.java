@@ -0,0 +1,34 @@
+package org.patonki.data;
+
+import java.util.zip.Deflater;
+
+/**
+ * The compression of the cache files written by {@link BlockSerializer#write(org.patonki.blocks.Blocks, java.io.File)}.<br>
+ * The blocks are mostly long runs of air and ground, so even the fastest level makes the files several times smaller.
+ */
+public enum CacheCompression {
+    /**
+     * No compression. Fastest to read and write, but the files are as large as the blocks in memory
+     */
+    NONE(-1),
+    /**
+     * Deflate with the fastest level
+     */
+    FAST(Deflater.BEST_SPEED),
+    /**
+     * Deflate with the default level. Smaller files, but several times slower to write than {@link #FAST}
+     */
+    SMALL(Deflater.DEFAULT_COMPRESSION);
+
+    private final int level;
+
+    CacheCompression(int level) {
+        this.level = level;
+    }
+
+    //a deflater with the level of the compression. Should be ended after use
+    Deflater newDeflater() {
+        if (this == NONE) throw new IllegalStateException("NONE doesn't compress");
+        return new Deflater(level);
+    }
+}
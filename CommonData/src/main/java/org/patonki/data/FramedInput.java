@@ -0,0 +1,150 @@
+package org.patonki.data;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads data written with {@link FramedOutputStream} from a file. The data can be read from any position,
+ * and only the frames that contain the requested bytes are decompressed.
+ * The last decompressed frame is kept, so reading the data in order decompresses every frame once.
+ */
+final class FramedInput implements AutoCloseable {
+    private final FileChannel channel;
+    //the position of the first frame in the file
+    private final long start;
+    private final int frameSize;
+    private final long length;
+    private final long[] offsets;
+    private final Inflater inflater = new Inflater();
+    private final byte[] frame;
+    private byte[] compressed = new byte[0];
+    private int frameIndex = -1;
+
+    /**
+     * Reads the index of the frames
+     * @param channel the file. Not closed by this
+     * @param start the position of the first frame
+     */
+    FramedInput(FileChannel channel, long start) throws IOException {
+        this.channel = channel;
+        this.start = start;
+        long fileSize = channel.size();
+        if (fileSize - start < 8 + 16) throw new EOFException("The file is too short to contain the frame index");
+        long indexOffset = readBuffer(fileSize - 8, 8).getLong();
+        if (indexOffset < 0 || start + indexOffset + 16 > fileSize - 8) throw new IOException("Invalid frame index offset " + indexOffset);
+        ByteBuffer index = readBuffer(start + indexOffset, 16);
+        this.frameSize = index.getInt();
+        int frameCount = index.getInt();
+        this.length = index.getLong();
+        if (frameSize <= 0 || frameCount < 0 || length < 0 || (long) frameCount * frameSize < length
+                || start + indexOffset + 16 + (long) frameCount * 8 > fileSize - 8) {
+            throw new IOException("Invalid frame index");
+        }
+        ByteBuffer offsetBuffer = readBuffer(start + indexOffset + 16, frameCount * 8);
+        this.offsets = new long[frameCount + 1];
+        for (int i = 0; i < frameCount; i++) {
+            offsets[i] = offsetBuffer.getLong();
+        }
+        //the end of the last frame
+        offsets[frameCount] = indexOffset;
+        this.frame = new byte[frameSize];
+    }
+
+    private ByteBuffer readBuffer(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) throw new EOFException("Unexpected end of the file");
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * @return the length of the uncompressed data
+     */
+    long length() {
+        return length;
+    }
+
+    private void loadFrame(int index) throws IOException {
+        if (index == frameIndex) return;
+        int compressedLength = (int) (offsets[index + 1] - offsets[index] - 4);
+        if (compressedLength < 0) throw new IOException("Invalid frame " + index);
+        if (compressed.length < compressedLength) compressed = new byte[compressedLength];
+        ByteBuffer buffer = ByteBuffer.wrap(compressed, 0, compressedLength);
+        long position = start + offsets[index] + 4;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) throw new EOFException("Unexpected end of frame " + index);
+        }
+        int expected = (int) Math.min(frameSize, length - (long) index * frameSize);
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while (inflated < expected && !inflater.finished()) {
+                int count = inflater.inflate(frame, inflated, expected - inflated);
+                if (count == 0 && inflater.needsInput()) break;
+                inflated += count;
+            }
+            if (inflated != expected) throw new EOFException("Frame " + index + " has " + inflated + " bytes instead of " + expected);
+        } catch (DataFormatException e) {
+            throw new IOException("Frame " + index + " is corrupted", e);
+        }
+        frameIndex = index;
+    }
+
+    /**
+     * Reads bytes of the uncompressed data
+     * @param position the position in the uncompressed data
+     * @throws EOFException if the data ends before the bytes have been read
+     */
+    void readFully(long position, byte[] destination, int offset, int count) throws IOException {
+        if (position < 0 || position + count > length) {
+            throw new EOFException("Reading " + count + " bytes from " + position + " but the data only has " + length + " bytes");
+        }
+        while (count > 0) {
+            int index = (int) (position / frameSize);
+            loadFrame(index);
+            int inFrame = (int) (position - (long) index * frameSize);
+            int copied = Math.min(count, frameSize - inFrame);
+            System.arraycopy(frame, inFrame, destination, offset, copied);
+            position += copied;
+            offset += copied;
+            count -= copied;
+        }
+    }
+
+    /**
+     * @return a stream that reads the uncompressed data from the beginning
+     */
+    InputStream stream() {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (position >= length) return -1;
+                int count = (int) Math.min(len, length - position);
+                readFully(position, b, off, count);
+                position += count;
+                return count;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,89 @@
+package org.patonki.data;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the data in frames of {@link #FRAME_SIZE} bytes that are compressed independently of each other,
+ * and writes an index of the frames at the end. Any part of the data can then be read by decompressing
+ * only the frames that contain it, see {@link FramedInput}.<br>
+ * Every frame is the length of the compressed frame as an int and the compressed bytes.
+ * The index is the frame size, the number of frames, the length of the uncompressed data and the offset of each
+ * frame. The last 8 bytes are the offset of the index. The offsets are from the start of the first frame.
+ */
+final class FramedOutputStream extends OutputStream {
+    //small enough that reading a few blocks doesn't decompress much more than needed, but large enough to compress well
+    static final int FRAME_SIZE = 1 << 18;
+    private final DataOutputStream out;
+    private final Deflater deflater;
+    private final byte[] frame = new byte[FRAME_SIZE];
+    private byte[] compressed = new byte[FRAME_SIZE];
+    private int filled;
+    private long[] offsets = new long[64];
+    private int frameCount;
+    //the uncompressed and compressed bytes written so far. DataOutputStream.size() is only an int
+    private long length;
+    private long written;
+
+    FramedOutputStream(OutputStream out, CacheCompression compression) {
+        this.out = new DataOutputStream(out);
+        this.deflater = compression.newDeflater();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (filled == FRAME_SIZE) writeFrame();
+        frame[filled++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (filled == FRAME_SIZE) writeFrame();
+            int count = Math.min(len, FRAME_SIZE - filled);
+            System.arraycopy(b, off, frame, filled, count);
+            filled += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void writeFrame() throws IOException {
+        deflater.reset();
+        deflater.setInput(frame, 0, filled);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        if (frameCount == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[frameCount++] = written;
+        out.writeInt(compressedLength);
+        out.write(compressed, 0, compressedLength);
+        written += 4 + compressedLength;
+        length += filled;
+        filled = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (filled > 0) writeFrame();
+            long indexOffset = written;
+            out.writeInt(FRAME_SIZE);
+            out.writeInt(frameCount);
+            out.writeLong(length);
+            for (int i = 0; i < frameCount; i++) {
+                out.writeLong(offsets[i]);
+            }
+            out.writeLong(indexOffset);
+            out.close();
+        } finally {
+            deflater.end();
+        }
+    }
+}
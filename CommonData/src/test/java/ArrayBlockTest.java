@@ -1,18 +1,33 @@
 import org.junit.jupiter.api.Test;
 import org.patonki.blocks.ArrayBlocks;
+import org.patonki.blocks.Blocks;
+import org.patonki.blocks.BlocksDelta;
+import org.patonki.blocks.ChunkedBlocks;
+import org.patonki.blocks.XYZBlock;
 import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
+import org.patonki.data.CacheCompression;
 import org.patonki.data.Classification;
+import org.patonki.data.IntBoundingBox3D;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @SuppressWarnings("unchecked")
 public class ArrayBlockTest {
@@ -56,12 +71,14 @@ public class ArrayBlockTest {
                         }
                     }
                 }
-                Field idField = ArrayBlocks.class.getDeclaredField("ids");
-                idField.setAccessible(true);
+                Field palletField = ArrayBlocks.class.getDeclaredField("pallet");
+                palletField.setAccessible(true);
+                Field blocksField = palletField.getType().getDeclaredField("pallet");
+                blocksField.setAccessible(true);
 
-                HashMap<Block, Integer> idsOriginal = (HashMap<Block, Integer>) idField.get(blocks);
-                HashMap<Block, Integer> ids = (HashMap<Block, Integer>) idField.get(deserialized);
-                assertEquals(idsOriginal, ids);
+                Block[] palletOriginal = (Block[]) blocksField.get(palletField.get(blocks));
+                Block[] pallet = (Block[]) blocksField.get(palletField.get(deserialized));
+                assertArrayEquals(palletOriginal, pallet);
             }
 
         } catch (Exception e) {
@@ -73,6 +90,141 @@ public class ArrayBlockTest {
         }
 
     }
+    @Test
+    void compressedFiles() throws IOException {
+        ArrayBlocks blocks = new ArrayBlocks(64, 48, 40, 1853536, 534534, 160, 64);
+        Random rng = new Random(3);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                int groundHeight = rng.nextInt(5) + 10;
+                for (int z = 0; z < groundHeight; z++) {
+                    blocks.set(x,y,z, new Block(rng.nextInt(3) + 1, 0, Classification.GROUND));
+                }
+            }
+        }
+        ArrayBlocks.ArrayBlockSerializer serializer = new ArrayBlocks.ArrayBlockSerializer();
+        File file = File.createTempFile("blocks", ".dat");
+        try {
+            for (CacheCompression compression : CacheCompression.values()) {
+                serializer.setCompression(compression);
+                serializer.write(blocks, file);
+                if (compression != CacheCompression.NONE) {
+                    assertTrue(file.length() < blocks.getWidth() * blocks.getLength() * blocks.getHeight() / 4);
+                }
+                assertSameBlocks(blocks, serializer.read(file));
+            }
+            //files written before the compression header was added
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(serializer.serialize(blocks));
+            }
+            assertSameBlocks(blocks, serializer.read(file));
+            //compressed data is always in frames, so a compressed header without the frame bit is corrupted
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[]{'C', 'A', 'C', 'H', (byte) CacheCompression.FAST.ordinal()});
+                out.write(serializer.serialize(blocks));
+            }
+            assertThrows(IOException.class, () -> serializer.read(file));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    void deltaFiles() throws IOException {
+        //not a multiple of the brick size, so the edge bricks are partly outside the area
+        ArrayBlocks blocks = new ArrayBlocks(70, 50, 40, 1853536, 534534, 160, 70);
+        blocks.fillBox(0, 0, 0, 69, 49, 9, new Block(1, 0, Classification.GROUND));
+        ArrayBlocks.ArrayBlockSerializer serializer = new ArrayBlocks.ArrayBlockSerializer();
+        serializer.setCompression(CacheCompression.FAST);
+        File base = File.createTempFile("blocks", ".dat");
+        File delta = File.createTempFile("blocks", ".delta");
+        try {
+            serializer.write(blocks, base);
+            assertNull(BlocksDelta.serialize(blocks));
+            blocks.trackChanges();
+            blocks.set(68, 48, 10, new Block(5, 2, Classification.BUILDING));
+            blocks.remove(3, 4, 9);
+            blocks.fillColumn(20, 20, 10, 39, new Block(6, 0, Classification.LOW_VEGETATION));
+            blocks.replaceInColumn(40, 40, b -> b != null, new Block(2, 0, Classification.GROUND));
+
+            byte[] changes = BlocksDelta.serialize(blocks);
+            assertNotNull(changes);
+            serializer.write(changes, delta);
+            assertTrue(delta.length() < blocks.getWidth() * blocks.getLength() * blocks.getHeight() / 10);
+            Blocks read = serializer.read(base);
+            serializer.readChanges(read, delta);
+            assertSameBlocks(blocks, read);
+
+            //replacing in the palette changes blocks everywhere
+            blocks.replaceAll(Map.of(new Block(1, 0, Classification.GROUND), new Block(3, 0, Classification.GROUND)));
+            assertNull(BlocksDelta.serialize(blocks));
+
+            ArrayBlocks other = new ArrayBlocks(80, 50, 40, 1853536, 534534, 160, 80);
+            assertThrows(IOException.class, () -> serializer.readChanges(other, delta));
+        } finally {
+            assertTrue(base.delete());
+            assertTrue(delta.delete());
+        }
+    }
+
+    @Test
+    void regionReads() throws IOException {
+        //several compression frames
+        ArrayBlocks blocks = new ArrayBlocks(200, 100, 40, 1853536, 534534, 160, 200);
+        Random rng = new Random(5);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                blocks.fillColumn(x, y, 0, rng.nextInt(5) + 10, new Block(rng.nextInt(3) + 1, 0, Classification.GROUND));
+            }
+        }
+        blocks.fillBox(150, 20, 11, 170, 30, 30, new Block(7, 0, Classification.BUILDING));
+        IntBoundingBox3D box = new IntBoundingBox3D(140, 15, 3, 40, 30, 35);
+        ArrayBlocks.ArrayBlockSerializer serializer = new ArrayBlocks.ArrayBlockSerializer();
+        File file = File.createTempFile("blocks", ".dat");
+        File delta = File.createTempFile("blocks", ".delta");
+        try {
+            for (CacheCompression compression : CacheCompression.values()) {
+                serializer.setCompression(compression);
+                serializer.write(blocks, file);
+                Blocks region = serializer.readRegion(file, box);
+                assertTrue(region instanceof ArrayBlocks);
+                assertEquals(blocks.getMinX() + box.x(), region.getMinX());
+                assertSameBlocks(blocks.view(box), region);
+                assertSameBlocks(blocks, serializer.read(file));
+            }
+            assertThrows(IllegalArgumentException.class, () -> serializer.readRegion(file, new IntBoundingBox3D(190, 0, 0, 20, 10, 10)));
+
+            //a delta can be applied to a region
+            blocks.trackChanges();
+            blocks.remove(155, 25, 20);
+            blocks.set(10, 10, 30, new Block(2, 0, Classification.GROUND));
+            serializer.write(BlocksDelta.serialize(blocks), delta);
+            Blocks region = serializer.readRegion(file, box);
+            serializer.readChanges(region, delta);
+            assertSameBlocks(blocks.view(box), region);
+        } finally {
+            assertTrue(file.delete());
+            assertTrue(delta.delete());
+        }
+    }
+
+    private static void assertSameBlocks(Blocks expected, Blocks actual) {
+        assertEquals(expected.getMinX(), actual.getMinX());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int x = 0; x < expected.getWidth(); x++) {
+            for (int y = 0; y < expected.getLength(); y++) {
+                for (int z = 0; z < expected.getHeight(); z++) {
+                    assertEquals(expected.get(x,y,z), actual.get(x,y,z));
+                    //the bitmaps are rebuilt when the blocks are read
+                    assertEquals(expected.isAir(x,y,z), actual.isAir(x,y,z));
+                    assertEquals(expected.hasClassification(x,y,z, Classification.GROUND), actual.hasClassification(x,y,z, Classification.GROUND));
+                }
+            }
+        }
+        assertEquals(expected.getGroundHeight(5, 5), actual.getGroundHeight(5, 5));
+        assertEquals(expected.neighborsCount(10, 10, 12), actual.neighborsCount(10, 10, 12));
+    }
+
     @Test
     void serialization() {
         ArrayBlocks blocks = new ArrayBlocks(500, 200, 50, 1853536, 534534, 160, 500);
@@ -99,4 +251,176 @@ public class ArrayBlockTest {
         assertEquals(block.data(), deserializedBlock.data());
         assertEquals(block.classification(), deserializedBlock.classification());
     }
+
+    @Test
+    void neighborQueries() {
+        //ChunkedBlocks uses the default implementations that look up every block
+        ArrayBlocks blocks = new ArrayBlocks(40, 70, 20, 0, 0, 0, 40);
+        ChunkedBlocks correct = new ChunkedBlocks(40, 70, 20, 0, 0, 0, 40);
+        Classification[] classifications = {Classification.BUILDING, Classification.GROUND, Classification.UNKNOWN};
+        Random rng = new Random(1);
+        for (int i = 0; i < 40000; i++) {
+            int x = rng.nextInt(blocks.getWidth());
+            int y = rng.nextInt(blocks.getLength());
+            int z = rng.nextInt(blocks.getHeight());
+            if (rng.nextInt(4) == 0) {
+                blocks.remove(x,y,z);
+                correct.remove(x,y,z);
+            } else {
+                Block block = new Block(rng.nextInt(3)+1, 0, classifications[rng.nextInt(classifications.length)]);
+                blocks.set(x,y,z, block);
+                correct.set(x,y,z, block);
+            }
+        }
+        for (int x = -1; x <= blocks.getWidth(); x++) {
+            for (int y = -1; y <= blocks.getLength(); y++) {
+                for (int z = -1; z <= blocks.getHeight(); z++) {
+                    assertEquals(correct.isAir(x,y,z), blocks.isAir(x,y,z));
+                    assertEquals(correct.neighborsCount(x,y,z), blocks.neighborsCount(x,y,z));
+                    for (Classification classification : Classification.values()) {
+                        assertEquals(correct.hasClassification(x,y,z, classification), blocks.hasClassification(x,y,z, classification));
+                        assertEquals(correct.numberOfNeighboringBlocksWithClassification(x,y,z, classification),
+                                blocks.numberOfNeighboringBlocksWithClassification(x,y,z, classification));
+                    }
+                }
+            }
+        }
+        ArrayBlocks deserialized = new ArrayBlocks.ArrayBlockSerializer().deserialize(new ArrayBlocks.ArrayBlockSerializer().serialize(blocks));
+        assertEquals(correct.neighborsCount(10, 10, 10), deserialized.neighborsCount(10, 10, 10));
+        assertFalse(deserialized.isAir(blocks.iterator().next()));
+    }
+
+    @Test
+    void neighborBufferAndVisitor() {
+        ArrayBlocks blocks = new ArrayBlocks(10, 10, 10, 0, 0, 0, 10);
+        Random rng = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            blocks.set(rng.nextInt(10), rng.nextInt(10), rng.nextInt(10), new Block(rng.nextInt(3)+1, 0, Classification.GROUND));
+        }
+        XYZBlock[] buffer = new XYZBlock[6];
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    List<XYZBlock> list = blocks.neighborsList(x,y,z);
+                    int count = blocks.neighbors(x,y,z, buffer);
+                    assertEquals(list.size(), count);
+                    List<XYZBlock> visited = new ArrayList<>();
+                    blocks.forEachNeighbor(x,y,z, (x1, y1, z1, block) -> visited.add(new XYZBlock(x1,y1,z1, block)));
+                    for (int i = 0; i < count; i++) {
+                        assertEquals(list.get(i).x(), buffer[i].x());
+                        assertEquals(list.get(i).y(), buffer[i].y());
+                        assertEquals(list.get(i).z(), buffer[i].z());
+                        assertEquals(list.get(i).block(), buffer[i].block());
+                        assertEquals(list.get(i).z(), visited.get(i).z());
+                        assertEquals(list.get(i).block(), visited.get(i).block());
+                    }
+                    assertEquals(blocks.xyNeighborsList(x,y,z).size(), blocks.xyNeighbors(x,y,z, buffer));
+                }
+            }
+        }
+    }
+
+    @Test
+    void iterationSkipsEmptySpace() {
+        ArrayBlocks blocks = new ArrayBlocks(37, 29, 41, 0, 0, 0, 37);
+        Random rng = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            blocks.set(rng.nextInt(37), rng.nextInt(29), rng.nextInt(41), new Block(1, 0, Classification.GROUND));
+        }
+        for (boolean bottomToUp : new boolean[]{true, false}) {
+            //the order is z, then x, then y like in the array
+            List<XYZBlock> expected = new ArrayList<>();
+            for (int z = 0; z < blocks.getHeight(); z++) {
+                int z1 = bottomToUp ? z : blocks.getHeight() - 1 - z;
+                for (int x = 0; x < blocks.getWidth(); x++) {
+                    for (int y = 0; y < blocks.getLength(); y++) {
+                        Block block = blocks.get(x,y,z1);
+                        if (block != null) expected.add(new XYZBlock(x,y,z1, block));
+                    }
+                }
+            }
+            Iterator<XYZBlock> iterator = blocks.getIterator(bottomToUp);
+            for (XYZBlock block : expected) {
+                assertTrue(iterator.hasNext());
+                XYZBlock next = iterator.next();
+                assertEquals(block.x(), next.x());
+                assertEquals(block.y(), next.y());
+                assertEquals(block.z(), next.z());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    void modificationDuringIteration() {
+        ArrayBlocks blocks = new ArrayBlocks(20, 20, 20, 0, 0, 0, 20);
+        Block block = new Block(1, 0, Classification.GROUND);
+        blocks.set(1, 1, 1, block);
+        blocks.set(2, 1, 1, block);
+        Iterator<XYZBlock> iterator = blocks.iterator();
+        XYZBlock first = iterator.next();
+        assertEquals(1, first.x());
+        //removing the next block and adding one to an empty brick ahead
+        blocks.remove(2, 1, 1);
+        blocks.set(15, 15, 15, block);
+        XYZBlock second = iterator.next();
+        assertEquals(15, second.x());
+        assertEquals(block, second.block());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    void forEachSetInStorageOrder() {
+        ArrayBlocks blocks = new ArrayBlocks(4, 3, 5, 0, 0, 0, 4);
+        Block ground = new Block(2, 0, Classification.GROUND);
+        Block building = new Block(1, 0, Classification.BUILDING);
+        int[] previous = {-1};
+        blocks.forEachSet((x, y, z, b) -> {
+            //the index in BlockData grows by one each step
+            int i = z * (blocks.getWidth() * blocks.getLength()) + x * blocks.getLength() + y;
+            assertEquals(previous[0] + 1, i);
+            previous[0] = i;
+            return z == 0 ? ground : null;
+        });
+        blocks.forEachSet((x, y, z, b) -> b == null && z == 1 ? building : b);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                assertEquals(ground, blocks.get(x, y, 0));
+                assertEquals(building, blocks.get(x, y, 1));
+                assertNull(blocks.get(x, y, 2));
+            }
+        }
+        assertEquals(1, blocks.getHighestBlockHeight(0, 0));
+    }
+
+    @Test
+    void setWithRegistryId() {
+        ArrayBlocks blocks = new ArrayBlocks(4, 4, 4, 0, 0, 0, 4);
+        Block stone = new Block(1, 0, Classification.GROUND);
+        int stoneId = BlockRegistry.idOf(stone);
+        assertEquals(stoneId, BlockRegistry.idOf(new Block(1, 0, Classification.GROUND)));
+        assertEquals(stone, BlockRegistry.get(stoneId));
+
+        blocks.set(1, 2, 3, stoneId);
+        assertEquals(stone, blocks.get(1, 2, 3));
+        assertEquals(stoneId, blocks.getId(1, 2, 3));
+        assertEquals(3, blocks.getHighestBlockHeight(1, 2));
+        assertEquals(BlockRegistry.AIR, blocks.getId(0, 0, 0));
+
+        blocks.set(1, 2, 3, BlockRegistry.AIR);
+        assertNull(blocks.get(1, 2, 3));
+    }
+
+    @Test
+    void paletteOverflow() {
+        ArrayBlocks blocks = new ArrayBlocks(16, 16, 2, 0, 0, 0, 16);
+        //more than 127 blocks used to wrap to negative indexes
+        for (int i = 0; i < 255; i++) {
+            blocks.set(i % 16, i / 16, 0, new Block(1 + i % 100, i / 100, Classification.GROUND));
+        }
+        for (int i = 0; i < 255; i++) {
+            assertEquals(new Block(1 + i % 100, i / 100, Classification.GROUND), blocks.get(i % 16, i / 16, 0));
+        }
+        assertThrows(IllegalStateException.class, () -> blocks.set(0, 0, 1, new Block(120, 0, Classification.GROUND)));
+    }
 }
@@ -0,0 +1,60 @@
+import org.junit.jupiter.api.Test;
+import org.patonki.blocks.ArrayBlocks;
+import org.patonki.blocks.Blocks;
+import org.patonki.blocks.OctTreeBlocks;
+import org.patonki.blocks.XYZBlock;
+import org.patonki.data.Block;
+import org.patonki.data.Classification;
+import org.patonki.data.IntBoundingBox3D;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlocksViewTest {
+    private static void testView(Blocks blocks) {
+        Block stone = new Block(1, 0, Classification.GROUND);
+        Block wall = new Block(2, 0, Classification.BUILDING);
+        blocks.set(12, 7, 3, stone);
+        blocks.set(3, 3, 3, stone);
+
+        Blocks view = blocks.view(new IntBoundingBox3D(10, 5, 2, 6, 4, 5));
+        assertEquals(6, view.getWidth());
+        assertEquals(blocks.getMinX() + 10, view.getMinX());
+        assertEquals(stone, view.get(2, 2, 1));
+        //outside the view
+        assertNull(view.get(-7, -2, 1));
+        assertFalse(view.set(6, 0, 0, stone));
+
+        view.set(0, 0, 0, wall);
+        assertEquals(wall, blocks.get(10, 5, 2));
+        //the box is clipped to the view
+        view.fillBox(4, 0, 0, 100, 0, 100, wall);
+        assertEquals(wall, blocks.get(15, 5, 6));
+        assertNull(blocks.get(16, 5, 2));
+        assertNull(blocks.get(15, 5, 7));
+
+        int count = 0;
+        for (XYZBlock block : view) {
+            assertEquals(blocks.get(block.x() + 10, block.y() + 5, block.z() + 2), block.block());
+            count++;
+        }
+        assertEquals(1 + 1 + 2 * 5, count);
+        assertEquals(4, view.getHighestBlockHeight(4, 0));
+        assertEquals(1, view.getGroundHeight(2, 2));
+
+        view.remove(2, 2, 1);
+        assertNull(blocks.get(12, 7, 3));
+        assertEquals(stone, blocks.get(3, 3, 3));
+
+        assertThrows(IllegalArgumentException.class, () -> blocks.view(new IntBoundingBox3D(15, 0, 0, 6, 1, 1)));
+    }
+
+    @Test
+    void arrayBlocks() {
+        testView(new ArrayBlocks(20, 15, 10, 100, 200, 0, 20));
+    }
+
+    @Test
+    void octTreeBlocks() {
+        testView(new OctTreeBlocks(20, 15, 10, 100, 200, 0, 20, 50));
+    }
+}
@@ -0,0 +1,228 @@
+import org.junit.jupiter.api.Test;
+import org.patonki.blocks.Blocks;
+import org.patonki.blocks.ChunkedBlocks;
+import org.patonki.blocks.XYZBlock;
+import org.patonki.data.Block;
+import org.patonki.data.CacheCompression;
+import org.patonki.data.Classification;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkedBlocksTest {
+
+    private static Block randomBlock(Random rng, int different) {
+        Classification classification = switch (rng.nextInt(4)) {
+            case 1 -> Classification.BUILDING;
+            case 2 -> Classification.LOW_VEGETATION;
+            case 3 -> Classification.BRIDGE;
+            default -> Classification.UNKNOWN;
+        };
+        return new Block(rng.nextInt(different)+1, rng.nextInt(3), classification);
+    }
+
+    @Test
+    void setGetAndRemove() {
+        ChunkedBlocks blocks = new ChunkedBlocks(70, 40, 35, 0, 0, 0, 70);
+        Block[][][] correct = new Block[70][40][35];
+        Random rng = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            int x = rng.nextInt(blocks.getWidth());
+            int y = rng.nextInt(blocks.getLength());
+            int z = rng.nextInt(blocks.getHeight());
+            if (rng.nextInt(3) == 0) {
+                blocks.remove(x,y,z);
+                correct[x][y][z] = null;
+            } else {
+                //more than 16 different blocks so that the sections need 8 bits
+                correct[x][y][z] = randomBlock(rng, 20);
+                blocks.set(x,y,z, correct[x][y][z]);
+            }
+        }
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    assertEquals(correct[x][y][z], blocks.get(x,y,z));
+                }
+            }
+        }
+        assertNull(blocks.get(-1, 0, 0));
+        assertFalse(blocks.set(70, 0, 0, randomBlock(rng, 5)));
+    }
+
+    @Test
+    void streamedFile() throws IOException {
+        ChunkedBlocks blocks = new ChunkedBlocks(70, 40, 35, 0, 0, 0, 70);
+        Random rng = new Random(2);
+        for (int i = 0; i < 20000; i++) {
+            blocks.set(rng.nextInt(70), rng.nextInt(40), rng.nextInt(35), randomBlock(rng, 20));
+        }
+        //a uniform section
+        blocks.fillBox(16, 16, 16, 31, 31, 31, randomBlock(rng, 5));
+        ChunkedBlocks.ChunkedBlocksSerializer serializer = new ChunkedBlocks.ChunkedBlocksSerializer();
+        serializer.setCompression(CacheCompression.FAST);
+        File file = File.createTempFile("chunked", ".dat");
+        try {
+            serializer.write(blocks, file);
+            Blocks read = serializer.read(file);
+            for (int x = 0; x < blocks.getWidth(); x++) {
+                for (int y = 0; y < blocks.getLength(); y++) {
+                    for (int z = 0; z < blocks.getHeight(); z++) {
+                        assertEquals(blocks.get(x,y,z), read.get(x,y,z));
+                    }
+                }
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    void uniformSections() {
+        ChunkedBlocks blocks = new ChunkedBlocks(32, 32, 32, 0, 0, 0, 32);
+        Block stone = new Block(1, 0, Classification.GROUND);
+        Block dirt = new Block(3, 0, Classification.GROUND);
+        for (int x = 0; x < 16; x++) {
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    blocks.set(x,y,z, stone);
+                }
+            }
+        }
+        int uniformSize = blocks.size();
+        blocks.set(3,4,5, dirt);
+        assertTrue(blocks.size() > uniformSize);
+        blocks.set(3,4,5, stone);
+        assertEquals(uniformSize, blocks.size());
+
+        for (int x = 0; x < 16; x++) {
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    blocks.remove(x,y,z);
+                }
+            }
+        }
+        assertEquals(0, blocks.size());
+        assertFalse(blocks.iterator().hasNext());
+    }
+
+    @Test
+    void iteration() {
+        ChunkedBlocks blocks = new ChunkedBlocks(50, 40, 40, 0, 0, 0, 50);
+        Random rng = new Random(2);
+        int count = 0;
+        for (int i = 0; i < 500; i++) {
+            int x = rng.nextInt(blocks.getWidth());
+            int y = rng.nextInt(blocks.getLength());
+            int z = rng.nextInt(blocks.getHeight());
+            if (blocks.get(x,y,z) == null) count++;
+            blocks.set(x,y,z, randomBlock(rng, 5));
+        }
+        for (boolean bottomToUp : new boolean[]{true, false}) {
+            Iterator<XYZBlock> iterator = blocks.getIterator(bottomToUp);
+            int found = 0;
+            int previousZ = bottomToUp ? -1 : blocks.getHeight();
+            while (iterator.hasNext()) {
+                XYZBlock block = iterator.next();
+                assertNotNull(block.block());
+                assertEquals(blocks.get(block.x(), block.y(), block.z()), block.block());
+                if (bottomToUp) assertTrue(block.z() >= previousZ);
+                else assertTrue(block.z() <= previousZ);
+                previousZ = block.z();
+                found++;
+            }
+            assertEquals(count, found);
+        }
+    }
+
+    @Test
+    void serialization() {
+        ChunkedBlocks blocks = new ChunkedBlocks(100, 90, 50, 1853536, 534534, 160, 100);
+        Block[][][] correct = new Block[100][90][50];
+        Random rng = new Random(3);
+        Block ground = new Block(2, 0, Classification.GROUND);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    if (z < 10) {
+                        correct[x][y][z] = ground;
+                    } else if (z < 30 && rng.nextInt(4) == 0) {
+                        correct[x][y][z] = randomBlock(rng, 10);
+                    } else {
+                        continue;
+                    }
+                    blocks.set(x,y,z, correct[x][y][z]);
+                }
+            }
+        }
+        ChunkedBlocks.ChunkedBlocksSerializer serializer = new ChunkedBlocks.ChunkedBlocksSerializer();
+        ChunkedBlocks deserialized = serializer.deserialize(serializer.serialize(blocks));
+
+        assertEquals(blocks.getWidth(), deserialized.getWidth());
+        assertEquals(blocks.getLength(), deserialized.getLength());
+        assertEquals(blocks.getHeight(), deserialized.getHeight());
+        assertEquals(blocks.getMinX(), deserialized.getMinX());
+        assertEquals(blocks.getMinY(), deserialized.getMinY());
+        assertEquals(blocks.getMinZ(), deserialized.getMinZ());
+        assertEquals(blocks.getSideLength(), deserialized.getSideLength());
+        assertEquals(blocks.size(), deserialized.size());
+
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    assertEquals(correct[x][y][z], deserialized.get(x,y,z));
+                }
+            }
+        }
+    }
+
+    @Test
+    void paletteOverflow() {
+        ChunkedBlocks blocks = new ChunkedBlocks(300, 1, 1, 0, 0, 0, 300);
+        for (int i = 0; i < 255; i++) {
+            blocks.set(i, 0, 0, new Block(1, i, Classification.UNKNOWN));
+        }
+        assertThrows(IllegalStateException.class, () -> blocks.set(255, 0, 0, new Block(2, 0, Classification.UNKNOWN)));
+    }
+
+    @Test
+    void replaceAll() {
+        ChunkedBlocks blocks = new ChunkedBlocks(40, 40, 20, 0, 0, 0, 40);
+        Block wall = new Block(1, 0, Classification.BUILDING);
+        Block roof = new Block(2, 0, Classification.BUILDING);
+        Block grass = new Block(3, 0, Classification.GROUND);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                blocks.set(x, y, 0, grass);
+                blocks.set(x, y, 1, x % 2 == 0 ? wall : roof);
+            }
+        }
+        //swapping the blocks
+        blocks.replaceAll(Map.of(wall, roof, roof, wall));
+        assertEquals(roof, blocks.get(0, 0, 1));
+        assertEquals(wall, blocks.get(1, 0, 1));
+        assertEquals(grass, blocks.get(1, 0, 0));
+
+        //merging the blocks. New blocks still get a new index
+        blocks.replaceAll(Map.of(wall, roof));
+        assertEquals(roof, blocks.get(1, 0, 1));
+        blocks.set(5, 5, 5, wall);
+        assertEquals(wall, blocks.get(5, 5, 5));
+        assertEquals(roof, blocks.get(0, 0, 1));
+
+        //changing the ground
+        assertEquals(0, blocks.getGroundHeight(3, 3));
+        blocks.replaceAll(Map.of(grass, new Block(3, 0, Classification.BUILDING)));
+        assertEquals(-1, blocks.getGroundHeight(3, 3));
+
+        ChunkedBlocks deserialized = new ChunkedBlocks.ChunkedBlocksSerializer()
+                .deserialize(new ChunkedBlocks.ChunkedBlocksSerializer().serialize(blocks));
+        assertEquals(roof, deserialized.get(1, 0, 1));
+        assertEquals(wall, deserialized.get(5, 5, 5));
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.jupiter.api.Test;
+import org.patonki.blocks.ArrayBlocks;
+import org.patonki.blocks.ClassificationCounts;
+import org.patonki.data.Block;
+import org.patonki.data.Classification;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ClassificationCountsTest {
+
+    @Test
+    void sameAsLoopingOverTheBlocks() {
+        ArrayBlocks blocks = new ArrayBlocks(30, 25, 20, 0, 0, 0, 30);
+        Classification[] classifications = {Classification.BUILDING, Classification.UNKNOWN, Classification.LOW_VEGETATION};
+        Random rng = new Random(1);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    if (rng.nextInt(3) == 0) continue;
+                    blocks.set(x,y,z, new Block(1, 0, classifications[rng.nextInt(classifications.length)]));
+                }
+            }
+        }
+        ClassificationCounts counts = blocks.classificationCounts(Classification.BUILDING, Classification.UNKNOWN);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    for (int radius = 1; radius <= 3; radius++) {
+                        assertEquals(blocks.numberOfBlocksWithClassificationInRadius(x,y,z, Classification.BUILDING, radius),
+                                counts.numberOfBlocksWithClassificationInRadius(x,y,z, Classification.BUILDING, radius));
+                        assertEquals(blocks.numberOfBlocksWithClassificationInRadius(x,y,z, Classification.UNKNOWN, radius),
+                                counts.numberOfBlocksWithClassificationInRadius(x,y,z, Classification.UNKNOWN, radius));
+                    }
+                }
+            }
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> counts.numberOfBlocksWithClassificationInRadius(0,0,0, Classification.LOW_VEGETATION, 2));
+    }
+
+    @Test
+    void recountReusesTheTable() {
+        ArrayBlocks blocks = new ArrayBlocks(20, 20, 10, 0, 0, 0, 20);
+        Classification[] classifications = {Classification.BUILDING, Classification.UNKNOWN, Classification.LOW_VEGETATION};
+        Random rng = new Random(2);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    if (rng.nextInt(3) == 0) continue;
+                    blocks.set(x,y,z, new Block(1, 0, classifications[rng.nextInt(classifications.length)]));
+                }
+            }
+        }
+        ClassificationCounts counts = blocks.classificationCounts(Classification.BUILDING, Classification.UNKNOWN);
+        counts.recount(blocks, Classification.UNKNOWN, Classification.LOW_VEGETATION);
+        assertFalse(counts.counts(Classification.UNKNOWN));
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    assertEquals(blocks.numberOfBlocksWithClassificationInRadius(x,y,z, Classification.LOW_VEGETATION, 2),
+                            counts.numberOfBlocksWithClassificationInRadius(x,y,z, Classification.LOW_VEGETATION, 2));
+                    assertEquals(blocks.numberOfBlocksWithClassificationInRadius(x,y,z, Classification.BUILDING, 2),
+                            counts.numberOfBlocksWithClassificationInRadius(x,y,z, Classification.BUILDING, 2));
+                }
+            }
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> counts.recount(blocks, Classification.LOW_VEGETATION, Classification.BUILDING));
+    }
+
+    @Test
+    void sumsOverflow() {
+        //the sums are larger than 2^16 but the counts of small boxes are still correct
+        ArrayBlocks blocks = new ArrayBlocks(100, 100, 20, 0, 0, 0, 100);
+        Block building = new Block(1, 0, Classification.BUILDING);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    blocks.set(x,y,z, building);
+                }
+            }
+        }
+        ClassificationCounts counts = blocks.classificationCounts(Classification.BUILDING);
+        assertEquals(216, counts.numberOfBlocksWithClassificationInRadius(90, 95, 10, Classification.BUILDING, 3));
+        assertEquals(40 * 40 * 20, counts.count(Classification.BUILDING, 60, 60, 0, 100, 100, 20));
+    }
+}
@@ -0,0 +1,117 @@
+import org.junit.jupiter.api.Test;
+import org.patonki.blocks.ArrayBlocks;
+import org.patonki.blocks.Blocks;
+import org.patonki.blocks.ChunkedBlocks;
+import org.patonki.blocks.GroundLayer;
+import org.patonki.blocks.OctTreeBlocks;
+import org.patonki.data.Block;
+import org.patonki.data.Classification;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HeightMapTest {
+    private static final Block[] BLOCKS = {
+            new Block(2, 0, Classification.GROUND),
+            new Block(22, 0, Classification.WATER),
+            new Block(18, 0, Classification.HIGH_VEGETATION),
+            new Block(1, 0, Classification.BUILDING),
+    };
+
+    private static int highest(Blocks blocks, int x, int y, boolean ground) {
+        for (int z = blocks.getHeight()-1; z >= 0; z--) {
+            Block block = blocks.get(x,y,z);
+            if (block == null) continue;
+            if (!ground || block.classification() == Classification.GROUND || block.classification() == Classification.WATER) {
+                return z;
+            }
+        }
+        return -1;
+    }
+
+    private static void assertHeights(Blocks blocks) {
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                assertEquals(highest(blocks, x, y, true), blocks.getGroundHeight(x,y));
+                assertEquals(highest(blocks, x, y, false), blocks.getHighestBlockHeight(x,y));
+            }
+        }
+    }
+
+    private static void modifyRandomly(Blocks blocks, Random rng, int times) {
+        for (int i = 0; i < times; i++) {
+            int x = rng.nextInt(blocks.getWidth());
+            int y = rng.nextInt(blocks.getLength());
+            int z = rng.nextInt(blocks.getHeight());
+            if (rng.nextInt(3) == 0) {
+                blocks.remove(x,y,z);
+            } else {
+                blocks.set(x,y,z, BLOCKS[rng.nextInt(BLOCKS.length)]);
+            }
+        }
+    }
+
+    private static void test(Blocks blocks) {
+        Random rng = new Random(1);
+        modifyRandomly(blocks, rng, 5000);
+        //the height map is built here
+        assertHeights(blocks);
+        //and then updated
+        modifyRandomly(blocks, rng, 20000);
+        assertHeights(blocks);
+
+        //removing the top of a column
+        int top = blocks.getHighestBlockHeight(3, 4);
+        if (top != -1) blocks.remove(3, 4, top);
+        assertHeights(blocks);
+    }
+
+    @Test
+    void arrayBlocks() {
+        test(new ArrayBlocks(20, 15, 30, 0, 0, 0, 20));
+    }
+
+    @Test
+    void chunkedBlocks() {
+        test(new ChunkedBlocks(20, 15, 30, 0, 0, 0, 20));
+    }
+
+    @Test
+    void octTreeBlocks() {
+        test(new OctTreeBlocks(20, 15, 30, 0, 0, 0, 20, 100));
+    }
+
+    @Test
+    void groundLayer() {
+        Blocks blocks = new ArrayBlocks(20, 15, 30, 0, 0, 0, 20);
+        assertThrows(IllegalArgumentException.class, blocks::getGroundLayer);
+        blocks.fillBox(0, 0, 0, 19, 14, 4, BLOCKS[0]);
+        blocks.set(2, 3, 9, BLOCKS[1]);
+        blocks.set(2, 3, 10, BLOCKS[2]);
+        GroundLayer groundLayer = blocks.getGroundLayer();
+        assertEquals(9, groundLayer.getHeightAt(2, 3));
+        assertEquals(BLOCKS[1], groundLayer.getBlock(2, 3));
+        assertEquals(4, groundLayer.getHeightAt(0, 0));
+        assertEquals(BLOCKS[0], groundLayer.getXYZBlock(0, 0).block());
+
+        //the layer is only updated when refreshed
+        blocks.remove(2, 3, 9);
+        blocks.set(5, 5, 7, BLOCKS[1]);
+        assertEquals(9, groundLayer.getHeightAt(2, 3));
+        groundLayer.refreshColumn(2, 3);
+        assertEquals(4, groundLayer.getHeightAt(2, 3));
+        groundLayer.refresh();
+        assertEquals(7, groundLayer.getHeightAt(5, 5));
+
+        int[] heights = groundLayer.getHeights(null);
+        int[] count = {0};
+        groundLayer.forEach((x, y, z, block) -> {
+            assertEquals(heights[x * blocks.getLength() + y], z);
+            assertEquals(blocks.get(x, y, z), block);
+            count[0]++;
+        });
+        assertEquals(20 * 15, count[0]);
+    }
+}
@@ -0,0 +1,129 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.patonki.blocks.ArrayBlocks;
+import org.patonki.blocks.Blocks;
+import org.patonki.blocks.MappedBlocks;
+import org.patonki.blocks.XYZBlock;
+import org.patonki.data.Block;
+import org.patonki.data.CacheCompression;
+import org.patonki.data.Classification;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedBlocksTest {
+    @TempDir
+    File folder;
+
+    private static Block[][][] fillRandom(MappedBlocks blocks, ArrayBlocks arrayBlocks) {
+        Block[][][] correct = new Block[blocks.getWidth()][blocks.getLength()][blocks.getHeight()];
+        Random rng = new Random(1);
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    if (rng.nextBoolean()) continue;
+                    Classification classification = rng.nextBoolean() ? Classification.BUILDING : Classification.GROUND;
+                    correct[x][y][z] = new Block(rng.nextInt(10)+1, rng.nextInt(3), classification);
+                    blocks.set(x,y,z, correct[x][y][z]);
+                    if (arrayBlocks != null) arrayBlocks.set(x,y,z, correct[x][y][z]);
+                }
+            }
+        }
+        return correct;
+    }
+
+    private static void assertContains(Block[][][] correct, Blocks blocks) {
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    assertEquals(correct[x][y][z], blocks.get(x,y,z));
+                }
+            }
+        }
+    }
+
+    @Test
+    void setGetAndReopen() throws IOException {
+        File file = new File(folder, "blocks.dat");
+        MappedBlocks blocks = MappedBlocks.create(file, 60, 50, 40, 1853536, 534534, 160, 60);
+        Block[][][] correct = fillRandom(blocks, null);
+        blocks.remove(1,2,3);
+        correct[1][2][3] = null;
+        assertContains(correct, blocks);
+        assertNull(blocks.get(60, 0, 0));
+        blocks.force();
+
+        MappedBlocks reopened = MappedBlocks.open(file);
+        assertEquals(blocks.getWidth(), reopened.getWidth());
+        assertEquals(blocks.getLength(), reopened.getLength());
+        assertEquals(blocks.getHeight(), reopened.getHeight());
+        assertEquals(blocks.getMinX(), reopened.getMinX());
+        assertEquals(blocks.getMinY(), reopened.getMinY());
+        assertEquals(blocks.getMinZ(), reopened.getMinZ());
+        assertEquals(blocks.getSideLength(), reopened.getSideLength());
+        assertContains(correct, reopened);
+    }
+
+    @Test
+    void sameFormatAsArrayBlocks() throws IOException {
+        MappedBlocks blocks = MappedBlocks.createTemporary(folder, 40, 30, 20, 0, 0, 0, 40);
+        ArrayBlocks arrayBlocks = new ArrayBlocks(40, 30, 20, 0, 0, 0, 40);
+        Block[][][] correct = fillRandom(blocks, arrayBlocks);
+
+        MappedBlocks.MappedBlocksSerializer serializer = new MappedBlocks.MappedBlocksSerializer(folder);
+        byte[] arraySerialized = new ArrayBlocks.ArrayBlockSerializer().serialize(arrayBlocks);
+        assertArrayEquals(arraySerialized, serializer.serialize(blocks));
+
+        //an ArrayBlocks cache can be mapped
+        File cache = new File(folder, "cache.dat");
+        ArrayBlocks.ArrayBlockSerializer arraySerializer = new ArrayBlocks.ArrayBlockSerializer();
+        arraySerializer.write(arrayBlocks, cache);
+        MappedBlocks read = serializer.read(cache);
+        assertContains(correct, read);
+        //the cache file is not modified
+        read.set(0,0,0, new Block(50, 0, Classification.WATER));
+        assertContains(correct, serializer.read(cache));
+
+        //a MappedBlocks cache can be read as ArrayBlocks
+        serializer.write(blocks, cache);
+        long uncompressedSize = cache.length();
+        assertContains(correct, arraySerializer.read(cache));
+        assertContains(correct, serializer.deserialize(arraySerialized));
+
+        //compressed caches
+        arraySerializer.setCompression(CacheCompression.FAST);
+        arraySerializer.write(arrayBlocks, cache);
+        assertTrue(cache.length() < uncompressedSize);
+        assertContains(correct, serializer.read(cache));
+        serializer.setCompression(CacheCompression.SMALL);
+        serializer.write(blocks, cache);
+        assertTrue(cache.length() < uncompressedSize);
+        assertContains(correct, arraySerializer.read(cache));
+        assertContains(correct, serializer.read(cache));
+    }
+
+    @Test
+    void iteratesInStorageOrder() throws IOException {
+        MappedBlocks blocks = MappedBlocks.createTemporary(folder, 20, 15, 10, 0, 0, 0, 20);
+        ArrayBlocks arrayBlocks = new ArrayBlocks(20, 15, 10, 0, 0, 0, 20);
+        fillRandom(blocks, arrayBlocks);
+        for (boolean bottomToUp : new boolean[]{true, false}) {
+            //the same order as the array, which is the order of the file
+            Iterator<XYZBlock> iterator = blocks.getIterator(bottomToUp);
+            Iterator<XYZBlock> arrayIterator = arrayBlocks.getIterator(bottomToUp);
+            while (arrayIterator.hasNext()) {
+                XYZBlock expected = arrayIterator.next();
+                XYZBlock next = iterator.next();
+                assertEquals(expected.x(), next.x());
+                assertEquals(expected.y(), next.y());
+                assertEquals(expected.z(), next.z());
+                assertEquals(expected.block(), next.block());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+}
@@ -1,6 +1,16 @@
 import org.junit.jupiter.api.Test;
+import org.patonki.blocks.ArrayBlocks;
+import org.patonki.blocks.Blocks;
+import org.patonki.blocks.OctTreeBlocks;
+import org.patonki.blocks.XYZBlock;
+import org.patonki.data.Block;
+import org.patonki.data.Classification;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class OctTreeBlocksTest {
     @Test
@@ -59,7 +69,6 @@ public class OctTreeBlocksTest {
     }
     @Test
     void serialization() {
-        /*
         OctTreeBlocks blocks = new OctTreeBlocks(500, 200, 50, 1853536, 534534, 160, 500,25000);
         blocks.set(7,6,5, new Block((byte) 7, (byte) 3, Classification.GROUND));
         byte[] serialized = new OctTreeBlocks.OctTreeBlocksSerializer().serialize(blocks);
@@ -82,6 +91,178 @@ public class OctTreeBlocksTest {
         assertEquals(block.id(), deserializedBlock.id());
         assertEquals(block.data(), deserializedBlock.data());
         assertEquals(block.classification(), deserializedBlock.classification());
-         */
+    }
+
+    @Test
+    void sameAsArrayBlocks() {
+        OctTreeBlocks tree = new OctTreeBlocks(40, 30, 25, 0, 0, 0, 40, 200);
+        ArrayBlocks array = new ArrayBlocks(40, 30, 25, 0, 0, 0, 40);
+        Block[] types = {
+                new Block(1, 0, Classification.GROUND),
+                new Block(2, 0, Classification.GROUND),
+                new Block(18, 0, Classification.HIGH_VEGETATION),
+        };
+        Random rng = new Random(5);
+        for (int i = 0; i < 60000; i++) {
+            int x = rng.nextInt(tree.getWidth());
+            int y = rng.nextInt(tree.getLength());
+            int z = rng.nextInt(tree.getHeight());
+            if (rng.nextInt(4) == 0) {
+                tree.remove(x,y,z);
+                array.remove(x,y,z);
+            } else {
+                Block block = types[rng.nextInt(types.length)];
+                tree.set(x,y,z, block);
+                array.set(x,y,z, block);
+            }
+        }
+        for (int x = 0; x < tree.getWidth(); x++) {
+            for (int y = 0; y < tree.getLength(); y++) {
+                for (int z = 0; z < tree.getHeight(); z++) {
+                    assertEquals(array.get(x,y,z), tree.get(x,y,z));
+                }
+            }
+        }
+        int count = 0;
+        for (XYZBlock block : tree) {
+            assertEquals(array.get(block.x(), block.y(), block.z()), block.block());
+            count++;
+        }
+        int[] expected = {0};
+        array.forEach((x, y, z, b) -> {
+            if (b != null) expected[0]++;
+        });
+        assertEquals(expected[0], count);
+
+        OctTreeBlocks deserialized = new OctTreeBlocks.OctTreeBlocksSerializer()
+                .deserialize(new OctTreeBlocks.OctTreeBlocksSerializer().serialize(tree));
+        assertArrayEquals(array.getBlockData().blockIds(), deserialized.getBlockData().blockIds());
+    }
+
+    @Test
+    void uniformAreasAreMerged() {
+        OctTreeBlocks blocks = new OctTreeBlocks(64, 64, 40, 0, 0, 0, 64, 1000);
+        Block stone = new Block(1, 0, Classification.GROUND);
+        //stone under the ground
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < 20; z++) {
+                    blocks.set(x,y,z, stone);
+                }
+            }
+        }
+        assertEquals(0, blocks.size());
+        //one block on the surface splits only the nodes containing it
+        blocks.set(5, 5, 20, stone);
+        assertTrue(blocks.size() > 0);
+        assertTrue(blocks.size() < 64 * 64 * 40 / 8);
+        blocks.remove(5, 5, 20);
+        assertEquals(0, blocks.size());
+        for (int z = 0; z < 20; z++) {
+            assertEquals(stone, blocks.get(63, 63, z));
+        }
+        assertNull(blocks.get(63, 63, 20));
+    }
+
+    @Test
+    void sparseSerialization() throws IOException {
+        OctTreeBlocks blocks = new OctTreeBlocks(500, 500, 200, 1853536, 534534, 160, 500, 25000);
+        Block stone = new Block(1, 0, Classification.GROUND);
+        Block grass = new Block(2, 0, Classification.GROUND);
+        Block wall = new Block(45, 0, Classification.BUILDING);
+        blocks.fillBox(0, 0, 0, 499, 499, 29, stone);
+        blocks.fillBox(0, 0, 30, 499, 499, 30, grass);
+        blocks.fillBox(100, 120, 31, 140, 150, 60, wall);
+        Random rng = new Random(4);
+        for (int i = 0; i < 1000; i++) {
+            blocks.set(rng.nextInt(500), rng.nextInt(500), 31 + rng.nextInt(10), grass);
+        }
+        OctTreeBlocks.OctTreeBlocksSerializer serializer = new OctTreeBlocks.OctTreeBlocksSerializer();
+        byte[] serialized = serializer.serialize(blocks);
+        //the dense format would take a byte for each of the 50 million blocks
+        assertTrue(serialized.length < 500 * 500 * 200 / 10, "size " + serialized.length);
+
+        OctTreeBlocks deserialized = serializer.deserialize(serialized);
+        assertEquals(blocks.getMinZ(), deserialized.getMinZ());
+        assertEquals(blocks.getMaxSize(), deserialized.getMaxSize());
+        for (int x = 0; x < 500; x += 7) {
+            for (int y = 0; y < 500; y++) {
+                for (int z = 0; z < 200; z++) {
+                    assertEquals(blocks.get(x,y,z), deserialized.get(x,y,z));
+                }
+            }
+        }
+        File file = File.createTempFile("octree", ".dat");
+        try {
+            serializer.write(blocks, file);
+            Blocks read = serializer.read(file);
+            assertEquals(wall, read.get(120, 130, 45));
+            assertEquals(30, read.getGroundHeight(0, 0));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    void fill() {
+        OctTreeBlocks tree = new OctTreeBlocks(50, 40, 30, 0, 0, 0, 50, 300);
+        ArrayBlocks array = new ArrayBlocks(50, 40, 30, 0, 0, 0, 50);
+        //filled one block at a time
+        ArrayBlocks reference = new ArrayBlocks(50, 40, 30, 0, 0, 0, 50);
+        Block[] types = {
+                null,
+                new Block(1, 0, Classification.GROUND),
+                new Block(2, 0, Classification.BUILDING),
+        };
+        assertEquals(-1, array.getGroundHeight(0, 0));
+        Random rng = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            Block block = types[rng.nextInt(types.length)];
+            int x = rng.nextInt(60) - 5, y = rng.nextInt(50) - 5, z = rng.nextInt(40) - 5;
+            int w = 0, l = 0, h = rng.nextInt(20);
+            if (rng.nextBoolean()) {
+                tree.fillColumn(x, y, z, z + h, block);
+                array.fillColumn(x, y, z, z + h, block);
+            } else {
+                w = rng.nextInt(30);
+                l = rng.nextInt(30);
+                tree.fillBox(x, y, z, x + w, y + l, z + h, block);
+                array.fillBox(x, y, z, x + w, y + l, z + h, block);
+            }
+            for (int bx = x; bx <= x + w; bx++) {
+                for (int by = y; by <= y + l; by++) {
+                    for (int bz = z; bz <= z + h; bz++) {
+                        if (block == null) reference.remove(bx, by, bz);
+                        else reference.set(bx, by, bz, block);
+                    }
+                }
+            }
+        }
+        for (int x = 0; x < tree.getWidth(); x++) {
+            for (int y = 0; y < tree.getLength(); y++) {
+                for (int z = 0; z < tree.getHeight(); z++) {
+                    assertEquals(reference.get(x,y,z), tree.get(x,y,z));
+                    assertEquals(reference.get(x,y,z), array.get(x,y,z));
+                    assertEquals(reference.isAir(x,y,z), array.isAir(x,y,z));
+                }
+                assertEquals(reference.getGroundHeight(x, y), array.getGroundHeight(x, y));
+                assertEquals(reference.getHighestBlockHeight(x, y), array.getHighestBlockHeight(x, y));
+            }
+        }
+        //replacing the buildings in one column with ground
+        Block ground = types[1];
+        int replaced = array.replaceInColumn(3, 3, b -> b != null && b.classification() == Classification.BUILDING, ground);
+        int expected = 0;
+        for (int z = 0; z < reference.getHeight(); z++) {
+            if (reference.hasClassification(3, 3, z, Classification.BUILDING)) {
+                reference.set(3, 3, z, ground);
+                expected++;
+            }
+        }
+        assertEquals(expected, replaced);
+        for (int z = 0; z < reference.getHeight(); z++) {
+            assertEquals(reference.get(3, 3, z), array.get(3, 3, z));
+        }
+        assertEquals(reference.getGroundHeight(3, 3), array.getGroundHeight(3, 3));
     }
 }
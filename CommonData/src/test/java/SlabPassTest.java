@@ -0,0 +1,137 @@
+import org.junit.jupiter.api.Test;
+import org.patonki.blocks.ArrayBlocks;
+import org.patonki.blocks.Blocks;
+import org.patonki.blocks.ChunkedBlocks;
+import org.patonki.blocks.ClassificationCounts;
+import org.patonki.data.Block;
+import org.patonki.data.Classification;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SlabPassTest {
+    private static final Block GROUND = new Block(2, 0, Classification.GROUND);
+    private static final Block BUILDING = new Block(1, 0, Classification.BUILDING);
+    private static final Block PLANT = new Block(18, 0, Classification.HIGH_VEGETATION);
+
+    private static Blocks randomBlocks(Supplier<Blocks> supplier) {
+        Blocks blocks = supplier.get();
+        Block[] types = {GROUND, BUILDING, PLANT};
+        Random rng = new Random(3);
+        for (int i = 0; i < 30000; i++) {
+            blocks.set(rng.nextInt(blocks.getWidth()), rng.nextInt(blocks.getLength()), rng.nextInt(blocks.getHeight()),
+                    types[rng.nextInt(types.length)]);
+        }
+        return blocks;
+    }
+
+    private static void passes(Blocks blocks, ForkJoinPool pool) {
+        //column pass: filling below the highest ground block
+        blocks.forEachColumn(pool, 0, (x, y) -> {
+            int z = blocks.getGroundHeight(x, y);
+            for (z--; z >= 0; z--) {
+                blocks.set(x, y, z, GROUND);
+            }
+        });
+        //block pass that decides using a snapshot
+        ClassificationCounts counts = blocks.classificationCounts(Classification.BUILDING);
+        blocks.forEach(pool, 0, (x, y, z, block) -> {
+            if (block == null || !block.classification().isPlant()) return;
+            if (counts.numberOfBlocksWithClassificationInRadius(x, y, z, Classification.BUILDING, 2) >= 3) {
+                blocks.set(x, y, z, BUILDING);
+            }
+        });
+    }
+
+    private static void sameAsSequential(Supplier<Blocks> supplier) {
+        Blocks sequential = randomBlocks(supplier);
+        Blocks parallel = randomBlocks(supplier);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            passes(sequential, null);
+            passes(parallel, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertArrayEquals(sequential.getBlockData().blockIds(), parallel.getBlockData().blockIds());
+        for (int x = 0; x < sequential.getWidth(); x++) {
+            for (int y = 0; y < sequential.getLength(); y++) {
+                assertEquals(sequential.getHighestBlockHeight(x, y), parallel.getHighestBlockHeight(x, y));
+                assertEquals(sequential.getGroundHeight(x, y), parallel.getGroundHeight(x, y));
+            }
+        }
+    }
+
+    @Test
+    void arrayBlocks() {
+        sameAsSequential(() -> new ArrayBlocks(70, 40, 30, 0, 0, 0, 70));
+    }
+
+    @Test
+    void chunkedBlocks() {
+        sameAsSequential(() -> new ChunkedBlocks(70, 40, 30, 0, 0, 0, 70));
+    }
+
+    @Test
+    void slabsCoverTheAreaOnce() {
+        Blocks blocks = new ArrayBlocks(100, 5, 5, 0, 0, 0, 100);
+        AtomicIntegerArray visited = new AtomicIntegerArray(blocks.getWidth());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            blocks.forEachSlab(pool, 2, (fromX, toX) -> {
+                //the slabs are aligned to the bricks of ArrayBlocks
+                assertEquals(0, fromX % 8);
+                for (int x = fromX; x < toX; x++) {
+                    visited.incrementAndGet(x);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            assertEquals(1, visited.get(x));
+        }
+    }
+
+    @Test
+    void concurrentWritersInRegions() throws InterruptedException {
+        Blocks blocks = new ArrayBlocks(128, 20, 20, 0, 0, 0, 128);
+        int threads = 8;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            //every thread adds a new block to the palette
+            Block block = new Block(40 + id, 0, Classification.BUILDING);
+            workers[t] = new Thread(() -> {
+                for (int x = id; x < blocks.getWidth(); x += threads) {
+                    try (Blocks.RegionLock lock = blocks.lockRegion(x, x)) {
+                        assertTrue(lock.contains(x));
+                        for (int y = 0; y < blocks.getLength(); y++) {
+                            for (int z = 0; z < blocks.getHeight(); z++) {
+                                blocks.set(x, y, z, block);
+                            }
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int x = 0; x < blocks.getWidth(); x++) {
+            for (int y = 0; y < blocks.getLength(); y++) {
+                for (int z = 0; z < blocks.getHeight(); z++) {
+                    assertEquals(new Block(40 + x % threads, 0, Classification.BUILDING), blocks.get(x, y, z));
+                }
+                assertEquals(blocks.getHeight() - 1, blocks.getHighestBlockHeight(x, y));
+            }
+        }
+    }
+}
@@ -13,19 +13,22 @@ import org.patonki.data.Classification;
 import org.patonki.util.ImageUtil;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class GroundColorEndpoint {
     private final GroundColorSettings settings;
     private final String texturePath;
     private final String aerialImageDownloadPath;
+    //null if the coloring is done in the calling thread
+    private final ForkJoinPool pool;
 
     private static final Logger LOGGER = LogManager.getLogger(GroundColorEndpoint.class);
 
-    public GroundColorEndpoint(GroundColorSettings settings, String texturePath, String aerialImageDownloadPath) {
+    public GroundColorEndpoint(GroundColorSettings settings, String texturePath, String aerialImageDownloadPath, boolean multiThreaded) {
         this.settings = settings;
         this.texturePath = texturePath;
         this.aerialImageDownloadPath = aerialImageDownloadPath;
+        this.pool = multiThreaded ? ForkJoinPool.commonPool() : null;
     }
     private Block getBlock(IColorToBlockConverter colorToBlockConverter, Color color) {
         //this is literally just magic. It just works (sometimes)
@@ -51,20 +54,20 @@ public class GroundColorEndpoint {
 
 
         GroundLayer ground = blocks.getGroundLayer();
-        for (int x = 0; x < ground.getWidth(); x++) {
-            for (int y = 0; y < ground.getLength(); y++) {
-                int index = Math.max(0, colors.length - 1 - y);
-                int c = colors[index][x];
-                Color color = Color.fromInt(c);
-                Block block = getBlock(colorConverter, color);
-                for (int z = ground.getHeightAt(x,y); z >= 0; z--) {
-                    if (blocks.hasClassification(x,y,z, Classification.GROUND)) {
-                        blocks.set(x,y,z, block);
-                    }
+        //every column is colored separately
+        blocks.forEachColumn(pool, 0, (x, y) -> {
+            int index = Math.max(0, colors.length - 1 - y);
+            int c = colors[index][x];
+            Color color = Color.fromInt(c);
+            Block block = getBlock(colorConverter, color);
+            for (int z = ground.getHeightAt(x,y); z >= 0; z--) {
+                if (blocks.hasClassification(x,y,z, Classification.GROUND)) {
+                    blocks.set(x,y,z, block);
                 }
             }
-        }
+        });
         //if, for example, a vegetation block has lots of built blocks around, it will be converted to a built block
+        XYZBlock[] neighbors = new XYZBlock[4];
         for (XYZBlock xyzBlock : blocks) {
             Block block = xyzBlock.block();
             Classification classification = block.classification();
@@ -73,16 +76,19 @@ public class GroundColorEndpoint {
             if (!block.equals(settings.vegetationBlock()) && !block.equals(settings.builtBlock())) {
                 continue;
             }
-            List<XYZBlock> neighbors = blocks.xyNeighborsList(xyzBlock);
-            if (neighbors.size() == 0 && xyzBlock.z() != ground.getHeightAt(xyzBlock.x(), xyzBlock.y())) {
+            int neighborCount = blocks.xyNeighbors(xyzBlock.x(), xyzBlock.y(), xyzBlock.z(), neighbors);
+            if (neighborCount == 0 && xyzBlock.z() != ground.getHeightAt(xyzBlock.x(), xyzBlock.y())) {
                 blocks.remove(xyzBlock);
                 continue;
             }
 
             Block opposite = block.equals(settings.vegetationBlock()) ? settings.builtBlock() : settings.vegetationBlock();
 
-            long count = neighbors.stream().filter(n -> n.block().equals(opposite)).count();
-            if (count >= neighbors.size() / 2.0) {
+            int count = 0;
+            for (int i = 0; i < neighborCount; i++) {
+                if (neighbors[i].block().equals(opposite)) count++;
+            }
+            if (count >= neighborCount / 2.0) {
                 blocks.set(xyzBlock, opposite);
             }
         }
@@ -3,11 +3,14 @@ package org.patonki.fixer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.patonki.blocks.Blocks;
+import org.patonki.blocks.ClassificationCounts;
 import org.patonki.blocks.XYZBlock;
 import org.patonki.data.Block;
 import org.patonki.data.Classification;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 
 public class BlockDataFixer {
     private Blocks blocks;
@@ -18,11 +21,19 @@ public class BlockDataFixer {
     private final Block unknownBlock;
 
     private final Block roofBlock;
-    public BlockDataFixer(Block buildingBlock, Block waterBlock, Block unknownBlock, Block roofBlock) {
+    //null if the passes are run in the calling thread
+    private final ForkJoinPool pool;
+
+    /**
+     * @param multiThreaded whether the passes that don't depend on the order of the blocks
+     *                      are divided between multiple threads
+     */
+    public BlockDataFixer(Block buildingBlock, Block waterBlock, Block unknownBlock, Block roofBlock, boolean multiThreaded) {
         this.buildingBlock = buildingBlock;
         this.waterBlock = waterBlock;
         this.unknownBlock = unknownBlock;
         this.roofBlock = roofBlock;
+        this.pool = multiThreaded ? ForkJoinPool.commonPool() : null;
     }
 
     public void improveData(Blocks blocks) {
@@ -56,6 +67,8 @@ public class BlockDataFixer {
     private void removeFloatingBuildings() {
         LOGGER.debug("Removing floating building blocks");
         int amount = 0;
+        //the counts are from the start of the pass
+        ClassificationCounts counts = blocks.classificationCounts(Classification.BUILDING);
         for (XYZBlock block : this.blocks) {
             Classification classification = block.block().classification();
             if (classification != Classification.BUILDING) continue;
@@ -63,7 +76,7 @@ public class BlockDataFixer {
                     //The building block is floating with no other building blocks connected to it
                     this.blocks.numberOfNeighboringBlocksWithClassification(block,classification) <= 1
                     //The block has very few other building blocks nearby
-                    || blocks.numberOfBlocksWithClassificationInRadius(block,classification,3) < 6
+                    || counts.numberOfBlocksWithClassificationInRadius(block,classification,3) < 6
                     //floating high in the air
                     || this.hasBlocksOfAirBelow(block.x(), block.y(), block.z(), 20,
                             new Classification[]{Classification.LOW_VEGETATION, Classification.MEDIUM_VEGETATION,
@@ -106,41 +119,65 @@ public class BlockDataFixer {
     //roads going under them.
     private void extendBuildings() {
         LOGGER.debug("Extending buildings to the ground");
-        int amount = 0;
-        for (XYZBlock XYZBlock : this.blocks) {
-            Classification cf = XYZBlock.block().classification();
-            if (cf == Classification.BUILDING
-                    && this.blocks.numberOfNeighboringBlocksWithClassification(XYZBlock, cf) >= 2) {
-                for (int z = XYZBlock.z(); z >= 0; z--) {
-                    this.blocks.set(XYZBlock.x(), XYZBlock.y(), z, XYZBlock.block());
-                    amount++;
+        int length = blocks.getLength();
+        //the highest building block of each column that is extended. Every column is checked before
+        //anything is extended, so that the columns can be processed in any order.
+        //The blocks are visited from the bottom up, so the extended blocks are never checked anyway
+        int[] extendedZ = new int[blocks.getWidth() * length];
+        Block[] extended = new Block[extendedZ.length];
+        LongAdder amount = new LongAdder();
+        blocks.forEachColumn(pool, 1, (x, y) -> {
+            int i = x * length + y;
+            extendedZ[i] = -1;
+            for (int z = blocks.getHighestBlockHeight(x, y); z >= 0; z--) {
+                Block block = blocks.get(x, y, z);
+                if (block == null || block.classification() != Classification.BUILDING) continue;
+                if (blocks.numberOfNeighboringBlocksWithClassification(x, y, z, Classification.BUILDING) < 2) continue;
+                if (extendedZ[i] == -1) {
+                    extendedZ[i] = z;
+                    extended[i] = block;
                 }
+                amount.add(z + 1);
             }
-        }
-        LOGGER.debug("Extended buildings for " + amount + " blocks");
+        });
+        blocks.forEachColumn(pool, 0, (x, y) -> {
+            int i = x * length + y;
+            if (extendedZ[i] >= 0) blocks.fillColumn(x, y, 0, extendedZ[i], extended[i]);
+        });
+        LOGGER.debug("Extended buildings for " + amount.sum() + " blocks");
     }
 
     private void removePlantsAndUnknownBlocksNearBuildings() {
-        int amount = 0;
+        LongAdder amount = new LongAdder();
         LOGGER.debug("Removing plants and unknown blocks near buildings");
-        for (XYZBlock XYZBlock : this.blocks) {
-            Classification cf = XYZBlock.block().classification();
-            if (!cf.isPlant() && cf != Classification.UNKNOWN) continue;
-            //comparing the number of building blocks nearby with the number of blocks that
-            //have the same classification as the block in question (plant or unknown)
-
-            int similarBlocksNearby = this.blocks.numberOfBlocksWithClassificationInRadius(XYZBlock,cf, 3);
-            int buildingNeighbors = this.blocks.numberOfBlocksWithClassificationInRadius(XYZBlock, Classification.BUILDING, 2);
-            if (similarBlocksNearby > buildingNeighbors) continue;
-            if (buildingNeighbors >= 7) {
-                blocks.set(XYZBlock, this.buildingBlock);
-                amount++;
-            } else if (buildingNeighbors >= 3) {
-                blocks.remove(XYZBlock);
-                amount++;
-            }
+        //the counts are from the start of the pass, so the blocks can be processed in any order.
+        //The classifications are processed one at a time, so their counts can share one table instead of
+        //taking two bytes per block each. The pass only changes the blocks of the processed classification,
+        //so the counts of the next one are the same as at the start of the pass
+        Classification[] similarClassifications = {Classification.UNKNOWN,
+                Classification.LOW_VEGETATION, Classification.MEDIUM_VEGETATION, Classification.HIGH_VEGETATION};
+        ClassificationCounts counts = blocks.classificationCounts(Classification.BUILDING, similarClassifications[0]);
+        for (int i = 0; i < similarClassifications.length; i++) {
+            Classification cf = similarClassifications[i];
+            if (i > 0) counts.recount(blocks, similarClassifications[i - 1], cf);
+            blocks.forEach(pool, 0, (x, y, z, block) -> {
+                if (block == null || block.classification() != cf) return;
+                //comparing the number of building blocks nearby with the number of blocks that
+                //have the same classification as the block in question (plant or unknown)
+
+                int similarBlocksNearby = counts.numberOfBlocksWithClassificationInRadius(x, y, z, cf, 3);
+                int buildingNeighbors = counts.numberOfBlocksWithClassificationInRadius(x, y, z, Classification.BUILDING, 2);
+                if (similarBlocksNearby > buildingNeighbors) return;
+                if (buildingNeighbors >= 7) {
+                    blocks.set(x, y, z, this.buildingBlock);
+                    amount.increment();
+                } else if (buildingNeighbors >= 3) {
+                    blocks.remove(x, y, z);
+                    amount.increment();
+                }
+            });
         }
-        LOGGER.debug("Changed " + amount + " blocks");
+        LOGGER.debug("Changed " + amount.sum() + " blocks");
     }
     private record Coordinate(int x, int y, int z) {
         public Coordinate(XYZBlock block) {
@@ -162,18 +199,21 @@ public class BlockDataFixer {
         }
 
         HashMap<Coordinate, Integer> alreadyChanged = new HashMap<>();
+        XYZBlock[] neighbors = new XYZBlock[6];
         while (!queue.isEmpty()) {
             Coordinate coordinate = queue.poll();
 
-            List<XYZBlock> neighbors = this.blocks.neighborsList(coordinate.x, coordinate.y, coordinate.z);
-            for (XYZBlock neighbor : neighbors) {
+            int neighborCount = this.blocks.neighbors(coordinate.x, coordinate.y, coordinate.z, neighbors);
+            for (int i = 0; i < neighborCount; i++) {
+                XYZBlock neighbor = neighbors[i];
                 if (!neighbor.block().classification().isPlant()) continue;
 
                 int iterationNum = alreadyChanged.getOrDefault(new Coordinate(neighbor.x(), neighbor.y(), neighbor.z()), 0);
                 if (iterationNum > 5) continue;
                 this.blocks.set(coordinate.x, coordinate.y, coordinate.z, neighbor.block());
                 alreadyChanged.put(coordinate, iterationNum+1);
-                for (XYZBlock b : neighbors) {
+                for (int j = 0; j < neighborCount; j++) {
+                    XYZBlock b = neighbors[j];
                     if (b.block().classification() == Classification.UNKNOWN) {
                         queue.add(new Coordinate(b));
                     }
@@ -203,9 +243,16 @@ public class BlockDataFixer {
                 }
             }
         }
+        XYZBlock[] neighbors = new XYZBlock[6];
         for (Coordinate roof : roofBlocks) {
-            List<XYZBlock> neighbors = blocks.neighborsList(roof.x, roof.y, roof.z);
-            boolean hasRoofNeighbor = neighbors.stream().anyMatch(n -> n.block().equals(this.roofBlock));
+            int neighborCount = blocks.neighbors(roof.x, roof.y, roof.z, neighbors);
+            boolean hasRoofNeighbor = false;
+            for (int i = 0; i < neighborCount; i++) {
+                if (neighbors[i].block().equals(this.roofBlock)) {
+                    hasRoofNeighbor = true;
+                    break;
+                }
+            }
             if (!hasRoofNeighbor) blocks.set(roof.x, roof.y, roof.z, this.buildingBlock);
         }
     }
@@ -258,23 +305,18 @@ public class BlockDataFixer {
 
     private void fillBottom() {
         LOGGER.debug("Filling the bottom blocks");
-        int amount = 0;
-        for (int x = 0; x < blocks.getWidth(); x++) {
-            for (int y = 0; y < blocks.getLength(); y++) {
-                for (int z = 0; z < blocks.getHeight(); z++) {
-                    //finding the lowest ground block
-                    Block block = this.blocks.get(x, y, z);
-                    if (block == null || block.classification() != Classification.GROUND) continue;
-                    //filling down to the bottom
-                    for (; z >= 0; z--) {
-                        blocks.set(x, y, z, block);
-                        amount++;
-                    }
-                    break;
-                }
+        LongAdder amount = new LongAdder();
+        blocks.forEachColumn(pool, 0, (x, y) -> {
+            for (int z = 0; z < blocks.getHeight(); z++) {
+                //finding the lowest ground block
+                if (!blocks.hasClassification(x, y, z, Classification.GROUND)) continue;
+                //filling down to the bottom
+                blocks.fillColumn(x, y, 0, z, blocks.get(x, y, z));
+                amount.add(z + 1);
+                break;
             }
-        }
-        LOGGER.debug("Filled " + amount + " blocks");
+        });
+        LOGGER.debug("Filled " + amount.sum() + " blocks");
     }
 
 
@@ -2,6 +2,8 @@ package org.patonki.las;
 
 import org.patonki.blocks.ArrayBlocks;
 import org.patonki.blocks.Blocks;
+import org.patonki.blocks.ChunkedBlocks;
+import org.patonki.blocks.MappedBlocks;
 import org.patonki.blocks.OctTreeBlocks;
 import org.patonki.data.Classification;
 import org.patonki.fixer.BlockDataFixer;
@@ -9,6 +11,10 @@ import org.patonki.las.settings.LasReaderSettings;
 import org.patonki.reader.LasDataToBlocks;
 import org.patonki.reader.LasReader;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 /**
  * Takes in a las file that contains a lidar point cloud and converts it into a
  * minecraft block mesh. <br> Also includes a method to fix some inconsistencies/faults in the
@@ -19,12 +25,15 @@ public class LASEndPoint {
     private final LasDataToBlocks converter;
     private final BlockDataFixer fixer;
     private final LasDataToBlocks.BlockMaker blockMaker;
+    private final boolean streamingVoxelization;
 
     /**
      * Takes in the settings that will be used in the conversion process
      * @param settings settings
+     * @param mappedBlocksFolder the folder for the files of {@link LasReaderSettings.StorageType#MAPPED}
+     * @param multiThreaded whether fixing the data can use multiple threads
      */
-    public LASEndPoint(LasReaderSettings settings) {
+    public LASEndPoint(LasReaderSettings settings, String mappedBlocksFolder, boolean multiThreaded) {
         this.reader = new LasReader(
                 settings::mapToClassification,
                 settings::classificationShouldBeIgnored
@@ -33,12 +42,25 @@ public class LASEndPoint {
                 settings.mapToBlock(Classification.BUILDING),
                 settings.mapToBlock(Classification.WATER),
                 settings.mapToBlock(Classification.UNKNOWN),
-                settings.getRoofBlock());
+                settings.getRoofBlock(),
+                multiThreaded);
         this.converter = new LasDataToBlocks(settings::mapToBlock);
+        this.streamingVoxelization = settings.isStreamingVoxelization();
         //the implementation to use for the storage of blocks
-        this.blockMaker = settings.useOctTree()
-                ? (w, l, h, x, y, z) -> new OctTreeBlocks(w,l,h,x,y,z, settings.getSideLength(), 25000)
-                : ((w, l, h, x, y, z) -> new ArrayBlocks(w,l,h,x,y,z,settings.getSideLength()));
+        this.blockMaker = switch (settings.getStorageType()) {
+            case OCT_TREE -> (w, l, h, x, y, z) -> new OctTreeBlocks(w,l,h,x,y,z, settings.getSideLength(), 25000);
+            case CHUNKED -> (w, l, h, x, y, z) -> new ChunkedBlocks(w,l,h,x,y,z, settings.getSideLength());
+            case MAPPED -> (w, l, h, x, y, z) -> createMappedBlocks(new File(mappedBlocksFolder), w,l,h,x,y,z, settings.getSideLength());
+            case ARRAY -> (w, l, h, x, y, z) -> new ArrayBlocks(w,l,h,x,y,z,settings.getSideLength());
+        };
+    }
+
+    private static Blocks createMappedBlocks(File folder, int w, int l, int h, int x, int y, int z, int sideLength) {
+        try {
+            return MappedBlocks.createTemporary(folder, w,l,h,x,y,z, sideLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create memory-mapped blocks in folder " + folder, e);
+        }
     }
 
     /**
@@ -48,13 +70,17 @@ public class LASEndPoint {
      * Therefore, the data should be "fixed" with {@link #fixProblemsWithLASData(Blocks)}
      * <br><br>
      * The conversion algorithm basically just gathers all points that lie inside one cube
-     * and finds the most plentiful las-classification and determines the minecraft block based on that
+     * and finds the most plentiful las-classification and determines the minecraft block based on that.
+     * With {@link LasReaderSettings#isStreamingVoxelization()}, the points are counted per block while the file is read
      * <br>
      * @param lasFileLocation path to the las file
      * @return The minecraft blocks
      * @see <a href="https://www.asprs.org/wp-content/uploads/2010/12/LAS_1_4_r13.pdf">Las file specification</a>
      */
     public Blocks convertLazDataToBlocks(String lasFileLocation) {
+        if (streamingVoxelization) {
+            return this.converter.convert(this.reader.readVoxels(lasFileLocation), this.blockMaker);
+        }
         LasReader.LazData lazData = this.reader.read(lasFileLocation);
         return this.converter.convert(lazData, this.blockMaker);
     }
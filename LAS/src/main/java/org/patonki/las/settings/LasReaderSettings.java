@@ -10,6 +10,27 @@ import java.util.HashMap;
  * Class used to customize the way lidar data is converted to minecraft blocks.
  */
 public class LasReaderSettings {
+    /**
+     * The {@link org.patonki.blocks.Blocks} implementation used to store the blocks
+     */
+    public enum StorageType {
+        /**
+         * Fast, but takes one byte for every block in the area, including air
+         */
+        ARRAY,
+        /**
+         * More memory efficient but slower
+         */
+        OCT_TREE,
+        /**
+         * 16*16*16 sections with their own palettes. Sections with only air or only one block take almost no memory
+         */
+        CHUNKED,
+        /**
+         * Like {@link #ARRAY}, but the blocks are in a memory-mapped file instead of the heap
+         */
+        MAPPED
+    }
     //classification number in the laz file mapped to the actual classification
     //for example, 2 = WATER and 3 = GROUND
     private final HashMap<Integer, Classification> classificationMapping;
@@ -21,10 +42,16 @@ public class LasReaderSettings {
 
     private final Classification[] ignoredClassifications;
 
+    //only read from old settings files that do not have the storageType field
     private final boolean useOctTree;
 
+    private final StorageType storageType;
+
     private final int sideLength;
 
+    //false in settings files written before the field was added
+    private final boolean streamingVoxelization;
+
     private<K,V> HashMap<K,V> checkNotNull(HashMap<K,V> map, String name) {
         if (map == null) throw new NullPointerException(name + " cannot be null!");
         for (K key : map.keySet()) {
@@ -50,19 +77,24 @@ public class LasReaderSettings {
      * @param blockMapping           Classification mapped to the minecraft block representing it. (VEGETATION -> leaves)
      * @param roofBlock              The block that the building roofs will have
      * @param ignoredClassifications Lidar points with these classifications will be ignored
-     * @param useOctTree             Whether to use the more memory efficient but slower algorithm
+     * @param storageType            The way the blocks are stored in memory. See {@link StorageType}
      * @param sideLength The length of the area in meters, for example 500m
+     * @param streamingVoxelization Whether to count the points per block while reading the file instead of
+     *                              keeping every point in memory. Uses much less memory on large files
      */
-    public LasReaderSettings(HashMap<Integer, Classification> classificationMapping, HashMap<Classification, Block> blockMapping, Block roofBlock, Classification[] ignoredClassifications, boolean useOctTree, int sideLength) {
+    public LasReaderSettings(HashMap<Integer, Classification> classificationMapping, HashMap<Classification, Block> blockMapping, Block roofBlock, Classification[] ignoredClassifications, StorageType storageType, int sideLength, boolean streamingVoxelization) {
         if (ignoredClassifications == null) ignoredClassifications = new Classification[0];
         if (roofBlock == null) throw new NullPointerException("Roof block cannot be null!");
         if (roofBlock.classification() != Classification.BUILDING) throw new NullPointerException("Roof block should be classified as building!");
         this.roofBlock = roofBlock;
-        this.useOctTree = useOctTree;
+        if (storageType == null) throw new NullPointerException("Storage type cannot be null!");
+        this.storageType = storageType;
+        this.useOctTree = storageType == StorageType.OCT_TREE;
         this.ignoredClassifications = Arrays.copyOf(ignoredClassifications,ignoredClassifications.length);
         this.classificationMapping = checkNotNull(classificationMapping, "Classification map");
         this.blockMapping = checkContainsAllEntries(blockMapping, classificationMapping.values().toArray(Classification[]::new), "Block map");
         this.sideLength = sideLength;
+        this.streamingVoxelization = streamingVoxelization;
     }
 
     /**
@@ -90,8 +122,15 @@ public class LasReaderSettings {
         return Arrays.asList(ignoredClassifications).contains(classification);
     }
 
-    public boolean useOctTree() {
-        return useOctTree;
+    /**
+     * @return the storage type. Settings files that only have the old useOctTree field are mapped
+     * to {@link StorageType#OCT_TREE} or {@link StorageType#ARRAY}
+     */
+    public StorageType getStorageType() {
+        if (storageType == null) {
+            return useOctTree ? StorageType.OCT_TREE : StorageType.ARRAY;
+        }
+        return storageType;
     }
 
     public Block getRoofBlock() {
@@ -101,4 +140,8 @@ public class LasReaderSettings {
     public int getSideLength() {
         return sideLength;
     }
+
+    public boolean isStreamingVoxelization() {
+        return streamingVoxelization;
+    }
 }
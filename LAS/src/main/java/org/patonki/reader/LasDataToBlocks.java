@@ -4,6 +4,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.patonki.blocks.Blocks;
 import org.patonki.data.Block;
+import org.patonki.data.BlockRegistry;
 import org.patonki.data.Classification;
 
 import java.util.Arrays;
@@ -34,29 +35,30 @@ public class LasDataToBlocks {
         //using an array instead on a hashMap for performance reasons
         //the classification will function as the index
         int[] clAmount = new int[Classification.values().length];
+        //the registry id of the block of each classification, so the blocks don't have to be hashed when set
+        int[] blockIds = new int[clAmount.length];
+        for (Classification classification : Classification.values()) {
+            blockIds[classification.ordinal()] = BlockRegistry.idOf(this.supplier.get(classification));
+        }
 
         int numberOfBlocks = 0;
-        int lastX=0; int lastY=0; int lastZ=0;
         //the points are sorted so points inside one block will be after one another
-        LasReader.LazPoint[] points = data.points();
+        long[] points = data.points();
+        PointPacking packing = data.packing();
         for (int i = 0; i < points.length; i++) {
-            LasReader.LazPoint point = points[i];
-            //encountering a new block
-            if (point.x != lastX || point.y != lastY || point.z != lastZ || i == points.length-1) {
-                Block block = getBlockBasedOnClassifiedPoints(clAmount);
-                if (block != null) {
-                    blocks.set(lastX, lastY, lastZ, block);
+            long point = points[i];
+            //increasing the count of a classification by one
+            clAmount[packing.classification(point)] += 1;
+
+            //the last point of the block
+            if (i == points.length-1 || packing.block(points[i+1]) != packing.block(point)) {
+                Classification classification = getClassificationBasedOnClassifiedPoints(clAmount);
+                if (classification != null && blockIds[classification.ordinal()] != BlockRegistry.AIR) {
+                    blocks.set(packing.x(point), packing.y(point), packing.z(point), blockIds[classification.ordinal()]);
                     numberOfBlocks++;
                 }
                 Arrays.fill(clAmount, 0);
             }
-            //increasing the count of a classification by one
-            clAmount[point.classification.ordinal()] += 1;
-
-
-            lastX = point.x;
-            lastY = point.y;
-            lastZ = point.z;
         }
         int fillPercentage = (int) (100* numberOfBlocks / (double)(blocks.getWidth()* blocks.getLength()* blocks.getHeight()));
         LOGGER.info("Las data has been converted to minecraft blocks. Block count: " + numberOfBlocks
@@ -64,7 +66,38 @@ public class LasDataToBlocks {
         return blocks;
     }
 
-    private Block getBlockBasedOnClassifiedPoints(int[] clAmount) {
+    /**
+     * Converts the points counted by {@link LasReader#readVoxels(String)}. The classification of every block
+     * is chosen the same way as in {@link #convert(LasReader.LazData, BlockMaker)}, but the points don't have to be sorted
+     * because they have already been grouped by block.
+     */
+    public Blocks convert(LasReader.LazVoxels data, BlockMaker maker) {
+        LOGGER.info("Starting to convert las voxels to minecraft blocks."
+        + "MinX: " + data.minXCord() + " MinY: " + data.minYCord() + " MinZ: " + data.minZCord());
+
+        Blocks blocks = maker.create(data.width(), data.length(), data.height(), data.minXCord(), data.minYCord(), data.minZCord());
+        int[] blockIds = new int[Classification.values().length];
+        for (Classification classification : Classification.values()) {
+            blockIds[classification.ordinal()] = BlockRegistry.idOf(this.supplier.get(classification));
+        }
+        VoxelCounts voxels = data.voxels();
+        int minX = voxels.getMinX(), minY = voxels.getMinY(), minZ = voxels.getMinZ();
+        int[] numberOfBlocks = new int[1];
+        voxels.forEach((x, y, z, counts) -> {
+            Classification classification = getClassificationBasedOnClassifiedPoints(counts);
+            if (classification != null && blockIds[classification.ordinal()] != BlockRegistry.AIR) {
+                //offsetting the coordinates to start from zero like the points of LazData
+                blocks.set(x - minX, y - minY, z - minZ, blockIds[classification.ordinal()]);
+                numberOfBlocks[0]++;
+            }
+        });
+        int fillPercentage = (int) (100* numberOfBlocks[0] / (double)(blocks.getWidth()* blocks.getLength()* blocks.getHeight()));
+        LOGGER.info("Las voxels have been converted to minecraft blocks. Block count: " + numberOfBlocks[0]
+        + " Fill percentage: " + fillPercentage +"%");
+        return blocks;
+    }
+
+    private Classification getClassificationBasedOnClassifiedPoints(int[] clAmount) {
         Classification mostMatches = null; //the classification of the final block
         int bestScore = 0;
         int sum = 0; //number of points inside the block
@@ -82,7 +115,7 @@ public class LasDataToBlocks {
         //points like these are most likely mistakes in the data
         if (sum <= 5 && mostMatches == Classification.UNKNOWN) return null;
 
-        return this.supplier.get(mostMatches);
+        return mostMatches;
     }
 
 
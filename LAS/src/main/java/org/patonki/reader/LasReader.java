@@ -8,7 +8,8 @@ import org.apache.logging.log4j.Logger;
 import org.patonki.data.Classification;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
 
 public class LasReader {
@@ -32,27 +33,54 @@ public class LasReader {
         Classification get(int number);
     }
 
-    //Represents a single laz point
-    public static class LazPoint {
-        public int x,y,z;
-        public Classification classification;
-        public LazPoint(int x, int y, int z, Classification classification) {
-            this.x = x;
-            this.y = y;
-            this.z = z;
-            this.classification = classification;
+    /**
+     * The points of a las file read by {@link #read(String)}. The coordinates of the points start from zero
+     * @param points the points packed with the packing and sorted, so the points inside one block are after one another
+     */
+    public record LazData(int minXCord, int minYCord, int minZCord, long[] points, PointPacking packing, int width, int length, int height, int waterLevel) {
+    }
+
+    //the points in primitive arrays while reading, before the bounds for packing them are known
+    private static final class PointBuffer {
+        private int[] x, y, z;
+        private byte[] classifications;
+        private int size;
+
+        private PointBuffer(int capacity) {
+            capacity = Math.max(16, capacity);
+            x = new int[capacity];
+            y = new int[capacity];
+            z = new int[capacity];
+            classifications = new byte[capacity];
         }
 
-        @Override
-        public String toString() {
-            return "MyPoint{" +
-                    "x=" + x +
-                    ", y=" + y +
-                    ", z=" + z +
-                    '}';
+        private void add(int x, int y, int z, Classification classification) {
+            if (size == this.x.length) {
+                //the header had fewer points than the file
+                int capacity = (int) Math.min(Integer.MAX_VALUE - 8, size * 3L / 2 + 16);
+                this.x = Arrays.copyOf(this.x, capacity);
+                this.y = Arrays.copyOf(this.y, capacity);
+                this.z = Arrays.copyOf(this.z, capacity);
+                classifications = Arrays.copyOf(classifications, capacity);
+            }
+            this.x[size] = x;
+            this.y[size] = y;
+            this.z[size] = z;
+            classifications[size] = (byte) classification.ordinal();
+            size++;
         }
     }
-    public record LazData(int minXCord, int minYCord, int minZCord, LazPoint[] points, int width, int length, int height, int waterLevel) {
+
+    /**
+     * The points of a las file counted per block by {@link #readVoxels(String)}.
+     * Unlike the points of {@link LazData}, the coordinates of the voxels are not moved to start from zero,
+     * the smallest coordinates are in the {@link VoxelCounts}
+     */
+    public record LazVoxels(int minXCord, int minYCord, int minZCord, VoxelCounts voxels, int width, int length, int height, int waterLevel) {
+    }
+
+    private interface PointAction {
+        void run(int x, int y, int z, Classification classification);
     }
 
     private int floor(double d) {
@@ -63,18 +91,9 @@ public class LasReader {
         return (int) Math.floor(d);
     }
 
-    public LazData read(String filePath) {
-        LOGGER.info("Las reader starting to read! " + filePath);
-        long start = System.currentTimeMillis();
-        LASReader reader = new LASReader(new File(filePath));
+    //runs the action on the points that are not ignored
+    private void readPoints(LASReader reader, PointAction action) {
         LASHeader header = reader.getHeader();
-
-        //finding the bounding box of the points
-        int minX = Integer.MAX_VALUE; int maxX = Integer.MIN_VALUE;
-        int minY = Integer.MAX_VALUE; int maxY = Integer.MIN_VALUE;
-        int minZ = Integer.MAX_VALUE; int maxZ = Integer.MIN_VALUE;
-        ArrayList<LazPoint> points = new ArrayList<>((int)header.getNumberOfPointRecords());
-
         for (LASPoint point : reader.getPoints()) {
             //the file contains classifications as integer, so they must be mapped to classifications
             Classification classification = this.supplier.get(point.getClassification());
@@ -86,23 +105,77 @@ public class LasReader {
             double scaledY = point.getY() * header.getYScaleFactor();
             double scaledZ = point.getZ() * header.getZScaleFactor();
 
-            int x = floor(scaledX);
-            int y = floor(scaledY);
-            int z = floor(scaledZ);
-            LazPoint p = new LazPoint(x,y,z, classification);
+            action.run(floor(scaledX), floor(scaledY), floor(scaledZ), classification);
+        }
+    }
 
-            points.add(p);
+    /**
+     * Reads the points and counts the classifications of the points in every block while reading,
+     * without creating an object for every point. The result is the same as with {@link #read(String)},
+     * but the memory depends on the number of blocks with points instead of the number of points.
+     * @param filePath the las file
+     * @return the counts
+     */
+    public LazVoxels readVoxels(String filePath) {
+        LOGGER.info("Las reader starting to read voxels! " + filePath);
+        long start = System.currentTimeMillis();
+        LASReader reader = new LASReader(new File(filePath));
+        LASHeader header = reader.getHeader();
+        //there are usually several points in a block. The map grows if the guess is too small
+        VoxelCounts voxels = new VoxelCounts((int) Math.min(Integer.MAX_VALUE, header.getNumberOfPointRecords() / 8));
+        long[] water = new long[2];
+        readPoints(reader, (x, y, z, classification) -> {
+            voxels.add(x, y, z, classification);
+            if (classification == Classification.WATER) {
+                water[0] += z;
+                water[1]++;
+            }
+        });
+        if (voxels.size() == 0) {
+            throw new IllegalArgumentException("The las file has no points that are not ignored: " + filePath);
+        }
+        int width = voxels.getMaxX() - voxels.getMinX() + 1;
+        int length = voxels.getMaxY() - voxels.getMinY() + 1;
+        int height = voxels.getMaxZ() - voxels.getMinZ() + 1;
+        //making sure the height is an odd number so the center point can be determined easier
+        if (height % 2 == 0) height++;
+        int waterLevel = water[1] > MINIMUM_WATER_POINTS_TO_FILL ? (int) (water[0] / water[1] - voxels.getMinZ()) : -1;
 
-            minX = Math.min(minX, p.x);
-            minY = Math.min(minY, p.y);
-            minZ = Math.min(minZ, p.z);
-            maxX = Math.max(maxX, p.x);
-            maxY = Math.max(maxY, p.y);
-            maxZ = Math.max(maxZ, p.z);
+        long end = System.currentTimeMillis();
+        LOGGER.info("Reading LAS-voxels finished. Time: " + (end-start) + "ms Voxels: " + voxels.size()
+                + " Original number of points " + header.getNumberOfPointRecords());
+        return new LazVoxels((int) header.getMinX(), (int) header.getMinY(), voxels.getMinZ(), voxels, width, length, height, waterLevel);
+    }
+
+    public LazData read(String filePath) {
+        LOGGER.info("Las reader starting to read! " + filePath);
+        long start = System.currentTimeMillis();
+        LASReader reader = new LASReader(new File(filePath));
+        LASHeader header = reader.getHeader();
+
+        PointBuffer points = new PointBuffer((int) Math.min(Integer.MAX_VALUE - 8, header.getNumberOfPointRecords()));
+
+        //finding the bounding box of the points
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        readPoints(reader, (x, y, z, classification) -> {
+            points.add(x, y, z, classification);
+
+            bounds[0] = Math.min(bounds[0], x);
+            bounds[1] = Math.min(bounds[1], y);
+            bounds[2] = Math.min(bounds[2], z);
+            bounds[3] = Math.max(bounds[3], x);
+            bounds[4] = Math.max(bounds[4], y);
+            bounds[5] = Math.max(bounds[5], z);
+        });
+        if (points.size == 0) {
+            throw new IllegalArgumentException("The las file has no points that are not ignored: " + filePath);
         }
+        int minX = bounds[0], minY = bounds[1], minZ = bounds[2];
+        int maxX = bounds[3], maxY = bounds[4], maxZ = bounds[5];
         int width = maxX-minX+1;
         int length = maxY-minY+1;
         int height = maxZ-minZ+1;
+        PointPacking packing = PointPacking.of(width, length, height);
         //making sure the height is an odd number so the center point can be determined easier
         if (height % 2 == 0) height++;
 
@@ -112,34 +185,27 @@ public class LasReader {
 
         long waterlevelsum = 0;
         int waterblocks = 0;
-        for (LazPoint point : points) {
+        long[] keys = new long[points.size];
+        int water = Classification.WATER.ordinal();
+        for (int i = 0; i < keys.length; i++) {
             //offsetting the points in order to have smaller coordinates
             //that are easier to work with
-            point.x = point.x-minX;
-            point.y = point.y-minY;
-            point.z = point.z-minZ;
+            int z = points.z[i] - minZ;
+            keys[i] = packing.pack(points.x[i] - minX, points.y[i] - minY, z, points.classifications[i]);
 
-            if (point.classification == Classification.WATER) {
-                waterlevelsum += point.z;
+            if (points.classifications[i] == water) {
+                waterlevelsum += z;
                 waterblocks++;
             }
         }
         int waterLevel = waterblocks > MINIMUM_WATER_POINTS_TO_FILL ? (int)(waterlevelsum/waterblocks) : -1;
         //sorting the points so equal points will be next to each other
-        points.sort((p1, p2) -> {
-            if (p1.x == p2.x) {
-                if (p1.y == p2.y) {
-                    return Integer.compare(p1.z,p2.z);
-                }
-                return Integer.compare(p1.y, p2.y);
-            }
-            return Integer.compare(p1.x, p2.x);
-        });
+        LongRadixSort.sort(keys, packing.bits(), ForkJoinPool.commonPool());
         long end = System.currentTimeMillis();
-        LOGGER.info("Reading LAS-points finished. Time: " + (end-start) +"ms Points: " + points.size()
+        LOGGER.info("Reading LAS-points finished. Time: " + (end-start) +"ms Points: " + keys.length
         + " Original number of points " + header.getNumberOfPointRecords());
         return new LazData(
-                minXCord, minYCord, minZCord, points.toArray(LazPoint[]::new), width, length, height, waterLevel
+                minXCord, minYCord, minZCord, keys, packing, width, length, height, waterLevel
         );
     }
 
@@ -0,0 +1,101 @@
+package org.patonki.reader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Sorts non-negative longs with a least significant digit radix sort. <br>
+ * Every pass counts the digits and moves the keys to their place in a second array, reading and writing
+ * the arrays in order, which is a lot faster than comparing objects for the tens of millions of points in a tile.
+ * The array is divided into chunks that are counted and moved in the threads of a pool. The offsets of the chunks
+ * are in the order of the chunks, so the sort is stable like a sequential one.
+ */
+final class LongRadixSort {
+    private static final int DIGIT_BITS = 11;
+    private static final int BUCKETS = 1 << DIGIT_BITS;
+    private static final int DIGIT_MASK = BUCKETS - 1;
+    //smaller arrays are sorted in the calling thread because starting the tasks would take longer than sorting
+    private static final int MIN_CHUNK = 1 << 16;
+
+    private LongRadixSort() {}
+
+    private interface ChunkAction {
+        void run(int chunk, int from, int to);
+    }
+
+    /**
+     * Sorts the keys in ascending order
+     * @param keys the keys. They must be smaller than 2^bits
+     * @param bits the number of bits used by the keys. Only the digits inside them are sorted
+     * @param pool the pool or null to sort in the calling thread
+     */
+    static void sort(long[] keys, int bits, ForkJoinPool pool) {
+        int n = keys.length;
+        if (n < 2) return;
+        int threads = pool == null ? 1 : Math.max(1, Math.min(pool.getParallelism(), n / MIN_CHUNK));
+        int chunkSize = (n + threads - 1) / threads;
+        int chunks = (n + chunkSize - 1) / chunkSize;
+        //the count of every digit in every chunk and then the position where the next key with the digit is moved
+        int[][] counts = new int[chunks][BUCKETS];
+
+        long[] source = keys;
+        long[] destination = new long[n];
+        for (int shift = 0; shift < bits; shift += DIGIT_BITS) {
+            long[] from = source;
+            int digitShift = shift;
+            run(pool, chunks, chunkSize, n, (chunk, start, end) -> {
+                int[] count = counts[chunk];
+                Arrays.fill(count, 0);
+                for (int i = start; i < end; i++) {
+                    count[(int) (from[i] >>> digitShift) & DIGIT_MASK]++;
+                }
+            });
+            //the keys would stay in the same order if they all have the same digit
+            boolean sameDigit = false;
+            int offset = 0;
+            for (int digit = 0; digit < BUCKETS; digit++) {
+                int before = offset;
+                for (int chunk = 0; chunk < chunks; chunk++) {
+                    int count = counts[chunk][digit];
+                    counts[chunk][digit] = offset;
+                    offset += count;
+                }
+                if (offset - before == n) sameDigit = true;
+            }
+            if (sameDigit) continue;
+
+            long[] to = destination;
+            run(pool, chunks, chunkSize, n, (chunk, start, end) -> {
+                int[] position = counts[chunk];
+                for (int i = start; i < end; i++) {
+                    long key = from[i];
+                    to[position[(int) (key >>> digitShift) & DIGIT_MASK]++] = key;
+                }
+            });
+            destination = source;
+            source = to;
+        }
+        if (source != keys) System.arraycopy(source, 0, keys, 0, n);
+    }
+
+    private static void run(ForkJoinPool pool, int chunks, int chunkSize, int n, ChunkAction action) {
+        if (chunks == 1) {
+            action.run(0, 0, n);
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int index = chunk;
+            int from = chunk * chunkSize;
+            int to = Math.min(n, from + chunkSize);
+            tasks.add(pool.submit(() -> action.run(index, from, to)));
+        }
+        //rethrows the exceptions of the action
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.patonki.reader;
+
+import org.patonki.data.Classification;
+
+/**
+ * How the points of {@link LasReader.LazData} are packed into longs.<br>
+ * From the highest bits to the lowest, a key is the x, y and z coordinate and the classification,
+ * so sorting the keys as numbers sorts the points by x, then y and then z, and the points of one block
+ * are next to each other. Every field only has as many bits as the area needs, so the keys are usually
+ * much smaller than 64 bits and {@link LongRadixSort} needs fewer passes.
+ * @param yBits the number of bits of the y coordinate
+ * @param zBits the number of bits of the z coordinate
+ * @param bits the number of bits in the whole key
+ */
+public record PointPacking(int yBits, int zBits, int bits) {
+    static final int CLASSIFICATION_BITS = bitsFor(Classification.values().length - 1);
+    private static final long CLASSIFICATION_MASK = (1L << CLASSIFICATION_BITS) - 1;
+
+    private static int bitsFor(int max) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(max));
+    }
+
+    /**
+     * The packing for points whose coordinates are from zero to the dimensions (exclusive)
+     */
+    public static PointPacking of(int width, int length, int height) {
+        int xBits = bitsFor(width - 1), yBits = bitsFor(length - 1), zBits = bitsFor(height - 1);
+        int bits = xBits + yBits + zBits + CLASSIFICATION_BITS;
+        //keeping the keys positive so they also sort correctly as signed numbers
+        if (bits > 63) {
+            throw new IllegalArgumentException("The area " + width + "x" + length + "x" + height + " is too large to pack");
+        }
+        return new PointPacking(yBits, zBits, bits);
+    }
+
+    /**
+     * @param classification the ordinal of the classification
+     */
+    public long pack(int x, int y, int z, int classification) {
+        return ((((long) x << yBits | y) << zBits | z) << CLASSIFICATION_BITS) | classification;
+    }
+
+    public int x(long key) {
+        return (int) (key >>> (CLASSIFICATION_BITS + zBits + yBits));
+    }
+
+    public int y(long key) {
+        return (int) (key >>> (CLASSIFICATION_BITS + zBits)) & ((1 << yBits) - 1);
+    }
+
+    public int z(long key) {
+        return (int) (key >>> CLASSIFICATION_BITS) & ((1 << zBits) - 1);
+    }
+
+    /**
+     * @return the ordinal of the classification
+     */
+    public int classification(long key) {
+        return (int) (key & CLASSIFICATION_MASK);
+    }
+
+    /**
+     * @return the key without the classification. Equal for all the points in the same block
+     */
+    public long block(long key) {
+        return key >>> CLASSIFICATION_BITS;
+    }
+}
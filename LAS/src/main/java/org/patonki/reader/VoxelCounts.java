@@ -0,0 +1,150 @@
+package org.patonki.reader;
+
+import org.patonki.data.Classification;
+
+import java.util.Arrays;
+
+/**
+ * The number of points of each classification in every block that has points.<br>
+ * A hash map from the packed coordinates of the block to the counts, stored in primitive arrays
+ * so that the memory only depends on the number of blocks and not on the number of points.
+ * Tiles have tens of millions of points, but a lot fewer blocks with points.
+ * <br><br>
+ * The coordinates are packed to 21 bits each relative to the first added point,
+ * so the points must be within a million blocks of each other.
+ */
+public class VoxelCounts {
+    private static final int BITS = 21;
+    private static final int BIAS = 1 << (BITS - 1);
+    private static final long MASK = (1L << BITS) - 1;
+    private static final long EMPTY = -1;
+    private static final int CLASSIFICATIONS = Classification.values().length;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    //CLASSIFICATIONS counts for every slot of the keys. Stops counting at the maximum of a char
+    private char[] counts;
+    private int size;
+    private int resizeAt;
+    private boolean hasOrigin;
+    private int originX, originY, originZ;
+    private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+
+    /**
+     * @param expectedVoxels the number of blocks with points. The map grows if there are more
+     */
+    public VoxelCounts(int expectedVoxels) {
+        long wanted = Math.max(16, (long) Math.ceil(expectedVoxels / LOAD_FACTOR));
+        allocate((int) Math.min(1 << 30, Long.highestOneBit(wanted - 1) << 1));
+    }
+
+    private void allocate(int capacity) {
+        if ((long) capacity * CLASSIFICATIONS > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many blocks with points: " + size);
+        }
+        this.keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        this.counts = new char[capacity * CLASSIFICATIONS];
+        this.resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private long pack(int x, int y, int z) {
+        if (!hasOrigin) {
+            originX = x; originY = y; originZ = z;
+            hasOrigin = true;
+        }
+        long dx = (long) x - originX + BIAS, dy = (long) y - originY + BIAS, dz = (long) z - originZ + BIAS;
+        if ((dx & ~MASK) != 0 || (dy & ~MASK) != 0 || (dz & ~MASK) != 0) {
+            throw new IllegalArgumentException("The point (" + x + ", " + y + ", " + z + ") is too far from the first point ("
+                    + originX + ", " + originY + ", " + originZ + ")");
+        }
+        return dx << (2 * BITS) | dy << BITS | dz;
+    }
+
+    /**
+     * Counts a point in the block
+     */
+    public void add(int x, int y, int z, Classification classification) {
+        long key = pack(x, y, z);
+        int slot = findSlot(key);
+        if (keys[slot] == EMPTY) {
+            if (size >= resizeAt) {
+                grow();
+                slot = findSlot(key);
+            }
+            keys[slot] = key;
+            size++;
+            minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+            minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+        }
+        int index = slot * CLASSIFICATIONS + classification.ordinal();
+        if (counts[index] != Character.MAX_VALUE) counts[index]++;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        char[] oldCounts = counts;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int slot = findSlot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            System.arraycopy(oldCounts, i * CLASSIFICATIONS, counts, slot * CLASSIFICATIONS, CLASSIFICATIONS);
+        }
+    }
+
+    public interface VoxelAction {
+        /**
+         * @param counts the number of points of each classification indexed with the ordinal. Reused between the calls
+         */
+        void run(int x, int y, int z, int[] counts);
+    }
+
+    /**
+     * Runs the action on every block with points in no particular order
+     */
+    public void forEach(VoxelAction action) {
+        int[] voxelCounts = new int[CLASSIFICATIONS];
+        for (int slot = 0; slot < keys.length; slot++) {
+            long key = keys[slot];
+            if (key == EMPTY) continue;
+            int x = (int) (key >>> (2 * BITS)) - BIAS + originX;
+            int y = (int) ((key >>> BITS) & MASK) - BIAS + originY;
+            int z = (int) (key & MASK) - BIAS + originZ;
+            for (int i = 0; i < CLASSIFICATIONS; i++) {
+                voxelCounts[i] = counts[slot * CLASSIFICATIONS + i];
+            }
+            action.run(x, y, z, voxelCounts);
+        }
+    }
+
+    /**
+     * @return the number of blocks with points
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getMinX() { return minX; }
+    public int getMinY() { return minY; }
+    public int getMinZ() { return minZ; }
+    public int getMaxX() { return maxX; }
+    public int getMaxY() { return maxY; }
+    public int getMaxZ() { return maxZ; }
+}
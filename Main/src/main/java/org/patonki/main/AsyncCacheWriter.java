@@ -0,0 +1,126 @@
+package org.patonki.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.patonki.blocks.Blocks;
+import org.patonki.data.BlockSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes caches on a separate thread, so that the next step can start while the cache is written.<br>
+ * The blocks are copied with {@link BlockSerializer#snapshot(Blocks)} before the write is queued, because the next
+ * step modifies them. The number of queued writes is limited, so the copies can't fill the memory.
+ * When the queue is full, queueing waits until a write has finished.
+ * The writer is shared by all las files that are processed at the same time, so the disk is only written
+ * by one thread.
+ */
+public class AsyncCacheWriter implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger(AsyncCacheWriter.class);
+    private final ExecutorService thread;
+    private final Semaphore queued;
+    private volatile IOException error;
+
+    /**
+     * Runs after the cache has been written successfully
+     */
+    public interface Callback {
+        void done() throws IOException;
+    }
+
+    /**
+     * @param maxQueued the maximum number of writes that can be queued or running at the same time
+     */
+    public AsyncCacheWriter(int maxQueued) {
+        if (maxQueued <= 0) throw new IllegalArgumentException("The queue size must be positive: " + maxQueued);
+        this.queued = new Semaphore(maxQueued);
+        this.thread = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cache-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Copies the blocks and queues writing them to the file. If the blocks can't be copied, they are written
+     * before this returns.
+     * @param onWritten called on the writer thread after the file has been written.
+     *                  Not called if writing fails, which is reported by {@link #close()}
+     * @throws IOException if writing the blocks directly fails
+     * @throws InterruptedException if interrupted while waiting for space in the queue
+     */
+    public void write(BlockSerializer serializer, Blocks blocks, File file, Callback onWritten) throws IOException, InterruptedException {
+        //waiting for space before copying, so that there are never more copies than the queue size
+        queued.acquire();
+        byte[] snapshot;
+        try {
+            snapshot = serializer.snapshot(blocks);
+        } catch (RuntimeException e) {
+            queued.release();
+            throw e;
+        }
+        if (snapshot == null) {
+            queued.release();
+            serializer.write(blocks, file);
+            onWritten.done();
+            return;
+        }
+        submit(serializer, snapshot, file, onWritten);
+    }
+
+    /**
+     * Queues writing data that has already been serialized, for example, a {@link org.patonki.blocks.BlocksDelta}.
+     * See {@link #write(BlockSerializer, Blocks, File, Callback)}
+     * @param serialized written with {@link BlockSerializer#write(byte[], File)}
+     * @throws InterruptedException if interrupted while waiting for space in the queue
+     */
+    public void write(BlockSerializer serializer, byte[] serialized, File file, Callback onWritten) throws InterruptedException {
+        queued.acquire();
+        submit(serializer, serialized, file, onWritten);
+    }
+
+    //the caller has acquired a permit, which is released when the write finishes
+    private void submit(BlockSerializer serializer, byte[] snapshot, File file, Callback onWritten) {
+        try {
+            thread.execute(() -> {
+                try {
+                    serializer.write(snapshot, file);
+                    onWritten.done();
+                } catch (IOException e) {
+                    LOGGER.error("Error while writing cache " + file.getPath());
+                    LOGGER.error(e);
+                    error = e;
+                } finally {
+                    queued.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            queued.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the queued writes to finish
+     * @throws IOException if a write failed
+     */
+    @Override
+    public void close() throws IOException {
+        thread.shutdown();
+        try {
+            while (!thread.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.info("Waiting for the caches to be written...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the caches to be written", e);
+        }
+        IOException error = this.error;
+        if (error != null) throw new IOException("Writing a cache failed", error);
+    }
+}
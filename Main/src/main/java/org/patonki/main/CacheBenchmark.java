@@ -0,0 +1,78 @@
+package org.patonki.main;
+
+import org.patonki.blocks.Blocks;
+import org.patonki.data.BlockSerializer;
+import org.patonki.data.CacheCompression;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures how long it takes to write and read the cached tiles with each {@link CacheCompression}
+ * and how large the files become. The tiles are read from the cache folder, so the results are for real data.
+ */
+public class CacheBenchmark {
+    private final BlockSerializer serializer;
+    private final File cacheFolder;
+
+    /**
+     * @param serializer the serializer of the storage type that the cache was created with
+     * @param cacheFolder the folder with a subfolder for every tile
+     */
+    public CacheBenchmark(BlockSerializer serializer, File cacheFolder) {
+        this.serializer = serializer;
+        this.cacheFolder = cacheFolder;
+    }
+
+    private record Result(long writeNanos, long readNanos, long bytes) {}
+
+    /**
+     * Runs the benchmark on the caches of the step and prints the results
+     * @param step the step whose caches are used
+     * @param rounds how many times every file is written and read
+     * @throws IOException if reading the caches fails
+     */
+    public void run(ExecutionStep step, int rounds) throws IOException {
+        File[] tiles = cacheFolder.listFiles(File::isDirectory);
+        if (tiles == null) {
+            throw new IOException("Could not list files in folder " + cacheFolder);
+        }
+        CacheCompression original = serializer.getCompression();
+        File temporary = File.createTempFile("benchmark", ".dat", cacheFolder);
+        try {
+            for (File tile : tiles) {
+                File cacheFile = new File(tile, step.name() + ".dat");
+                if (!cacheFile.exists()) continue;
+                Blocks blocks = serializer.read(cacheFile);
+                System.out.println(tile.getName() + " (" + cacheFile.length() / (1024 * 1024) + " MiB)");
+                for (CacheCompression compression : CacheCompression.values()) {
+                    Result result = measure(blocks, compression, temporary, rounds);
+                    System.out.printf("  %-5s write %6d ms  read %6d ms  size %8d KiB%n", compression,
+                            result.writeNanos() / 1_000_000, result.readNanos() / 1_000_000, result.bytes() / 1024);
+                }
+            }
+        } finally {
+            serializer.setCompression(original);
+            if (!temporary.delete()) {
+                System.out.println("Unable to delete " + temporary);
+            }
+        }
+    }
+
+    //the fastest of the rounds, so that the first round doesn't count the warmup
+    private Result measure(Blocks blocks, CacheCompression compression, File file, int rounds) throws IOException {
+        serializer.setCompression(compression);
+        long write = Long.MAX_VALUE;
+        long read = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            serializer.write(blocks, file);
+            write = Math.min(write, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            serializer.read(file);
+            read = Math.min(read, System.nanoTime() - start);
+        }
+        return new Result(write, read, file.length());
+    }
+}
@@ -0,0 +1,151 @@
+package org.patonki.main;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.patonki.serialize.JsonSerializer;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the inputs of each {@link ExecutionStep} and turns them into cache keys.<br>
+ * The key of a step is a hash of the key of the previous step and the inputs of the step, so changing
+ * the input of a step changes the keys of that step and every step after it. A cache is only used
+ * when its key is the same as the key it was written with.<br>
+ * Files are identified by their path, size and modification time instead of their content, because
+ * hashing every input file again on every run would take longer than some of the steps.
+ */
+public class CacheKeys {
+    private final EnumMap<ExecutionStep, List<String>> inputs = new EnumMap<>(ExecutionStep.class);
+
+    public CacheKeys() {}
+
+    /**
+     * Copies the inputs of the other keys, so that the inputs shared by all las files only have to be added once
+     */
+    public CacheKeys(CacheKeys other) {
+        other.inputs.forEach((step, values) -> this.inputs.put(step, new ArrayList<>(values)));
+    }
+
+    private List<String> inputs(ExecutionStep step) {
+        return inputs.computeIfAbsent(step, s -> new ArrayList<>());
+    }
+
+    /**
+     * Adds settings that change the result of the step
+     * @param settings an object that can be serialized to json
+     */
+    public CacheKeys addSettings(ExecutionStep step, Object settings) {
+        //the order of the fields and map entries is not always the same, so it is sorted
+        inputs(step).add("settings:" + sorted(JsonParser.parseString(JsonSerializer.serialize(settings))));
+        return this;
+    }
+
+    /**
+     * Adds a file or a folder that the step reads.
+     * Files in the same folder with the same name and a different extension (like the parts of a shapefile)
+     * and the files inside a folder are included. A file without an extension is added alone
+     */
+    public CacheKeys addFile(ExecutionStep step, File file) {
+        List<String> inputs = inputs(step);
+        if (file.isDirectory()) {
+            addFolder(inputs, file);
+            return this;
+        }
+        String name = file.getName();
+        //the name without the extension and with the dot, so "roads.shp" matches "roads.dbf" but not "roads_old.shp".
+        //A name without an extension only matches itself
+        String prefix = name.contains(".") ? name.substring(0, name.lastIndexOf('.') + 1) : null;
+        File parent = file.getAbsoluteFile().getParentFile();
+        File[] siblings = parent == null ? null : parent.listFiles((dir, n) -> n.equals(name) || (prefix != null && n.startsWith(prefix)));
+        if (siblings == null || siblings.length == 0) {
+            inputs.add("missing:" + file.getPath());
+            return this;
+        }
+        Arrays.sort(siblings);
+        for (File sibling : siblings) {
+            inputs.add(fingerprint(sibling));
+        }
+        return this;
+    }
+
+    private static void addFolder(List<String> inputs, File folder) {
+        File[] files = folder.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addFolder(inputs, file);
+            } else {
+                inputs.add(fingerprint(file));
+            }
+        }
+    }
+
+    private static String fingerprint(File file) {
+        return "file:" + file.getPath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    private static JsonElement sorted(JsonElement element) {
+        if (element.isJsonObject()) {
+            TreeMap<String, JsonElement> entries = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                entries.put(entry.getKey(), sorted(entry.getValue()));
+            }
+            JsonObject object = new JsonObject();
+            entries.forEach(object::add);
+            return object;
+        }
+        if (element.isJsonArray()) {
+            JsonArray array = new JsonArray();
+            for (JsonElement child : element.getAsJsonArray()) {
+                array.add(sorted(child));
+            }
+            return array;
+        }
+        return element;
+    }
+
+    /**
+     * Computes the keys of all steps
+     * @param skipped the skipped steps. Skipping a step changes the keys of the steps after it
+     * @return the key of each step as a hex string
+     */
+    public EnumMap<ExecutionStep, String> compute(ExecutionStep[] skipped) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+        EnumMap<ExecutionStep, String> keys = new EnumMap<>(ExecutionStep.class);
+        String previous = "";
+        for (ExecutionStep step : ExecutionStep.values()) {
+            digest.update(previous.getBytes(StandardCharsets.UTF_8));
+            digest.update(step.name().getBytes(StandardCharsets.UTF_8));
+            if (Arrays.asList(skipped).contains(step)) {
+                digest.update("skipped".getBytes(StandardCharsets.UTF_8));
+            } else {
+                for (String input : inputs(step)) {
+                    digest.update(input.getBytes(StandardCharsets.UTF_8));
+                    //separating the inputs so that moving text from one input to the next changes the key
+                    digest.update((byte) 0);
+                }
+            }
+            previous = HexFormat.of().formatHex(digest.digest());
+            keys.put(step, previous);
+        }
+        return keys;
+    }
+}
@@ -4,34 +4,58 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.patonki.blocks.Blocks;
+import org.patonki.blocks.BlocksDelta;
 import org.patonki.data.BlockSerializer;
+import org.patonki.data.IntBoundingBox3D;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.function.Supplier;
 
+/**
+ * Runs the steps of one las file and caches their results.<br>
+ * Every step has a key computed from its inputs (see {@link CacheKeys}), which is stored next to the cache
+ * in a .key file. A cache is only used if its key matches, so the steps run again when their settings or input files
+ * change, and the latest cache that is still valid is used when the start step isn't given.<br>
+ * With delta caches, a step that only changes a small part of the blocks is saved as a {@link BlocksDelta}
+ * in a .delta file instead. The .key file of a delta has a second line with the step whose cache the delta
+ * is applied to, and the delta is only valid if that cache is valid too.
+ */
 public class Executor {
     private static final Level STEP = Level.forName("STEP", 250);
     private final String lazFile;
     private final BlockSerializer serializer;
     private final ExecutionStep[] cached;
-    private final boolean overwrite;
     private Blocks blocks;
     private final ExecutionStep startStep;
     private final ExecutionStep endStep;
     private final ExecutionStep[] skipped;
     private final String cacheFolderPath;
+    private final EnumMap<ExecutionStep, String> keys;
+    //null if the caches are written on the thread of the steps
+    private final AsyncCacheWriter cacheWriter;
+    private final boolean deltaCaches;
+    //the cached step that the tracked changes of the blocks are relative to. Null if the changes are not tracked
+    private ExecutionStep deltaBase;
 
-    private final boolean startCacheExists;
-    private final boolean endCacheExists;
+    //the step whose cache is loaded instead of running it. Null if every step runs
+    private final ExecutionStep resumeStep;
     private static final Logger LOGGER = LogManager.getLogger(Executor.class);
 
+    /**
+     * @param overwrite whether to run the steps even if their caches are valid. The cache of the start step is
+     *                  still used if it exists
+     * @param deltaCaches whether to save only the changes since the previous cache when they are small enough
+     * @param cacheWriter the writer that writes the caches in the background or null to write them before the next step
+     */
     public Executor(String lazFile, ExecutionStep start, ExecutionStep end, ExecutionStep[] skipped,
                     String cacheFolderPath, BlockSerializer serializer, ExecutionStep[] cached, boolean overwrite,
-                    boolean deleteOldCache) {
+                    boolean deleteOldCache, boolean deltaCaches, CacheKeys cacheKeys, AsyncCacheWriter cacheWriter) {
         this.lazFile = new File(lazFile).getName();
         this.startStep = start;
         this.endStep = end;
@@ -39,21 +63,110 @@ public class Executor {
         this.cached = cached;
         this.cacheFolderPath = cacheFolderPath;
         this.serializer = serializer;
-        this.startCacheExists = getCacheFile(this.lazFile, startStep).exists();
-        File endStepCacheFile = getCacheFile(this.lazFile, endStep);
-        this.endCacheExists = endStepCacheFile.exists();
-        this.overwrite = overwrite;
-        if (endCacheExists && deleteOldCache && !endStepCacheFile.delete()) {
-            LOGGER.warn("Unable to delete old cache!");
+        this.keys = cacheKeys.compute(skipped);
+        this.cacheWriter = cacheWriter;
+        this.deltaCaches = deltaCaches;
+        this.resumeStep = findResumeStep(overwrite);
+        if (resumeStep != endStep && hasCacheFile(endStep) && deleteOldCache) {
+            File endStepCacheFile = getCacheFile(this.lazFile, endStep);
+            if (!delete(endStepCacheFile) || !delete(getDeltaFile(endStepCacheFile)) || !deleteKey(endStepCacheFile)) {
+                LOGGER.warn("Unable to delete old cache!");
+            }
+        }
+    }
+
+    private ExecutionStep findResumeStep(boolean overwrite) {
+        if (overwrite) {
+            return isCacheValid(startStep, false) ? startStep : null;
+        }
+        //the latest valid cache between the start and the end
+        ExecutionStep resume = null;
+        for (ExecutionStep step : ExecutionStep.values()) {
+            if (step.number < startStep.number || step.number > endStep.number || shouldIgnore(step)) continue;
+            if (isCacheValid(step)) resume = step;
+        }
+        if (resume == null && hasCacheFile(startStep)) {
+            LOGGER.log(STEP, "The cache of " + startStep.name() + " is outdated");
+        }
+        return resume;
+    }
+
+    private boolean isCacheValid(ExecutionStep step) {
+        return isCacheValid(step, true);
+    }
+
+    /**
+     * @param checkKey false to only check that the cache can be read. A delta also needs the cache it was made from
+     */
+    private boolean isCacheValid(ExecutionStep step, boolean checkKey) {
+        File file = getCacheFile(lazFile, step);
+        List<String> key = readKey(file);
+        if (key == null) {
+            //caches written before the keys were added can still be used when the key isn't checked
+            return !checkKey && file.exists();
         }
+        if (checkKey && !key.get(0).equals(keys.get(step))) return false;
+        ExecutionStep base = getDeltaBase(key);
+        if (base == null) return file.exists();
+        return base.number < step.number && getDeltaFile(file).exists() && isCacheValid(base, checkKey);
+    }
+
+    private boolean hasCacheFile(ExecutionStep step) {
+        File file = getCacheFile(lazFile, step);
+        return file.exists() || getDeltaFile(file).exists();
+    }
+
+    //the lines of the key file or null if there is no key
+    private static List<String> readKey(File cacheFile) {
+        File keyFile = getKeyFile(cacheFile);
+        if (!keyFile.exists()) return null;
+        try {
+            List<String> lines = Files.readAllLines(keyFile.toPath()).stream().map(String::trim).filter(l -> !l.isEmpty()).toList();
+            return lines.isEmpty() ? null : lines;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read cache key " + keyFile.getPath());
+            return null;
+        }
+    }
+
+    //the step whose cache the delta is applied to or null if the cache is not a delta
+    private static ExecutionStep getDeltaBase(List<String> key) {
+        if (key.size() < 2) return null;
+        try {
+            return ExecutionStep.valueOf(key.get(1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static File getDeltaFile(File cacheFile) {
+        String path = cacheFile.getPath();
+        return new File(path.substring(0, path.lastIndexOf('.')) + ".delta");
+    }
+
+    private static boolean delete(File file) {
+        return !file.exists() || file.delete();
+    }
+
+    private static File getKeyFile(File cacheFile) {
+        String path = cacheFile.getPath();
+        return new File(path.substring(0, path.lastIndexOf('.')) + ".key");
+    }
+
+    private static boolean deleteKey(File cacheFile) {
+        File keyFile = getKeyFile(cacheFile);
+        return !keyFile.exists() || keyFile.delete();
     }
 
     public static void deleteCache(String lazFile, String cacheFolderPath, ExecutionStep[] steps) {
         for (ExecutionStep step : steps) {
             File file = getCacheFile(cacheFolderPath, lazFile, step);
-            if (file.exists() && !file.delete()) {
+            if (!delete(file) || !delete(getDeltaFile(file))) {
                 LOGGER.warn("Unable to delete file " + file.getPath());
             }
+            if (!deleteKey(file)) {
+                LOGGER.warn("Unable to delete the key of " + file.getPath());
+            }
         }
     }
 
@@ -68,27 +181,88 @@ public class Executor {
     private File getCacheFile(String lazFile, ExecutionStep step) {
         return getCacheFile(this.cacheFolderPath, lazFile, step);
     }
+    /**
+     * Reads only a box of the cache of a step, for example, to look at one building without loading the whole tile.
+     * See {@link BlockSerializer#readRegion(File, IntBoundingBox3D)}. The key of the cache is not checked
+     * @param lazFile the name of the las file of the tile
+     * @param box the box in the coordinates of the tile
+     * @throws IOException if the step isn't cached or reading fails
+     */
+    public static Blocks readCachedRegion(BlockSerializer serializer, String cacheFolderPath, String lazFile,
+                                          ExecutionStep step, IntBoundingBox3D box) throws IOException {
+        return readCache(serializer, cacheFolderPath, lazFile, step, box);
+    }
+
+    //reads the cache and the caches that it is a delta of. Reads the whole tile if the box is null
+    private static Blocks readCache(BlockSerializer serializer, String cacheFolderPath, String lazFile,
+                                    ExecutionStep step, IntBoundingBox3D box) throws IOException {
+        File file = getCacheFile(cacheFolderPath, lazFile, step);
+        List<String> key = readKey(file);
+        ExecutionStep base = key == null ? null : getDeltaBase(key);
+        if (base == null) {
+            if (!file.exists()) throw new FileNotFoundException("The step " + step.name() + " is not cached: " + file.getPath());
+            return box == null ? serializer.read(file) : serializer.readRegion(file, box);
+        }
+        Blocks blocks = readCache(serializer, cacheFolderPath, lazFile, base, box);
+        serializer.readChanges(blocks, getDeltaFile(file));
+        return blocks;
+    }
+
     private Blocks getCachedBlocks(String lazFile, ExecutionStep step) throws IOException {
-        File file = getCacheFile(lazFile, step);
-        try (FileInputStream in = new FileInputStream(file)) {
-            return serializer.deserialize(in.readAllBytes());
+        try {
+            return readCache(serializer, cacheFolderPath, lazFile, step, null);
         } catch (IOException e) {
             LOGGER.error("Error while trying to read cached object ");
             LOGGER.error(e);
             throw e;
         }
     }
-    private void cacheBlocks(String lazFile, ExecutionStep step, Blocks blocks) throws IOException {
+    private void cacheBlocks(String lazFile, ExecutionStep step, Blocks blocks) throws IOException, InterruptedException {
         File cacheFile = getCacheFile(lazFile, step);
 
-        try (FileOutputStream out = new FileOutputStream(cacheFile)) {
-            out.write(serializer.serialize(blocks));
+        try {
+            //the key is written last, so a cache that was not written completely is never valid
+            if (!deleteKey(cacheFile)) {
+                throw new IOException("Unable to delete the old key of " + cacheFile.getPath());
+            }
+            byte[] delta = deltaBase == null ? null : BlocksDelta.serialize(blocks);
+            //the other kind of cache of the step is outdated
+            if (!delete(delta == null ? getDeltaFile(cacheFile) : cacheFile)) {
+                throw new IOException("Unable to delete the old cache of " + step.name());
+            }
+            if (delta == null) {
+                String key = keys.get(step);
+                if (cacheWriter == null) {
+                    serializer.write(blocks, cacheFile);
+                    Files.writeString(getKeyFile(cacheFile).toPath(), key);
+                } else {
+                    cacheWriter.write(serializer, blocks, cacheFile, () -> Files.writeString(getKeyFile(cacheFile).toPath(), key));
+                }
+            } else {
+                File deltaFile = getDeltaFile(cacheFile);
+                String key = keys.get(step) + "\n" + deltaBase.name();
+                if (cacheWriter == null) {
+                    serializer.write(delta, deltaFile);
+                    Files.writeString(getKeyFile(cacheFile).toPath(), key);
+                } else {
+                    cacheWriter.write(serializer, delta, deltaFile, () -> Files.writeString(getKeyFile(cacheFile).toPath(), key));
+                }
+                LOGGER.debug("Saved " + step.name() + " as a delta of " + deltaBase.name());
+            }
+            startTracking(blocks, step);
         } catch (IOException e) {
             LOGGER.error("Error while trying to write cached object to file");
             LOGGER.error(e);
             throw e;
         }
     }
+    //the next cache can be saved as the changes since the cache of this step
+    private void startTracking(Blocks blocks, ExecutionStep step) {
+        if (!deltaCaches) return;
+        blocks.trackChanges();
+        this.deltaBase = step;
+    }
+
     private boolean shouldIgnore(ExecutionStep step) {
         return Arrays.stream(skipped).anyMatch(s -> s == step);
     }
@@ -100,33 +274,30 @@ public class Executor {
         void run() throws Exception;
     }
     private void execute(Runnable runnable, ExecutionStep step, boolean cache) throws Exception {
-        if (endCacheExists && !overwrite) {
-            return;
-        }
         if (shouldIgnore(step)) {
             LOGGER.log(STEP, "Ignoring step: " + step.name());
             return;
         }
         if (endStep.number < step.number) return;
 
-
-        if (startStep.number > step.number && startCacheExists) {
+        if (resumeStep != null && resumeStep.number > step.number) {
             return;
         }
-        if (startStep == step && endStep == step && startCacheExists) {
-            LOGGER.log(STEP, "Ignoring step: " + step.name());
+        if (resumeStep == step && endStep == step) {
+            LOGGER.log(STEP, "Step already cached: " + step.name());
             return;
         }
 
-        if (startStep == step && startCacheExists) {
-            this.blocks = getCachedBlocks(lazFile, startStep);
+        if (resumeStep == step) {
+            this.blocks = getCachedBlocks(lazFile, step);
+            startTracking(blocks, step);
             LOGGER.log(STEP, "Step retrieved from cache: " + step.name());
             return;
         }
         runnable.run();
 
         if (cache && ( endStep == step || shouldCache(step) || startStep == step ) ) {
-            cacheBlocks(lazFile, endStep, blocks);
+            cacheBlocks(lazFile, step, blocks);
             LOGGER.log(STEP, "Step cached " + step.name());
             return;
         }
@@ -138,6 +309,8 @@ public class Executor {
     public void exec(Supplier<Blocks> supplier, ExecutionStep step) throws Exception {
         execute(() -> {
             this.blocks = supplier.get();
+            //the new blocks have nothing to do with the earlier caches
+            this.deltaBase = null;
         }, step, true);
     }
 
@@ -4,6 +4,11 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.config.Configurator;
+import org.patonki.blocks.Blocks;
+import org.patonki.converter.SchematicCreator;
+import org.patonki.data.BlockSerializer;
+import org.patonki.data.CacheCompression;
+import org.patonki.data.IntBoundingBox3D;
 import org.patonki.downloader.Downloader;
 import org.patonki.serialize.JsonSerializer;
 import org.patonki.settings.Settings;
@@ -86,21 +91,27 @@ public class Main {
                     MINECRAFT_SCHEMATIC_OUTPUT_PATH,
                     TEMPLATE_MINECRAFT_WORLD,
                     GML_DOWNLOAD_FOLDER, TEXTURE_PACK_FOLDER,
-                    RESULTING_MINECRAFT_WORLD_PATH, commandLineArgs.copyToMinecraft(), commandLineArgs.overwrite(), commandLineArgs.deleteOld());
+                    RESULTING_MINECRAFT_WORLD_PATH, commandLineArgs.copyToMinecraft(), commandLineArgs.overwrite(), commandLineArgs.deleteOld(),
+                    commandLineArgs.deltaCache(), commandLineArgs.compression(), commandLineArgs.cacheQueueSize());
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
     private record CommandLineArgs(ExecutionStep start, ExecutionStep end, ExecutionStep[] skipped,
-                                   ExecutionStep[] cached, boolean copyToMinecraft, String[] lasFiles, Level logLevel, boolean overwrite, boolean deleteOld){}
+                                   ExecutionStep[] cached, boolean copyToMinecraft, String[] lasFiles, Level logLevel, boolean overwrite, boolean deleteOld,
+                                   boolean deltaCache, CacheCompression compression, int cacheQueueSize){}
     private static CommandLineArgs readCommandLineArguments(String[] args) throws IOException {
         ExecutionStep start = ExecutionStep.BEGINNING;
         ExecutionStep end = ExecutionStep.END;
         ExecutionStep[] skipped = new ExecutionStep[0];
         ExecutionStep[] cached = new ExecutionStep[0];
         Level logLevel = Level.DEBUG;
-        boolean overwrite = true;
+        //the caches are reused only if their keys match, so they don't have to be overwritten by default
+        boolean overwrite = false;
         boolean deleteOld = false;
+        boolean deltaCache = false;
+        CacheCompression compression = CacheCompression.NONE;
+        int cacheQueueSize = 2;
         String[] lasFiles = null;
         boolean copyToMinecraftWorld = false;
         for (int i = 0; i < args.length; i++) {
@@ -153,15 +164,66 @@ public class Main {
                     deleteOld = Boolean.parseBoolean(nextArg);
                     i++;
                 }
+                case "--deltaCache" -> {
+                    String nextArg = args[i+1];
+                    deltaCache = Boolean.parseBoolean(nextArg);
+                    i++;
+                }
+                case "--compression" -> {
+                    String nextArg = args[i+1];
+                    compression = CacheCompression.valueOf(nextArg);
+                    i++;
+                }
+                case "--cacheQueue" -> {
+                    String nextArg = args[i+1];
+                    cacheQueueSize = Integer.parseInt(nextArg);
+                    i++;
+                }
                 default -> throw new IllegalArgumentException("Unknown cmd argument: " + arg);
             }
         }
-        return new CommandLineArgs(start, end, skipped,cached, copyToMinecraftWorld, lasFiles, logLevel, overwrite, deleteOld);
+        return new CommandLineArgs(start, end, skipped,cached, copyToMinecraftWorld, lasFiles, logLevel, overwrite, deleteOld, deltaCache, compression, cacheQueueSize);
     }
     private static void deleteCache(String[] args) {
         ExecutionStep[] steps = Arrays.stream(args[0].split(",")).map(ExecutionStep::valueOf).toArray(ExecutionStep[]::new);
         WorldBuilder.deleteCache(steps, CACHE_FILE_LOCATION);
     }
+    private static void benchmarkCache(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Please provide the path to the configuration json file and the cached execution step");
+            return;
+        }
+        Settings settings = JsonSerializer.deserializeFromFile(args[0], Settings.class);
+        ExecutionStep step = ExecutionStep.valueOf(args[1]);
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        BlockSerializer serializer = WorldBuilder.createSerializer(settings.getLasSettings().getStorageType(), CACHE_FILE_LOCATION);
+        new CacheBenchmark(serializer, new File(CACHE_FILE_LOCATION)).run(step, rounds);
+    }
+    private static void regionCache(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("Please provide the path to the configuration json file, the las file, the cached execution step and the box as x,y,z,width,length,height");
+            return;
+        }
+        Settings settings = JsonSerializer.deserializeFromFile(args[0], Settings.class);
+        String lasFile = args[1];
+        ExecutionStep step = ExecutionStep.valueOf(args[2]);
+        int[] box = Arrays.stream(args[3].split(",")).mapToInt(Integer::parseInt).toArray();
+        if (box.length != 6) {
+            throw new IllegalArgumentException("The box should have six numbers: " + args[3]);
+        }
+        BlockSerializer serializer = WorldBuilder.createSerializer(settings.getLasSettings().getStorageType(), CACHE_FILE_LOCATION);
+        Blocks blocks = Executor.readCachedRegion(serializer, CACHE_FILE_LOCATION, lasFile, step,
+                new IntBoundingBox3D(box[0], box[1], box[2], box[3], box[4], box[5]));
+
+        File schematicsFolder = new File(MINECRAFT_SCHEMATIC_OUTPUT_PATH);
+        if (!schematicsFolder.exists() && !schematicsFolder.mkdirs()) {
+            throw new IOException("Unable to create folder " + schematicsFolder);
+        }
+        String fileName = MINECRAFT_SCHEMATIC_OUTPUT_PATH + "/region_" + step.name() + "_" + String.join("_", args[3].split(",")) + ".schematic";
+        Blocks.BlockData data = blocks.getBlockData();
+        new SchematicCreator().writeSchematic(fileName, data.blockIds(), data.blockData(), data.width(), data.length(), data.height());
+        System.out.println("Wrote " + fileName);
+    }
     private static void lasFiles() {
         File lasFileLocation = new File(LAS_FILE_DOWNLOAD_LOCATION);
         File[] files = lasFileLocation.listFiles();
@@ -232,6 +294,8 @@ public class Main {
             case "createTemplates" -> createTemplates();
             case "deleteCache" -> deleteCache(remainingArgs);
             case "lasfiles" -> lasFiles();
+            case "benchmarkCache" -> benchmarkCache(remainingArgs);
+            case "regionCache" -> regionCache(remainingArgs);
         }
     }
 
@@ -5,15 +5,20 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.patonki.blocks.ArrayBlocks;
 import org.patonki.blocks.Blocks;
+import org.patonki.blocks.ChunkedBlocks;
+import org.patonki.blocks.MappedBlocks;
 import org.patonki.blocks.OctTreeBlocks;
 import org.patonki.citygml.citygml.CityGmlEndpoint;
 import org.patonki.converter.MinecraftWorldWriter;
 import org.patonki.converter.SchematicCreator;
+import org.patonki.data.Block;
 import org.patonki.data.BlockSerializer;
+import org.patonki.data.CacheCompression;
 import org.patonki.data.Classification;
 import org.patonki.decorator.WorldDecorator;
 import org.patonki.groundcolor.GroundColorEndpoint;
 import org.patonki.las.LASEndPoint;
+import org.patonki.las.settings.LasReaderSettings;
 import org.patonki.openstreetmap.OsmEndPoint;
 import org.patonki.settings.Settings;
 
@@ -47,16 +52,22 @@ public class WorldBuilder {
     private static final Level STEP = Level.forName("STEP", 250);
     private final boolean overwrite;
     private final boolean deleteOldCache;
+    private final boolean deltaCaches;
+    //the inputs that are the same for every las file
+    private final CacheKeys cacheKeys;
+    private final AsyncCacheWriter cacheWriter;
 
     private WorldBuilder(Settings settings, MinecraftWorldWriter worldWriter,
                          String cacheFolderPath, String aerialImagePath, String landUsePath,
                          String roadsPath, String waterwaysPath, String cityGmlDownloadFolder, String texturesPath,
                          ExecutionStep startStep, ExecutionStep endStep, ExecutionStep[] skippedSteps,  ExecutionStep[] cachedSteps, boolean multiThreaded,
-                         boolean overwrite, boolean deleteOldCache) {
+                         boolean overwrite, boolean deleteOldCache, boolean deltaCaches, CacheCompression compression,
+                         AsyncCacheWriter cacheWriter) {
         this.overwrite = overwrite;
         this.deleteOldCache = deleteOldCache;
-        this.LASEndPoint = new LASEndPoint(settings.getLasSettings());
-        this.groundColorEndpoint = new GroundColorEndpoint(settings.getGroundColorSettings(), texturesPath, aerialImagePath);
+        this.deltaCaches = deltaCaches;
+        this.LASEndPoint = new LASEndPoint(settings.getLasSettings(), getMappedBlocksFolder(cacheFolderPath), multiThreaded);
+        this.groundColorEndpoint = new GroundColorEndpoint(settings.getGroundColorSettings(), texturesPath, aerialImagePath, multiThreaded);
         this.cachedSteps = cachedSteps;
         this.skippedSteps = skippedSteps;
         this.osmEndPoint = new OsmEndPoint(settings.getOsmSettings(), landUsePath, roadsPath, waterwaysPath);
@@ -64,13 +75,53 @@ public class WorldBuilder {
                 settings.getGmlSettings(), multiThreaded, settings.getLasSettings().mapToBlock(Classification.BUILDING), settings.getLasSettings().getRoofBlock());
         this.startStep = startStep;
         this.endStep = endStep;
-        this.decorator = new WorldDecorator();
+        this.decorator = new WorldDecorator(multiThreaded);
         this.schematicCreator = new SchematicCreator();
         this.worldWriter = worldWriter;
         this.cacheFolderPath = cacheFolderPath;
-        this.serializer = settings.getLasSettings().useOctTree()
-                ? new OctTreeBlocks.OctTreeBlocksSerializer()
-                : new ArrayBlocks.ArrayBlockSerializer();
+        this.serializer = createSerializer(settings.getLasSettings().getStorageType(), cacheFolderPath);
+        this.serializer.setCompression(compression);
+        this.cacheWriter = cacheWriter;
+        this.cacheKeys = createCacheKeys(settings, aerialImagePath, landUsePath, roadsPath, waterwaysPath,
+                cityGmlDownloadFolder, texturesPath);
+    }
+
+    //the settings and files each step depends on. Changing them reruns the step and the steps after it
+    private static CacheKeys createCacheKeys(Settings settings, String aerialImagePath, String landUsePath,
+                                             String roadsPath, String waterwaysPath, String cityGmlDownloadFolder,
+                                             String texturesPath) {
+        LasReaderSettings lasSettings = settings.getLasSettings();
+        return new CacheKeys()
+                .addSettings(ExecutionStep.READ_LAS, lasSettings)
+                .addSettings(ExecutionStep.FIX_LAS, lasSettings)
+                .addSettings(ExecutionStep.AERIAL_IMAGES, settings.getGroundColorSettings())
+                .addFile(ExecutionStep.AERIAL_IMAGES, new File(aerialImagePath))
+                .addFile(ExecutionStep.AERIAL_IMAGES, new File(texturesPath))
+                .addSettings(ExecutionStep.OSM, settings.getOsmSettings())
+                .addFile(ExecutionStep.OSM, new File(landUsePath))
+                .addFile(ExecutionStep.OSM, new File(roadsPath))
+                .addFile(ExecutionStep.OSM, new File(waterwaysPath))
+                .addSettings(ExecutionStep.GML, settings.getGmlSettings())
+                .addSettings(ExecutionStep.GML, new Block[]{lasSettings.mapToBlock(Classification.BUILDING), lasSettings.getRoofBlock()})
+                .addFile(ExecutionStep.GML, new File(cityGmlDownloadFolder))
+                .addFile(ExecutionStep.GML, new File(texturesPath));
+    }
+
+    /**
+     * @return the serializer of the cache files of the storage type
+     */
+    public static BlockSerializer createSerializer(LasReaderSettings.StorageType storageType, String cacheFolderPath) {
+        return switch (storageType) {
+            case OCT_TREE -> new OctTreeBlocks.OctTreeBlocksSerializer();
+            case CHUNKED -> new ChunkedBlocks.ChunkedBlocksSerializer();
+            case MAPPED -> new MappedBlocks.MappedBlocksSerializer(new File(getMappedBlocksFolder(cacheFolderPath)));
+            case ARRAY -> new ArrayBlocks.ArrayBlockSerializer();
+        };
+    }
+
+    //the temporary files of memory-mapped blocks
+    private static String getMappedBlocksFolder(String cacheFolderPath) {
+        return cacheFolderPath + "/mapped";
     }
 
     public static void deleteCache(ExecutionStep[] steps, String cacheFolderPath) {
@@ -129,7 +180,10 @@ public class WorldBuilder {
             String absolutePathToResultingMinecraftWorld,
             boolean copyToMinecraft,
             boolean overwrite,
-            boolean deleteOldCache) throws IOException, LasFileFormatException {
+            boolean deleteOldCache,
+            boolean deltaCaches,
+            CacheCompression compression,
+            int cacheQueueSize) throws IOException, LasFileFormatException {
         File lasFolder = new File(lazFileFolder);
         File[] files;
 
@@ -164,6 +218,7 @@ public class WorldBuilder {
             writer.start();
         }
         boolean multiThreadBuildings = files.length == 1;
+        AsyncCacheWriter cacheWriter = cacheQueueSize > 0 ? new AsyncCacheWriter(cacheQueueSize) : null;
         final var finalWriter = writer;
         AtomicInteger totalDone = new AtomicInteger();
 
@@ -174,7 +229,7 @@ public class WorldBuilder {
                     WorldBuilder builder = new WorldBuilder(
                             settings, finalWriter, cacheFolderPath,aerialImagePath,
                             landUsePath,roadsPath,waterwaysPath,
-                            cityGmlDownloadPath,texturePackPath, startStep, endStep, skippedSteps,cachedSteps, multiThreadBuildings,overwrite,deleteOldCache);
+                            cityGmlDownloadPath,texturePackPath, startStep, endStep, skippedSteps,cachedSteps, multiThreadBuildings,overwrite,deleteOldCache,deltaCaches,compression,cacheWriter);
                     builder.run(lazFile, schematicsFolder);
 
                     totalDone.getAndIncrement();
@@ -211,6 +266,10 @@ public class WorldBuilder {
         } catch (InterruptedException e) {
             LOGGER.error("Thread interrupted error!");
             LOGGER.error(e);
+        } finally {
+            //the writer thread is a daemon, so the queued caches would be lost if the program exited without waiting
+            if (cacheWriter != null)
+                cacheWriter.close();
         }
 
         if (copyToMinecraft && writer != null) {
@@ -227,7 +286,8 @@ public class WorldBuilder {
                      String schematicsFolder) throws Exception {
         Executor executor = new Executor(lazFile, this.startStep, this.endStep,
                 this.skippedSteps, this.cacheFolderPath,
-                this.serializer, this.cachedSteps, this.overwrite, this.deleteOldCache);
+                this.serializer, this.cachedSteps, this.overwrite, this.deleteOldCache, this.deltaCaches,
+                new CacheKeys(this.cacheKeys).addFile(ExecutionStep.READ_LAS, new File(lazFile)), this.cacheWriter);
 
         LOGGER.info("World builder starting...");
         executor.exec(() -> LASEndPoint.convertLazDataToBlocks(lazFile), ExecutionStep.READ_LAS);
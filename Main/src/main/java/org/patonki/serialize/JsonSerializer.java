@@ -189,7 +189,7 @@ public class JsonSerializer {
         for (WaterWayType value : WaterWayType.values()) {
             waterways.put(value, new WaterwayInfo());
         }
-        boolean useOctTree = false;
+        LasReaderSettings.StorageType storageType = LasReaderSettings.StorageType.ARRAY;
 
         ColorToBlockConverterOptions colorOptions = colorOptions();
         ColorToBlockConverterOptions blackAndWhiteColorOptions = blackAndWhiteColorOptions();
@@ -197,7 +197,7 @@ public class JsonSerializer {
 
         int sideLength = 500;
 
-        LasReaderSettings lasReaderSettings = new LasReaderSettings(iMap, blockMap, roofBlock, ignored, useOctTree,sideLength);
+        LasReaderSettings lasReaderSettings = new LasReaderSettings(iMap, blockMap, roofBlock, ignored, storageType,sideLength, true);
         OpenStreetMapSettings openStreetMapSettings = new OpenStreetMapSettings(
                 "EPSG:3877",
                 "EPSG:4326",
@@ -4,7 +4,6 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.patonki.blocks.Blocks;
 import org.patonki.blocks.GroundLayer;
-import org.patonki.blocks.XYZBlock;
 import org.patonki.data.Block;
 import org.patonki.data.Classification;
 import org.patonki.landUse.LandUse;
@@ -49,13 +48,7 @@ public class OsmFeaturesToMinecraft {
         return block.classification() == Classification.GROUND || block.classification() == Classification.LOW_VEGETATION;
     }
     private void replaceGroundBlocks(int x, int y, Block block) {
-        for (int z = 0; z < blocks.getHeight(); z++) {
-            Block b = blocks.get(x,y,z);
-            if (b == null) continue;
-            if (shouldReplace(b)) {
-                blocks.set(x,y,z, block);
-            }
-        }
+        blocks.replaceInColumn(x, y, b -> b != null && shouldReplace(b), block);
     }
     private <T extends Feature> T findFeatureAtCoordinate(int x, int y, List<T> features) {
         int realX = this.blocks.getMinX() + x;
@@ -98,47 +91,54 @@ public class OsmFeaturesToMinecraft {
 
         int minZ = Integer.MAX_VALUE;
         int minZ2 = Integer.MAX_VALUE; // the next smallest height
-        ArrayList<XYZBlock> bottomLayer = new ArrayList<>();
-        ArrayList<XYZBlock> bottomLayer2 = new ArrayList<>();
+        //the columns as x * length + y
+        int area = (2 * radius + 1) * (2 * radius + 1);
+        int[] bottomLayer = new int[area * 2];
+        int[] bottomLayer2 = new int[area];
+        int bottomCount = 0, bottomCount2 = 0;
+        int length = groundLayer.getLength();
 
         for (int x = xo-radius; x <= xo+radius; x++) {
             for (int y = yo-radius; y <= yo+radius; y++) {
                 if (!groundLayer.inRange(x,y)) continue;
-                XYZBlock i = groundLayer.getXYZBlock(x,y);
                 if (roadPlacements[x][y]) {
                     return; //not filling anything
                 }
+                int z = groundLayer.getHeightAt(x,y);
+                boolean water = groundLayer.getBlock(x,y).classification() == Classification.WATER;
+                int column = x * length + y;
 
-                if (i.z() < minZ) {
+                if (z < minZ) {
                     minZ2 = minZ;
-                    minZ = i.z();
-                    if (i.block().classification() == Classification.WATER) minZ--;
+                    minZ = z;
+                    if (water) minZ--;
 
-                    bottomLayer2.clear();
-                    bottomLayer2.addAll(bottomLayer);
-                    bottomLayer.clear();
-                    bottomLayer.add(i);
+                    System.arraycopy(bottomLayer, 0, bottomLayer2, 0, bottomCount);
+                    bottomCount2 = bottomCount;
+                    bottomCount = 0;
+                    bottomLayer[bottomCount++] = column;
                 }
-                else if (i.z() < minZ2) {
-                    minZ2 = i.z();
-                    if (i.block().classification() == Classification.WATER) minZ--;
-                    bottomLayer2.clear();
-                    bottomLayer2.add(i);
+                else if (z < minZ2) {
+                    minZ2 = z;
+                    if (water) minZ--;
+                    bottomCount2 = 0;
+                    bottomLayer2[bottomCount2++] = column;
                 }
-                else if (i.z() == minZ) {
-                    bottomLayer.add(i);
+                else if (z == minZ) {
+                    bottomLayer[bottomCount++] = column;
                 }
-                else if (i.z() == minZ2) {
-                    bottomLayer2.add(i);
+                else if (z == minZ2) {
+                    bottomLayer2[bottomCount2++] = column;
                 }
             }
         }
-        if (bottomLayer2.size() > bottomLayer.size()) {
-            bottomLayer.addAll(bottomLayer2);
+        if (bottomCount2 > bottomCount) {
+            System.arraycopy(bottomLayer2, 0, bottomLayer, bottomCount, bottomCount2);
+            bottomCount += bottomCount2;
         }
 
-        for (XYZBlock XYZBlock : bottomLayer) {
-            blocks.set(XYZBlock.x(), XYZBlock.y(), minZ+1, waterBlock);
+        for (int i = 0; i < bottomCount; i++) {
+            blocks.set(bottomLayer[i] / length, bottomLayer[i] % length, minZ+1, waterBlock);
         }
     }
     private void applyRoads(boolean[][] roadPlacements) {
@@ -190,24 +190,29 @@ public class OsmFeaturesToMinecraft {
         }
     }
     private void removeBuiltAreaAroundRoad(int xo, int yo, GroundLayer groundLayer, Road[][] roads) {
-        ArrayList<XYZBlock> built = new ArrayList<>();
+        int radius = 5;
+        //the built columns as x * length + y
+        int[] built = new int[(2 * radius + 1) * (2 * radius + 1)];
+        int builtCount = 0;
         int total = 0;
         int nature = 0;
-        int radius = 5;
+        int length = groundLayer.getLength();
         for (int x = xo-radius; x <= xo+radius; x++) {
             for (int y = yo-radius; y <= yo+radius; y++) {
-                if (x < 0 || y < 0 || x >= groundLayer.getWidth() || y >= groundLayer.getLength()) continue;
-                XYZBlock i = groundLayer.getXYZBlock(x,y);
-                Block block = i.block();
+                if (x < 0 || y < 0 || x >= groundLayer.getWidth() || y >= length) continue;
+                Block block = groundLayer.getBlock(x,y);
                 if (roads[x][y] != null) continue;
-                if (block.id() == 1) built.add(i);
+                if (block.id() == 1) built[builtCount++] = x * length + y;
                 if (block.id() == 2) nature++;
                 total++;
             }
         }
         if (nature < total/1.5) return;
-        for (XYZBlock XYZBlock : built) {
-            blocks.set(XYZBlock, new Block((byte) 2, (byte) 0, Classification.GROUND));
+        Block grass = new Block((byte) 2, (byte) 0, Classification.GROUND);
+        for (int i = 0; i < builtCount; i++) {
+            int x = built[i] / length;
+            int y = built[i] % length;
+            blocks.set(x, y, groundLayer.getHeightAt(x,y), grass);
         }
     }
     private int averageGroundHeight( int x1, int y1, int x2, int y2) {
@@ -9,6 +9,7 @@ import org.patonki.data.Block;
 import org.patonki.data.Classification;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Adds tree trunks and grass cover to grass blocks
@@ -17,6 +18,16 @@ public class WorldDecorator {
     private static final Logger LOGGER = LogManager.getLogger(WorldDecorator.class);
 
     private static final int MIN_TREE_HEIGHT = 6;
+    //null if the decorating is done in the calling thread
+    private final ForkJoinPool pool;
+
+    /**
+     * @param multiThreaded whether the steps that only modify one (x,y) column at a time use multiple threads
+     */
+    public WorldDecorator(boolean multiThreaded) {
+        this.pool = multiThreaded ? ForkJoinPool.commonPool() : null;
+    }
+
     /**
      * Adds finishing touches to the blocks
      * @param blocks blocks
@@ -32,12 +43,17 @@ public class WorldDecorator {
 
     private void removeStackedGrassBlock(Blocks blocks) {
         Block dirt = new Block(3,0,Classification.GROUND);
-        for (XYZBlock block : blocks) {
-            Block above = blocks.get(block.x(), block.y(), block.z()+1);
-            if (block.block().id() == 2 && (above != null && above.id() == 2)) {
-                blocks.set(block, dirt);
+        //from the bottom up, so the block above is always checked before it is changed
+        blocks.forEachColumn(pool, 0, (x, y) -> {
+            int top = blocks.getHighestBlockHeight(x, y);
+            for (int z = 0; z < top; z++) {
+                Block block = blocks.get(x, y, z);
+                Block above = blocks.get(x, y, z+1);
+                if (block != null && block.id() == 2 && (above != null && above.id() == 2)) {
+                    blocks.set(x, y, z, dirt);
+                }
             }
-        }
+        });
     }
 
     private static class TreePoint {
@@ -58,24 +74,30 @@ public class WorldDecorator {
     private void treeTrunks(Blocks blocks, Block logBlock) {
         GroundLayer groundLayer = blocks.getGroundLayer();
         ArrayList<TreePoint> treeTops = treeTops(groundLayer, blocks);
+        XYZBlock[] neighbors = new XYZBlock[4];
         for (TreePoint treeTop : treeTops) {
             int x = treeTop.x;
             int y = treeTop.y;
-            XYZBlock groundBlock = groundLayer.getXYZBlock(x,y);
-            if (groundBlock.block().classification() == Classification.WATER) continue;
-            int startZ = groundBlock.z()+1;
+            if (groundLayer.getBlock(x,y).classification() == Classification.WATER) continue;
+            int startZ = groundLayer.getHeightAt(x,y)+1;
             int endZ = treeTop.z - 1;
             boolean insideTree = false;
-
+            //the trunk only depends on the neighboring columns, so it is placed at once when its end is known
+            int trunkEnd = startZ - 1;
             for (int z = startZ; z <= endZ; z++) {
-                long plantNeighborCount = blocks.xyNeighborsList(x, y, z).stream().filter(i -> i.block().classification().isPlant()).count();
+                int neighborCount = blocks.xyNeighbors(x, y, z, neighbors);
+                int plantNeighborCount = 0;
+                for (int i = 0; i < neighborCount; i++) {
+                    if (neighbors[i].block().classification().isPlant()) plantNeighborCount++;
+                }
                 //the trunk of the tree must end before the top of the tree while it's surrounded by leaves
                 if (insideTree && plantNeighborCount < 3) {
                     break;
                 }
-                blocks.set(x,y,z, logBlock);
+                trunkEnd = z;
                 if (plantNeighborCount >= 3) insideTree = true;
             }
+            blocks.fillColumn(x, y, startZ, trunkEnd, logBlock);
         }
     }
     private void addIfValid(Queue<TreePoint> rec, TreePoint p, int x, int y, TreePoint[][] treePointTop, int[][] visited, int maxDown) {
@@ -215,13 +237,13 @@ public class WorldDecorator {
         GroundLayer groundLayer = blocks.getGroundLayer();
         for (int x = 0; x < groundLayer.getWidth(); x++) {
             for (int y = 0; y < groundLayer.getLength(); y++) {
-                XYZBlock XYZBlock = groundLayer.getXYZBlock(x,y);
+                int z = groundLayer.getHeightAt(x,y);
                 //grass block
-                if (XYZBlock.block().id() != 2
+                if (groundLayer.getBlock(x,y).id() != 2
                         || rng.nextInt(100) > 40
-                        || !blocks.isAir(XYZBlock.x(), XYZBlock.y(), XYZBlock.z()+1))
+                        || !blocks.isAir(x, y, z+1))
                     continue;
-                blocks.set(XYZBlock.x(), XYZBlock.y(), XYZBlock.z() + 1, getGrassDecoration(rng));
+                blocks.set(x, y, z + 1, getGrassDecoration(rng));
             }
         }
     }